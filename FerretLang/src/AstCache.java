@@ -0,0 +1,362 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Parsed programs saved to disk, so running an unchanged file again skips the lexer and parser
+// Each file is named after a hash of the source, and holds the AST in the binary format below, then a CRC32 of it
+
+class AstCache {
+	static boolean cacheMode = false; // look for the program in the cache before parsing it, and save it after
+	static Path directory = Paths.get(System.getProperty("ferret.cache", System.getProperty("user.home") + "/.ferret/cache"));
+	
+	static IExpression parse (String code) { // Parser.parse, through the cache
+		if (!cacheMode) {
+			return Parser.parse(code);
+		}
+		
+		Path file = directory.resolve(key(code) + ".fast");
+		
+		if (Files.exists(file)) {
+			try {
+				return load(file);
+			} catch (IOException | IllegalStateException | BufferUnderflowException e) { // unreadable, or from another version, parse it again and replace it
+			}
+		}
+		
+		IExpression program = Parser.parse(code);
+		
+		try {
+			save(program, file);
+		} catch (IOException e) { // not being able to cache a program shouldn't stop it from running
+		}
+		
+		return program;
+	}
+	
+	static String key (String code) { // the SHA-256 of the source, in hex
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(code.getBytes(StandardCharsets.UTF_8));
+			StringBuilder end = new StringBuilder();
+			
+			for (byte b : hash) {
+				end.append(String.format("%02x", b));
+			}
+			
+			return end.toString();
+		} catch (NoSuchAlgorithmException e) { // every JVM has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	static void save (IExpression program, Path file) throws IOException {
+		Files.createDirectories(file.getParent());
+		
+		Path temp = Files.createTempFile(file.getParent(), "ast", ".tmp"); // written whole and then moved, so another run never sees half a file
+		byte[] ast = AstWriter.write(program);
+		CRC32 crc = new CRC32();
+		crc.update(ast);
+		Files.write(temp, ByteBuffer.allocate(ast.length + 4).put(ast).putInt((int) crc.getValue()).array());
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	static IExpression load (Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // stays valid after the channel closes
+			int end = buffer.capacity() - 4;
+			
+			if (end < 0) {
+				throw new IllegalStateException("Cached program is too short");
+			}
+			
+			// checked whole, here, since function bodies are only read when they're first called, and a broken one shouldn't stop a program half way
+			ByteBuffer ast = buffer.duplicate();
+			ast.limit(end);
+			CRC32 crc = new CRC32();
+			crc.update(ast);
+			
+			if ((int) crc.getValue() != buffer.getInt(end)) {
+				throw new IllegalStateException("Cached program is corrupt");
+			}
+			
+			buffer.limit(end);
+			return AstReader.read(buffer);
+		}
+	}
+}
+
+/**
+ * The format, big-endian, where 'var' is an unsigned int in 7 bit groups (the high bit means another group follows):
+ *
+ * header:  int MAGIC, int VERSION, var string count, then each string as var length and UTF-8 bytes
+ * node:    byte tag, then
+ *          NIL, TRUE, FALSE            nothing
+ *          NUMBER                      double
+ *          STRING, REFERENCE           var string
+ *          LIST, SEQUENCE              var count, nodes
+ *          CALL                        node function, var count, nodes
+ *          OPERATION                   var string type, var count, nodes
+ *          DEFINITION                  var string key, node
+ *          FUNCTION                    var count, var string params, int length of the body in bytes, SEQUENCE body
+ *
+ * The program is a SEQUENCE after the header. Strings are stored once and referred to by their index.
+ * Function bodies are skipped with their length, and only decoded when they're first called.
+ * */
+
+class AstWriter {
+	static final int MAGIC = 0x46415354, VERSION = 1; // "FAST"
+	static final byte NIL = 0, TRUE = 1, FALSE = 2, NUMBER = 3, STRING = 4, REFERENCE = 5, LIST = 6, SEQUENCE = 7,
+			CALL = 8, OPERATION = 9, DEFINITION = 10, FUNCTION = 11;
+	
+	ByteBuffer out = ByteBuffer.allocate(1 << 12);
+	Map<String, Integer> strings = new LinkedHashMap<>();
+	
+	static byte[] write (IExpression program) {
+		AstWriter writer = new AstWriter();
+		writer.node(program);
+		return writer.finish(MAGIC, VERSION);
+	}
+	
+	byte[] finish (int magic, int version) { // the header and string table, then everything written so far
+		AstWriter table = new AstWriter();
+		table.out.putInt(magic).putInt(version);
+		table.var(strings.size());
+		
+		for (String s : strings.keySet()) {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			table.var(bytes.length);
+			table.room(bytes.length);
+			table.out.put(bytes);
+		}
+		
+		table.room(out.position());
+		table.out.put(out.array(), 0, out.position());
+		
+		byte[] end = new byte[table.out.position()];
+		System.arraycopy(table.out.array(), 0, end, 0, end.length);
+		return end;
+	}
+	
+	void node (IExpression node) {
+		room(16);
+		
+		if (node instanceof Nil) {
+			out.put(NIL);
+		} else if (node instanceof NumberLiteral) {
+			out.put(NUMBER).putDouble((Double) ((NumberLiteral) node).value);
+		} else if (node instanceof BooleanLiteral) {
+			out.put((Boolean) ((BooleanLiteral) node).value ? TRUE : FALSE);
+		} else if (node instanceof StringLiteral) {
+			out.put(STRING);
+			var(string((String) ((StringLiteral) node).value));
+		} else if (node instanceof Reference) {
+			out.put(REFERENCE);
+			var(string(((Reference) node).key));
+		} else if (node instanceof ListValue) {
+			out.put(LIST);
+			nodes(((ListValue) node).value);
+		} else if (node instanceof Sequence) {
+			out.put(SEQUENCE);
+			nodes(((Sequence) node).body);
+		} else if (node instanceof FunctionCall) {
+			out.put(CALL);
+			node(((FunctionCall) node).maybeFunc);
+			nodes(((FunctionCall) node).args);
+		} else if (node instanceof Operation) {
+			out.put(OPERATION);
+			var(string(((Operation) node).type));
+			nodes(((Operation) node).operands);
+		} else if (node instanceof Definition) {
+			out.put(DEFINITION);
+			var(string(((Definition) node).key));
+			node(((Definition) node).value);
+		} else if (node instanceof Function && !(node instanceof NamedFunction)) {
+			Function func = (Function) node;
+			out.put(FUNCTION);
+			var(func.params.size());
+			
+			for (String param : func.params) {
+				var(string(param));
+			}
+			
+			room(4);
+			int length = out.position();
+			out.putInt(0); // filled in once the body is written
+			node(func.body());
+			out.putInt(length, out.position() - length - 4);
+		} else {
+			throw new IllegalArgumentException("Can't cache a " + node.getClass().getName());
+		}
+	}
+	
+	void nodes (ArrayList<? extends IExpression> nodes) {
+		var(nodes.size());
+		
+		for (IExpression node : nodes) {
+			node(node);
+		}
+	}
+	
+	int string (String s) {
+		Integer index = strings.get(s);
+		
+		if (index == null) {
+			index = strings.size();
+			strings.put(s, index);
+		}
+		
+		return index;
+	}
+	
+	void var (int n) {
+		room(5);
+		
+		while ((n & ~0x7f) != 0) {
+			out.put((byte) (n & 0x7f | 0x80));
+			n >>>= 7;
+		}
+		
+		out.put((byte) n);
+	}
+	
+	void room (int bytes) { // makes sure there's space for the next few bytes
+		if (out.remaining() < bytes) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes));
+			out.flip();
+			bigger.put(out);
+			out = bigger;
+		}
+	}
+}
+
+class AstReader {
+	ByteBuffer in;
+	String[] strings;
+	
+	AstReader (ByteBuffer in, String[] strings) {
+		this.in = in;
+		this.strings = strings;
+	}
+	
+	static IExpression read (ByteBuffer in) {
+		return new AstReader(in, header(in, AstWriter.MAGIC, AstWriter.VERSION, "cached program")).node();
+	}
+	
+	static String[] header (ByteBuffer in, int magic, int version, String what) { // the string table, after checking the file is what it should be
+		if (in.getInt() != magic || in.getInt() != version) {
+			throw new IllegalStateException("Not a " + what + ", or from another version");
+		}
+		
+		String[] strings = new String[var(in)];
+		
+		for (int i = 0; i < strings.length; i++) {
+			byte[] bytes = new byte[var(in)];
+			in.get(bytes);
+			strings[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		
+		return strings;
+	}
+	
+	IExpression node () {
+		byte tag = in.get();
+		
+		switch (tag) {
+		case AstWriter.NIL:
+			return new Nil();
+		case AstWriter.TRUE:
+			return new BooleanLiteral(true);
+		case AstWriter.FALSE:
+			return new BooleanLiteral(false);
+		case AstWriter.NUMBER:
+			return new NumberLiteral(in.getDouble());
+		case AstWriter.STRING:
+			return new StringLiteral(strings[var()]);
+		case AstWriter.REFERENCE:
+			return new Reference(strings[var()]);
+		case AstWriter.LIST:
+			return new ListValue(values());
+		case AstWriter.SEQUENCE: {
+			ArrayList<IExpression> body = new ArrayList<>();
+			
+			for (int i = var(); i > 0; i--) {
+				body.add(node());
+			}
+			
+			return new Sequence(body);
+		}
+		case AstWriter.CALL: {
+			IValue func = (IValue) node();
+			return new FunctionCall(func, values());
+		}
+		case AstWriter.OPERATION: {
+			String type = strings[var()];
+			return new Operation(type, values());
+		}
+		case AstWriter.DEFINITION: {
+			String key = strings[var()];
+			return new Definition(key, (IValue) node());
+		}
+		case AstWriter.FUNCTION: {
+			ArrayList<String> params = new ArrayList<>();
+			
+			for (int i = var(); i > 0; i--) {
+				params.add(strings[var()]);
+			}
+			
+			int length = in.getInt();
+			
+			if (length < 0 || length > in.remaining()) {
+				throw new IllegalStateException("Function body runs past the end, at " + (in.position() - 4));
+			}
+			
+			ByteBuffer body = in.duplicate(); // its own position, for when the body is called
+			in.position(in.position() + length);
+			
+			return new LazyFunction(params, () -> (Sequence) new AstReader(body, strings).node());
+		}
+		default:
+			throw new IllegalStateException("Unknown node " + tag + " at " + (in.position() - 1));
+		}
+	}
+	
+	static int var (ByteBuffer in) {
+		int n = 0;
+		
+		for (int shift = 0; ; shift += 7) {
+			byte b = in.get();
+			n |= (b & 0x7f) << shift;
+			
+			if (b >= 0) {
+				return n;
+			}
+		}
+	}
+	
+	int var () {
+		return var(in);
+	}
+	
+	ArrayList<IValue> values () {
+		ArrayList<IValue> end = new ArrayList<>();
+		
+		for (int i = var(); i > 0; i--) {
+			end.add((IValue) node());
+		}
+		
+		return end;
+	}
+}
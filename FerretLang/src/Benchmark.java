@@ -0,0 +1,576 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.function.Supplier;
+
+// Rough timings for the interpreter, run with 'java Benchmark <name>' (or no name to run everything)
+// These aren't a replacement for a proper harness, but each one warms up before measuring and compares two modes on the same input
+
+class Benchmark {
+	
+	public static void main (String[] args) {
+		String which = args.length > 0 ? args[0] : "all";
+		
+		if (which.equals("all") || which.equals("lexer")) {
+			lexer();
+		}
+		
+		if (which.equals("all") || which.equals("parse")) {
+			parse();
+		}
+		
+		if (which.equals("all") || which.equals("lazy")) {
+			lazy();
+		}
+		
+		if (which.equals("all") || which.equals("cache")) {
+			cache();
+		}
+		
+		if (which.equals("all") || which.equals("incremental")) {
+			incremental();
+		}
+		
+		if (which.equals("all") || which.equals("resolve")) {
+			resolve();
+		}
+		
+		if (which.equals("all") || which.equals("depth")) {
+			depth();
+		}
+		
+		if (which.equals("all") || which.equals("heap")) {
+			heap();
+		}
+		
+		if (which.equals("all") || which.equals("intern")) {
+			intern();
+		}
+		
+		if (which.equals("all") || which.equals("inline")) {
+			inline();
+		}
+		
+		if (which.equals("all") || which.equals("compile")) {
+			compile();
+		}
+		
+		if (which.equals("all") || which.equals("jit")) {
+			jit();
+		}
+		
+		if (which.equals("all") || which.equals("vm")) {
+			vm();
+		}
+		
+		if (which.equals("all") || which.equals("specialize")) {
+			specialize();
+		}
+		
+		if (which.equals("all") || which.equals("typed")) {
+			typed();
+		}
+		
+		if (which.equals("all") || which.equals("calls")) {
+			calls(args.length > 1 ? args[1] : "../.."); // where the sample programs are, from FerretLang/src
+		}
+	}
+	
+	static double time (int iterations, Supplier<Object> work) { // average milliseconds per iteration, after the same number of warmup iterations
+		for (int i = 0; i < iterations; i++) {
+			work.get();
+		}
+		
+		long start = System.nanoTime();
+		
+		for (int i = 0; i < iterations; i++) {
+			work.get();
+		}
+		
+		return (System.nanoTime() - start) / 1e6 / iterations;
+	}
+	
+	static double[] compare (int iterations, Supplier<Object> baseline, Supplier<Object> candidate) { // alternates the two, so neither gets the JIT to itself, and keeps the best round of each
+		double[] best = { Double.MAX_VALUE, Double.MAX_VALUE };
+		
+		for (int round = 0; round < 3; round++) {
+			best[0] = Math.min(best[0], time(iterations, baseline));
+			best[1] = Math.min(best[1], time(iterations, candidate));
+		}
+		
+		return best;
+	}
+	
+	static void report (String name, double baseline, double candidate) {
+		System.out.println(String.format("%-40s %10.3f ms %10.3f ms %8.2fx", name, baseline, candidate, baseline / candidate));
+	}
+	
+	static String generatedScript (int statements) { // the shape of our machine-generated files: banners, indentation and long strings
+		StringBuilder code = new StringBuilder();
+		
+		for (int i = 0; i < statements; i++) {
+			code.append("################################################################\n");
+			code.append("# generated entry ").append(i).append(", do not edit by hand\n");
+			code.append("################################################################\n");
+			code.append("entry-").append(i).append(" [\n");
+			code.append("                name: \"");
+			
+			for (int j = 0; j < 8; j++) {
+				code.append("a long generated description of the entry, repeated to pad it out ");
+			}
+			
+			code.append("\"\n                value: ").append(i).append(".5\n");
+			code.append("];\n\n");
+		}
+		
+		return code.toString();
+	}
+	
+	static void lexer () {
+		String code = generatedScript(2000);
+		
+		System.out.println("lexer, " + code.length() / 1024 + " KB of generated code");
+		System.out.println(String.format("%-40s %13s %13s %9s", "", "scalar", "bulk", "speedup"));
+		
+		double[] scan = compare(100, () -> {
+			Lexer.bulkMode = false;
+			return Lexer.scanTokens(code);
+		}, () -> {
+			Lexer.bulkMode = true;
+			return Lexer.scanTokens(code);
+		});
+		Lexer.bulkMode = false;
+		
+		report("Lexer.scanTokens", scan[0], scan[1]);
+		report("Lexer.lexLegacy vs scalar scanTokens", time(2, () -> Lexer.lexLegacy(code)), scan[0]);
+	}
+	
+	static void parse () {
+		String code = generatedScript(10000);
+		
+		System.out.println("lex and parse, " + code.length() / 1024 + " KB of generated code, " + java.util.concurrent.ForkJoinPool.getCommonPoolParallelism() + " worker threads");
+		System.out.println(String.format("%-40s %13s %13s %9s", "", "sequential", "parallel", "speedup"));
+		
+		double[] parse = compare(10, () -> new Parser(Lexer.tokenize(code)).parse(), () -> Parser.parseParallel(code, 1 << 16));
+		
+		report("Parser.parse", parse[0], parse[1]);
+	}
+	
+	static String generatedLibrary (int functions) { // lots of functions, like our script libraries, only a few of which a script calls
+		StringBuilder code = new StringBuilder();
+		
+		for (int i = 0; i < functions; i++) {
+			code.append("lib-").append(i).append(" (a b) > {\n");
+			code.append("    total +(a b ").append(i).append(");\n");
+			code.append("    parts [a b total] << *(total 2);\n");
+			code.append("    if (<(total 100) { print(\"small\" parts); } { print(\"large\" parts); });\n");
+			code.append("    parts:0;\n");
+			code.append("};\n");
+		}
+		
+		code.append("+(lib-1(1 2) lib-2(3 4) lib-3(5 6));\n");
+		return code.toString();
+	}
+	
+	static void lazy () {
+		String code = generatedLibrary(5000);
+		TokenBuffer tokens = Lexer.tokenize(code);
+		
+		System.out.println("parse and run a library, " + code.length() / 1024 + " KB, 5000 functions, 3 of them called");
+		System.out.println(String.format("%-40s %13s %13s %9s", "", "eager", "lazy", "speedup"));
+		
+		double[] parse = compare(20, () -> {
+			Parser.lazyMode = false;
+			return new Parser(tokens).parse().eval(Namespace.stdlib());
+		}, () -> {
+			Parser.lazyMode = true;
+			return new Parser(tokens).parse().eval(Namespace.stdlib());
+		});
+		Parser.lazyMode = false;
+		
+		report("Parser.parse and eval", parse[0], parse[1]);
+	}
+	
+	static void cache () {
+		String code = generatedLibrary(5000);
+		byte[] cached = AstWriter.write(Parser.parse(code));
+		
+		System.out.println("load a library, " + code.length() / 1024 + " KB of source, " + cached.length / 1024 + " KB cached");
+		System.out.println(String.format("%-40s %13s %13s %9s", "", "parsed", "cached", "speedup"));
+		
+		double[] load = compare(20, () -> Parser.parse(code), () -> AstReader.read(java.nio.ByteBuffer.wrap(cached)));
+		
+		report("Parser.parse vs AstReader.read", load[0], load[1]);
+	}
+	
+	static void incremental () { // an editor sending the whole buffer again after every keystroke, typing in the middle of it
+		String code = generatedLibrary(340);
+		int middle = code.indexOf("lib-170 ");
+		String[] edits = new String[64];
+		
+		for (int i = 0; i < edits.length; i++) {
+			edits[i] = code.substring(0, middle) + "x" + i + " " + i + ";\n" + code.substring(middle);
+		}
+		
+		IncrementalParser parser = new IncrementalParser();
+		int[] keystroke = { 0 };
+		
+		System.out.println("re-parse an edited buffer, " + code.split("\n").length + " lines");
+		System.out.println(String.format("%-40s %13s %13s %9s", "", "full", "incremental", "speedup"));
+		
+		double[] parse = compare(200, () -> Parser.parse(edits[keystroke[0]++ % edits.length]), () -> parser.parse(edits[keystroke[0]++ % edits.length]));
+		
+		report("Parser.parse vs IncrementalParser.parse", parse[0], parse[1]);
+	}
+	
+	static final String recursive = "sum (n) > { if (<(n 1) { 0; } { +(n sum(-(n 1))); }); };\n"; // the shape of lenHelper and forHelper in sample.ft
+	
+	static void resolve () {
+		System.out.println("recursive sum, by depth");
+		System.out.println(String.format("%-40s %13s %13s %9s", "", "Reference", "resolved", "speedup"));
+		
+		for (int depth : new int[] { 50, 100, 200, 400 }) {
+			String code = recursive + "sum(" + depth + ");";
+			
+			double[] run = compare(20, () -> Parser.parse(code).eval(Namespace.stdlib()), () -> Resolver.resolve(Parser.parse(code)).eval(Namespace.stdlib()));
+			
+			report("sum(" + depth + ")", run[0], run[1]);
+		}
+	}
+	
+	static void depth () { // how the cost of a call grows with the depth of the recursion it's in
+		System.out.println("recursive sum, time per level of recursion");
+		System.out.println(String.format("%-40s %13s %13s %13s", "", "Reference", "resolved", "shallow"));
+		
+		for (int depth : new int[] { 100, 200, 400, 800, 1600, 3200 }) {
+			String code = recursive + "sum(" + depth + ");";
+			IExpression program = Parser.parse(code);
+			IExpression resolved = Resolver.resolve(Parser.parse(code));
+			double[] run = { 0, 0, 0 };
+			
+			Thread thread = new Thread(null, () -> { // deep recursion needs a bigger stack
+				int iterations = Math.max(4, 3200 / depth);
+				
+				for (int round = 0; round < 3; round++) {
+					run[0] = time(iterations, () -> program.eval(Namespace.stdlib()));
+					run[1] = time(iterations, () -> resolved.eval(Namespace.stdlib()));
+					run[2] = time(iterations, () -> program.eval(Namespace.stdlib(true)));
+				}
+			}, "depth", 1 << 28);
+			thread.start();
+			
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				return;
+			}
+			
+			System.out.println(String.format("%-40s %10.3f us %10.3f us %10.3f us", "sum(" + depth + ")", run[0] * 1000 / depth, run[1] * 1000 / depth, run[2] * 1000 / depth));
+		}
+	}
+	
+	static Object kept; // see retained
+	
+	static long used () {
+		Runtime runtime = Runtime.getRuntime();
+		
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+	
+	static long retained (Supplier<Object> build) { // bytes of heap one result of build holds on to, averaged over a few of them
+		Object[] results = new Object[4];
+		long before = used();
+		
+		for (int i = 0; i < results.length; i++) {
+			results[i] = build.get();
+		}
+		
+		long after = used();
+		kept = results; // so the results are still reachable when after is measured
+		kept = null;
+		return (after - before) / results.length;
+	}
+	
+	static void heap () {
+		String code = generatedLibrary(5000);
+		int nodes = new FlatAst(Parser.parse(code)).size();
+		
+		System.out.println("heap held by a parsed library, " + code.length() / 1024 + " KB, " + nodes + " nodes");
+		System.out.println(String.format("%-40s %13s %13s %9s", "", "objects", "flat", "smaller"));
+		
+		long graph = retained(() -> Parser.parse(code));
+		long flat = retained(() -> new FlatAst(Parser.parse(code))); // the tree it's made from is garbage by the time it's measured
+		
+		System.out.println(String.format("%-40s %10d KB %10d KB %8.2fx", "retained", graph / 1024, flat / 1024, (double) graph / flat));
+		System.out.println(String.format("%-40s %11d B  %11d B", "per node", graph / nodes, flat / nodes));
+		
+		String sum = recursive + "sum(200);";
+		IExpression objects = Resolver.resolve(Parser.parse(sum));
+		IExpression flattened = FlatAst.flatten(objects);
+		
+		System.out.println(String.format("%-40s %13s %13s %9s", "", "objects", "flat", "speedup"));
+		double[] run = compare(200, () -> objects.eval(Namespace.stdlib()), () -> flattened.eval(Namespace.stdlib()));
+		report("eval sum(200)", run[0], run[1]);
+	}
+	
+	static String generatedTemplates (int entries) { // what our code generator writes, the same lambdas and lists over and over
+		StringBuilder code = new StringBuilder();
+		
+		for (int i = 0; i < entries; i++) {
+			code.append("squares-").append(i).append(" for ([1 2 3 4] { *(@1 @1); });\n");
+			code.append("check-").append(i).append(" (x) > { if (<(x 100) { print(\"small\" [1 2 3 4]); } { print(\"large\" [1 2 3 4]); }); };\n");
+			code.append("check-").append(i).append("(squares-").append(i).append(":").append(i % 4).append(");\n");
+		}
+		
+		return code.toString();
+	}
+	
+	static void intern () {
+		String code = generatedTemplates(5000);
+		Interner counted = new Interner();
+		counted.canonical(Parser.parse(code));
+		
+		System.out.println("heap held by a generated script, " + code.length() / 1024 + " KB, " + counted.report());
+		System.out.println(String.format("%-40s %13s %13s %9s", "", "parsed", "interned", "smaller"));
+		
+		long parsed = retained(() -> Parser.parse(code));
+		long interned = retained(() -> { // with the table it was interned with
+			Interner interner = new Interner();
+			return new Object[] { interner.canonical(Parser.parse(code)), interner };
+		});
+		
+		System.out.println(String.format("%-40s %10d KB %10d KB %8.2fx", "retained", parsed / 1024, interned / 1024, (double) parsed / interned));
+		System.out.println(String.format("%-40s %10d KB", "saved", (parsed - interned) / 1024));
+		System.out.println(String.format("%-40s %10d KB", "saved, as Interner.report estimates it", counted.saved / 1024));
+		System.out.println(String.format("%-40s %10.3f ms", "Interner.canonical", time(10, () -> new Interner().canonical(Parser.parse(code))) - time(10, () -> Parser.parse(code))));
+	}
+	
+	static long allocated () { // bytes of heap this thread has allocated so far (HotSpot only)
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	static void calls (String samples) { // heap allocated for each function call, running the sample programs over and over
+		System.out.println("heap allocated per call, running a sample");
+		System.out.println(String.format("%-40s %13s %13s %13s", "", "calls a run", "Namespace", "shallow"));
+		PrintStream out = System.out;
+		
+		for (String name : new String[] { "rec_factorial", "fibonacci" }) {
+			IExpression program;
+			
+			try {
+				program = Parser.parse(new String(Files.readAllBytes(Paths.get(samples, name + ".ft"))));
+			} catch (IOException e) {
+				System.out.println("Couldn't read " + name + ".ft from " + samples + ", give the directory after 'calls'");
+				return;
+			}
+			
+			long[] bytes = { 0, 0 };
+			long calls = 0;
+			int runs = 2000;
+			System.setOut(new PrintStream(new OutputStream() { public void write (int b) {} })); // the samples print
+			
+			try {
+				for (int mode = 0; mode < 2; mode++) {
+					Namespace ns = Namespace.stdlib(mode == 1); // made before measuring, and used for every run
+					time(runs, () -> program.eval(ns)); // warms up first
+					
+					long before = allocated();
+					long called = ns.frames().calls;
+					
+					for (int i = 0; i < runs; i++) {
+						program.eval(ns);
+					}
+					
+					bytes[mode] = allocated() - before;
+					calls = ns.frames().calls - called;
+				}
+			} finally {
+				System.setOut(out);
+			}
+			
+			System.out.println(String.format("%-40s %13d %11d B  %11d B", name + ".ft", calls / runs, bytes[0] / calls, bytes[1] / calls));
+		}
+	}
+	
+	static void inline () { // a call's function found by name through every scope, against the cache at the call
+		System.out.println("recursive sum, time per level of recursion");
+		System.out.println(String.format("%-40s %13s %13s %9s", "", "looked up", "cached", "speedup"));
+		
+		for (int depth : new int[] { 100, 200, 400, 800, 1600 }) {
+			IExpression program = Parser.parse(recursive + "sum(" + depth + ");");
+			double[] run = { 0, 0 };
+			
+			Thread thread = new Thread(null, () -> { // deep recursion needs a bigger stack
+				int iterations = Math.max(4, 3200 / depth);
+				
+				try {
+					CallCache.inlineMode = false;
+					run[0] = time(iterations, () -> program.eval(Namespace.stdlib()));
+					CallCache.inlineMode = true;
+					run[1] = time(iterations, () -> program.eval(Namespace.stdlib()));
+				} finally {
+					CallCache.inlineMode = true;
+				}
+			}, "inline", 1 << 28);
+			thread.start();
+			
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				return;
+			}
+			
+			System.out.println(String.format("%-40s %10.3f us %10.3f us %8.2fx", "sum(" + depth + ")", run[0] * 1000 / depth, run[1] * 1000 / depth, run[0] / run[1]));
+		}
+	}
+	
+	static void compile () { // the tree walker against the same program compiled into closures
+		String fib = "fib (n) > { if (<(n 2) { n; } { +(fib(-(n 1)) fib(-(n 2))); }); };\n";
+		String[][] programs = {
+			{ "sum(200)", recursive + "sum(200);" },
+			{ "fib(18)", fib + "fib(18);" },
+			{ "loop 20000", "add (x y z) > { +(x y z); }; s 0; for (0...20000 { s +(s add(@1 1 2)); }); s;" },
+			{ "list index 20000", "l 0...100; s 0; for (0...20000 { s +(s l:50); }); s;" },
+		};
+		
+		System.out.println("run a program");
+		System.out.println(String.format("%-40s %13s %13s %9s", "", "resolved", "compiled", "speedup"));
+		
+		for (String[] program : programs) {
+			IExpression resolved = Resolver.resolve(Parser.parse(program[1]));
+			IExpression compiled = ClosureCompiler.compile(Parser.parse(program[1]));
+			double[] run = compare(50, () -> resolved.eval(Namespace.stdlib()), () -> compiled.eval(Namespace.stdlib()));
+			report(program[0], run[0], run[1]);
+		}
+	}
+	
+	static void jit () { // the functions in rec_factorial.ft and fibonacci.ft, interpreted, compiled to closures, compiled to classes, and written in Java
+		String factorial = "factorial (n) > { if (<=(n 1) { 1; } { *(n factorial(-(n 1))); }); };";
+		String fibonacci = "fibonacci { end [1]; oldNumber 0; number 1; for (0...@1 { sum +(oldNumber number); end << sum; oldNumber number; number sum; }); end; };";
+		FerretSample java = new FerretSample();
+		
+		System.out.println("run a function, microseconds a call");
+		System.out.println(String.format("%-40s %13s %13s %13s %13s", "", "resolved", "closures", "jit", "Java"));
+		
+		for (String[] run : new String[][] { { factorial, "factorial(25);" }, { fibonacci, "fibonacci(10);" } }) {
+			IExpression call = Parser.parse(run[1]);
+			Namespace[] modes = { Namespace.stdlib(), Namespace.stdlib(), Namespace.stdlib() };
+			Resolver.resolve(Parser.parse(run[0])).eval(modes[0]);
+			ClosureCompiler.compile(Parser.parse(run[0])).eval(modes[1]);
+			Jit.prepare(Parser.parse(run[0])).eval(modes[2]);
+			double[] times = new double[4];
+			
+			for (int round = 0; round < 3; round++) { // the first round is where the jit compiles it
+				for (int mode = 0; mode < 3; mode++) {
+					Namespace ns = modes[mode];
+					times[mode] = time(20000, () -> call.eval(ns));
+				}
+				
+				times[3] = time(20000, () -> run[1].startsWith("factorial") ? java.factorial(25) : java.fibonacci(10));
+			}
+			
+			System.out.println(String.format("%-40s %10.3f us %10.3f us %10.3f us %10.3f us", run[1], times[0] * 1000, times[1] * 1000, times[2] * 1000, times[3] * 1000));
+		}
+	}
+	
+	static void vm () { // the tree walker against the register machine, and loading a library from source against from a .fbc
+		String fib = "fib (n) > { if (<(n 2) { n; } { +(fib(-(n 1)) fib(-(n 2))); }); };\n";
+		String[][] programs = {
+			{ "sum(200)", recursive + "sum(200);" },
+			{ "fib(18)", fib + "fib(18);" },
+			{ "loop 20000", "add (x y z) > { +(x y z); }; s 0; for (0...20000 { s +(s add(@1 1 2)); }); s;" },
+			{ "list index 20000", "l 0...100; s 0; for (0...20000 { s +(s l:50); }); s;" },
+		};
+		
+		System.out.println("run a program");
+		System.out.println(String.format("%-40s %13s %13s %9s", "", "resolved", "vm", "speedup"));
+		
+		for (String[] program : programs) {
+			IExpression resolved = Resolver.resolve(Parser.parse(program[1]));
+			IExpression vm = Vm.prepare(Parser.parse(program[1]));
+			double[] run = compare(50, () -> resolved.eval(Namespace.stdlib()), () -> vm.eval(Namespace.stdlib()));
+			report(program[0], run[0], run[1]);
+		}
+		
+		String code = generatedLibrary(5000);
+		byte[] compiled = VmWriter.write(Vm.compile(Parser.parse(code)));
+		
+		System.out.println("load a library, " + code.length() / 1024 + " KB of source, " + compiled.length / 1024 + " KB compiled");
+		System.out.println(String.format("%-40s %13s %13s %9s", "", "parsed", "loaded", "speedup"));
+		
+		double[] load = compare(20, () -> Parser.parse(code), () -> VmReader.program(java.nio.ByteBuffer.wrap(compiled)));
+		
+		report("Parser.parse vs VmReader.program", load[0], load[1]);
+	}
+	
+	static void specialize () { // call sites that have only been given numbers (or strings, or lists) doing the core function's work themselves
+		String fib = "fib (n) > { if (<(n 2) { n; } { +(fib(-(n 1)) fib(-(n 2))); }); };\n";
+		String[][] programs = {
+			{ "sum(200)", recursive + "sum(200);" },
+			{ "fib(18)", fib + "fib(18);" },
+			{ "concat 5000", "s \"\"; for (0...5000 { s +(\"ab\" @1); }); s;" },
+			{ "list index 20000", "l 0...100; s 0; for (0...20000 { s +(s l:50); }); s;" },
+		};
+		
+		System.out.println("run a program");
+		System.out.println(String.format("%-40s %13s %13s %9s", "", "generic", "specialized", "speedup"));
+		
+		for (String[] program : programs) {
+			IExpression generic = Resolver.resolve(Parser.parse(program[1]));
+			IExpression specialized = Resolver.resolve(Parser.parse(program[1]));
+			double[] run = compare(50, () -> {
+				Specialization.specializeMode = false;
+				return generic.eval(Namespace.stdlib());
+			}, () -> {
+				Specialization.specializeMode = true;
+				return specialized.eval(Namespace.stdlib());
+			});
+			report(program[0], run[0], run[1]);
+		}
+		
+		Specialization.specializeMode = true;
+	}
+	
+	static void typed () { // arithmetic given its arguments as doubles, without a NumberLiteral for each step
+		String[][] programs = {
+			{ "polynomial 20000", "p (x) > { +(*(x x) -(*(x 3) /(x 2))); }; s 0; for (0...20000 { s +(s p(@1)); }); s;" },
+			{ "compare 20000", "c 0; for (0...20000 { if (<(*(@1 2) +(@1 9000)) { c +(c 1); } { c; }); }); c;" },
+		};
+		
+		System.out.println("heap allocated and time for a run");
+		System.out.println(String.format("%-40s %13s %13s %13s %13s", "", "generic", "typed", "generic", "typed"));
+		
+		for (String[] program : programs) {
+			IExpression generic = Resolver.resolve(Parser.parse(program[1]));
+			IExpression typed = Resolver.resolve(Parser.parse(program[1]));
+			Supplier<Object> baseline = () -> {
+				Specialization.specializeMode = false;
+				return generic.eval(Namespace.stdlib());
+			};
+			Supplier<Object> candidate = () -> {
+				Specialization.specializeMode = true;
+				return typed.eval(Namespace.stdlib());
+			};
+			double[] run = compare(50, baseline, candidate); // warms both up, too
+			long[] bytes = new long[2];
+			
+			for (int mode = 0; mode < 2; mode++) {
+				Supplier<Object> eval = mode == 0 ? baseline : candidate;
+				long before = allocated();
+				eval.get();
+				bytes[mode] = allocated() - before;
+			}
+			
+			System.out.println(String.format("%-40s %11d B  %11d B  %10.3f ms %10.3f ms", program[0], bytes[0], bytes[1], run[0], run[1]));
+		}
+		
+		Specialization.specializeMode = true;
+	}
+}
@@ -0,0 +1,288 @@
+import java.util.ArrayList;
+
+// Compiles a program into a tree of Java closures, once, so running it doesn't go back through the nodes
+// Each node becomes an ICompiled that only does what that one node needs, with what it would look up every time (its kind, arity, operator, constants) already decided
+
+class ClosureCompiler {
+	static boolean compileMode = false; // run programs from their compiled form (Entry --compile)
+	
+	/**
+	 * The program is resolved first (see Resolver), so parameters become slot loads and names only ever defined at the top level become global loads.
+	 * Then each node is turned into the closure for its kind:
+	 *
+	 * - literals, named functions and maps return themselves, and a function literal is compiled once into a CompiledFunction
+	 * - a call is picked by its number of arguments (call0 up to call4), a constant argument is passed as it is
+	 * - ':' indexes its compiled operands directly, other operators get their operands as CompiledNodes
+	 * - a call that could be 'if', given two blocks with no parameters, runs the chosen block's body in the caller's scope rather than calling it
+	 *
+	 * That last one is the same as calling the block, as long as it doesn't define anything: its scope would have nothing in it, so every name
+	 * (and every @n, since it has no arguments) is found in the caller's scope anyway. It's only taken if the function really is 'if' when it's called.
+	 * */
+	
+	int inlined = 0; // blocks run in their caller's scope, for the tests
+	
+	static IExpression compile (IExpression program) { // something Entry can evaluate like any other program
+		return new CompiledNode(new ClosureCompiler().compileNode(Resolver.resolve(program)), program);
+	}
+	
+	ICompiled compileNode (IExpression node) {
+		if (node instanceof FlatNode || node instanceof CompiledNode) {
+			throw new IllegalArgumentException("Can't compile a " + node.getClass().getName());
+		} else if (node instanceof ALiteral || node instanceof NamedFunction || node instanceof MapValue) { // these evaluate to themselves
+			IValue value = (IValue) node;
+			return ns -> value;
+		} else if (node instanceof SlotReference) {
+			int slot = ((SlotReference) node).slot;
+			int symbol = ((Reference) node).symbol;
+			return ns -> ns.base >= 0 ? ns.slot(slot) : Utils.orNil(ns.get(symbol)); // not run by Function.call, like SlotReference
+		} else if (node instanceof GlobalReference) {
+			int symbol = ((Reference) node).symbol;
+			return ns -> Utils.orNil(ns.global(symbol));
+		} else if (node.getClass() == Reference.class) {
+			int symbol = ((Reference) node).symbol;
+			return ns -> Utils.orNil(ns.get(symbol));
+		} else if (node instanceof ListValue) {
+			ICompiled[] values = compileAll(((ListValue) node).value);
+			return ns -> { // a new list each time, like ListValue.eval
+				ArrayList<IValue> end = new ArrayList<>(values.length);
+				
+				for (ICompiled value : values) {
+					end.add(value.run(ns));
+				}
+				
+				return new ListValue(end);
+			};
+		} else if (node instanceof Sequence) {
+			return this.sequence(((Sequence) node).body);
+		} else if (node instanceof FunctionCall) {
+			return this.call((FunctionCall) node);
+		} else if (node instanceof Operation) {
+			return this.operation((Operation) node);
+		} else if (node instanceof Definition) {
+			int symbol = ((Definition) node).symbol;
+			ICompiled value = compileNode(((Definition) node).value);
+			return ns -> ns.set(symbol, value.run(ns));
+		} else if (node.getClass() == Function.class) {
+			Function func = (Function) node;
+			CompiledFunction compiled = new CompiledFunction(func.params, func.body, compileNode(func.body));
+			return ns -> compiled;
+		}
+		
+		return node::eval; // anything else (e.g. a Conditional made by hand) is evaluated as it is
+	}
+	
+	ICompiled[] compileAll (ArrayList<? extends IExpression> nodes) {
+		ICompiled[] end = new ICompiled[nodes.size()];
+		
+		for (int i = 0; i < end.length; i++) {
+			end[i] = compileNode(nodes.get(i));
+		}
+		
+		return end;
+	}
+	
+	ICompiled sequence (ArrayList<IExpression> body) {
+		ICompiled[] steps = compileAll(body);
+		
+		switch (steps.length) {
+		case 0: return ns -> new Nil();
+		case 1: return steps[0];
+		case 2: {
+			ICompiled first = steps[0];
+			ICompiled last = steps[1];
+			return ns -> {
+				first.run(ns);
+				return last.run(ns);
+			};
+		}
+		}
+		
+		return ns -> {
+			for (int i = 0; i < steps.length - 1; i++) {
+				steps[i].run(ns);
+			}
+			
+			return steps[steps.length - 1].run(ns);
+		};
+	}
+	
+	ICompiled call (FunctionCall call) {
+		ICompiled callee = this.callee(call);
+		ICompiled[] args = compileAll(call.args);
+		
+		if (args.length == 3 && block(call.args.get(1)) && block(call.args.get(2))) {
+			return this.conditional(call, callee, args);
+		}
+		
+		switch (args.length) { // arguments are evaluated left to right after the function, like FunctionCall
+		case 0:
+			return ns -> Utils.function(callee.run(ns)).call0(ns);
+		case 1: {
+			ICompiled a = args[0];
+			IValue constant = constant(call.args.get(0));
+			
+			if (constant != null) {
+				return ns -> Utils.function(callee.run(ns)).call1(constant, ns);
+			}
+			
+			return ns -> Utils.function(callee.run(ns)).call1(a.run(ns), ns);
+		}
+		case 2: {
+			ICompiled a = args[0];
+			ICompiled b = args[1];
+			IValue first = constant(call.args.get(0));
+			IValue second = constant(call.args.get(1));
+			
+			if (second != null && first == null) { // e.g. '-(n 1)'
+				return ns -> Utils.function(callee.run(ns)).call2(a.run(ns), second, ns);
+			} else if (first != null && second == null) {
+				return ns -> Utils.function(callee.run(ns)).call2(first, b.run(ns), ns);
+			}
+			
+			return ns -> Utils.function(callee.run(ns)).call2(a.run(ns), b.run(ns), ns);
+		}
+		case 3: {
+			ICompiled a = args[0];
+			ICompiled b = args[1];
+			ICompiled c = args[2];
+			return ns -> Utils.function(callee.run(ns)).call3(a.run(ns), b.run(ns), c.run(ns), ns);
+		}
+		case 4: {
+			ICompiled a = args[0];
+			ICompiled b = args[1];
+			ICompiled c = args[2];
+			ICompiled d = args[3];
+			return ns -> Utils.function(callee.run(ns)).call4(a.run(ns), b.run(ns), c.run(ns), d.run(ns), ns);
+		}
+		}
+		
+		return ns -> {
+			Function func = Utils.function(callee.run(ns));
+			ArrayList<IValue> values = new ArrayList<>(args.length);
+			
+			for (ICompiled arg : args) {
+				values.add(arg.run(ns));
+			}
+			
+			return func.call(values, ns);
+		};
+	}
+	
+	ICompiled callee (FunctionCall call) {
+		if (call.symbol != 0) { // a plain name, found through FunctionCall's cache
+			return call::callee;
+		}
+		
+		return compileNode(call.maybeFunc);
+	}
+	
+	ICompiled conditional (FunctionCall call, ICompiled callee, ICompiled[] args) { // 'if (cond { ... } { ... })', see the top
+		ICompiled condition = args[0];
+		ICompiled then = this.inline((Function) call.args.get(1));
+		ICompiled els = this.inline((Function) call.args.get(2));
+		ICompiled b = args[1];
+		ICompiled c = args[2];
+		
+		return ns -> {
+			Function func = Utils.function(callee.run(ns));
+			
+			if (!Utils.isIf(func)) { // 'if' was defined again, it's an ordinary call
+				return func.call3(condition.run(ns), b.run(ns), c.run(ns), ns);
+			}
+			
+			return Utils.truth(condition.run(ns), ns) ? then.run(ns) : els.run(ns); // the blocks evaluate to themselves, so skipping them doesn't change what happens first
+		};
+	}
+	
+	ICompiled inline (Function block) { // the block's body, to run in the caller's scope
+		inlined++;
+		return compileNode(block.body);
+	}
+	
+	static boolean block (IExpression node) { // a function literal with no parameters, that doesn't define anything in its own scope
+		return node.getClass() == Function.class && ((Function) node).params.isEmpty() && !defines(((Function) node).body);
+	}
+	
+	static boolean defines (IExpression node) { // a Definition anywhere in node, other than inside another function, which has its own scope
+		if (node instanceof Definition) {
+			return true;
+		} else if (node instanceof Sequence) {
+			return ((Sequence) node).body.stream().anyMatch(ClosureCompiler::defines);
+		} else if (node instanceof FunctionCall) {
+			return defines(((FunctionCall) node).maybeFunc) || ((FunctionCall) node).args.stream().anyMatch(ClosureCompiler::defines);
+		} else if (node instanceof Operation) {
+			return ((Operation) node).operands.stream().anyMatch(ClosureCompiler::defines);
+		} else if (node instanceof ListValue) {
+			return ((ListValue) node).value.stream().anyMatch(ClosureCompiler::defines);
+		} else if (node instanceof Function || node instanceof ALiteral || node instanceof Reference || node instanceof MapValue) {
+			return false;
+		}
+		
+		return true; // something this doesn't know about might
+	}
+	
+	ICompiled operation (Operation op) {
+		if (op.type.equals(":") && op.operands.size() == 2) { // the same as the ':' in Utils.loadOps
+			ICompiled collection = compileNode(op.operands.get(0));
+			ICompiled key = compileNode(op.operands.get(1));
+			return ns -> ((ICollection) collection.run(ns)).get(key.run(ns), ns);
+		}
+		
+		ArrayList<IValue> operands = new ArrayList<>(op.operands.size()); // the operators evaluate their own operands
+		
+		for (IValue operand : op.operands) {
+			operands.add(new CompiledNode(compileNode(operand), operand));
+		}
+		
+		Operation compiled = new Operation(op.type, operands);
+		return compiled::eval;
+	}
+	
+	static IValue constant (IExpression node) { // node's value if it's always the same one, otherwise null
+		return node instanceof ALiteral || node instanceof NamedFunction ? (IValue) node : null;
+	}
+}
+
+@FunctionalInterface
+interface ICompiled { // a node of a compiled program
+	IValue run(Namespace ns);
+}
+
+class CompiledNode implements IValue { // a compiled node, where something needs an IExpression: the program, a function's body, or an operand
+	final ICompiled code;
+	final IExpression source;
+	
+	CompiledNode (ICompiled code, IExpression source) {
+		this.code = code;
+		this.source = source;
+	}
+	
+	public IValue eval (Namespace ns) {
+		return code.run(ns);
+	}
+	
+	public Datatype getType () {
+		return Datatype.AST_NODE;
+	}
+	
+	public String printOutput () {
+		return "AST node";
+	}
+	
+	public String toString () {
+		return "Compiled " + source.toString();
+	}
+}
+
+class CompiledFunction extends Function { // a function whose body has been compiled
+	final CompiledNode code;
+	
+	CompiledFunction (ArrayList<String> params, Sequence body, ICompiled code) {
+		super(params, body);
+		this.code = new CompiledNode(code, body);
+	}
+	
+	IExpression code () {
+		return this.code;
+	}
+}
@@ -2,6 +2,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
 import java.util.function.Supplier;
 import java.util.function.ToDoubleFunction;
@@ -14,58 +16,182 @@ enum Datatype {
 }
 
 class Namespace { // The core of variable definitions and scoping
-	ArrayList<Map<String, IValue>> namespaces; // Namespaces are stored as a list of maps so that proper scopes can be retained
+	SymbolMap vars; // Namespaces are linked scopes, each one with its own map, pointing to the scope it was made in
+	Namespace parent; // null for the outermost scope
+	Namespace root; // the outermost scope, for GlobalReference
+	Frames frames; // only the outermost scope has one, see frames()
+	int base = -1; // if this scope is a function call, where its arguments start on the stack
+	int count = 0; // and how many there are
+	int[] params; // the function's parameters, as symbols
 	
-	Namespace (ArrayList<Map<String, IValue>> nses) {
-		this.namespaces = nses;
+	int[] versions; // these are only used in the outermost scope, see stamp
+	int environment;
+	boolean branched = false;
+	
+	Namespace (Map<String, IValue> vars, Namespace parent) {
+		this.vars = SymbolMap.of(vars); // keyed by symbol (see Symbols), a map of Strings is copied
+		this.parent = parent;
+		this.root = parent == null ? this : parent.root;
+		this.root.branched |= parent != null;
+	}
+	
+	Namespace (Namespace caller) { // a call's scope, see Frames.open
+		this.vars = new SymbolMap();
+		this.parent = caller;
+		this.root = caller.root;
+	}
+	
+	Namespace (ArrayList<Map<String, IValue>> nses) { // a chain of scopes, outermost first
+		this(nses.get(nses.size() - 1), nses.size() > 1 ? new Namespace(new ArrayList<>(nses.subList(0, nses.size() - 1))) : null);
 	}
 	
 	Namespace () {
-		this.namespaces = new ArrayList<Map<String, IValue>>();
-		namespaces.add(new HashMap<String, IValue>());
+		this(new HashMap<String, IValue>(), null);
 	}
 	
-	IValue get (String key) { // iterate backwards here to look at local scope before larger
-		
-		for (int i = this.namespaces.size() - 1; i >= 0; i--) {
-			Map<String, IValue> map = this.namespaces.get(i);
+	static final IValue MISSING = new Nil(); // tells a key that isn't there from one set to null, with one lookup
+	
+	IValue get (String key) {
+		int symbol = Symbols.find(key);
+		return symbol == 0 ? null : this.get(symbol); // a name with no symbol yet can't have been defined
+	}
+	
+	IValue get (int symbol) { // look at local scope before larger
+		for (Namespace scope = this; scope != null; scope = scope.parent) {
+			IValue value = scope.vars.lookup(symbol);
+			
+			if (value != MISSING) {
+				return value;
+			}
+			
+			int position = scope.base < 0 ? -1 : scope.position(symbol);
 			
-			if (map.containsKey(key)) {
-				return map.get(key);
+			if (position >= 0) {
+				return scope.slot(position);
 			}
 		}
 		
+		return root.beyond(symbol);
+	}
+	
+	IValue beyond (int symbol) { // a name none of the scopes have, a ShallowNamespace under them has its own
 		return null;
 	}
 	
 	IValue set (String key, IValue value) {
-		boolean found = false;
+		return this.set(Symbols.id(key), value);
+	}
+	
+	IValue set (int symbol, IValue value) { // changes the innermost scope that has symbol, the one get would find it in, or makes it a local if none do
+		Namespace scope = this;
 		
-		for (int i = 0; i < this.namespaces.size(); i++) {
-			Map<String, IValue> map = this.namespaces.get(i);
-			
-			if (map.containsKey(key)) {
-				map.put(key, value);
-				found = true;
-			}
+		while (scope != null && scope.vars.lookup(symbol) == MISSING && (scope.base < 0 || scope.position(symbol) < 0)) {
+			scope = scope.parent;
+		}
+		
+		if (scope == null && root.beyond(symbol) != null) {
+			return root.set(symbol, value);
+		}
+		
+		(scope == null ? this : scope).vars.put(symbol, value); // an argument that's assigned to becomes a local, so @n still has the value it was given
+		this.changed(symbol);
+		return value;
+	}
+	
+	/**
+	 * A stamp says which value get would find for a name, without finding it. FunctionCall caches the Function it called with the stamp its name had.
+	 * Every scope that's in use is on the current chain of calls (a function is called in its caller's scope), so get can only give something else if
+	 * a name is set, or a call that binds it starts or ends. Each of those counts as a change to the name, in versions, kept by the outermost scope.
+	 *
+	 * Scopes made any other way (copyWith, or a chain of maps) can be looked at from off that chain, so there's no stamp under a root that has them.
+	 * */
+	
+	int stamp (int symbol) { // -1 if there's no stamp
+		Namespace root = this.root;
+		
+		if (root.branched) {
+			return -1;
 		}
 		
-		if (!found) {
-			namespaces.get(namespaces.size() - 1).put(key, value);
+		if (root.versions == null || symbol >= root.versions.length) {
+			root.versions = Arrays.copyOf(root.versions == null ? new int[64] : root.versions, Math.max(symbol + 1, root.versions == null ? 64 : root.versions.length * 2));
 		}
 		
-		return this.get(key);
+		return root.versions[symbol];
+	}
+	
+	void changed (int symbol) {
+		int[] versions = root.versions;
+		
+		if (versions != null && symbol < versions.length) { // no stamp has been given out for symbol otherwise
+			versions[symbol] = (versions[symbol] + 1) & Integer.MAX_VALUE;
+		}
+	}
+	
+	static final AtomicInteger environments = new AtomicInteger();
+	
+	int environment () { // a number for the outermost scope, which tells programs apart in FunctionCall's cache
+		Namespace root = this.root;
+		
+		if (root.environment == 0) {
+			root.environment = environments.incrementAndGet();
+		}
+		
+		return root.environment;
+	}
+	
+	int position (int symbol) { // which of this call's arguments symbol is, or -1
+		for (int i = params.length - 1; i >= 0; i--) { // with a repeated parameter, the last one wins
+			if (params[i] == symbol) {
+				return i;
+			}
+		}
+		
+		int n = symbol <= Symbols.ARGS ? symbol : count > Symbols.ARGS ? Symbols.argNumber(symbol) : 0; // @1 up to @32 are symbols 1 to 32
+		return n >= 1 && n <= count ? n - 1 : -1;
+	}
+	
+	IValue slot (int position) { // one of this call's arguments, for SlotReference
+		return root.frames.stack[base + position];
+	}
+	
+	Frames frames () { // the stack of calls in progress, made the first time something is called
+		Frames frames = root.frames;
+		return frames != null ? frames : (root.frames = new Frames());
 	}
 	
 	Namespace copyWith (Map<String, IValue> otherMap) { // this function is called when a new funcion/scope is introduced
-		ArrayList<Map<String, IValue>> end = new ArrayList<>();
-		end.addAll(namespaces);
-		end.add(otherMap); // in order to ensure modifications to global variables (or variables outside the scope) still get modified (maybe closures?)
-							// uses the fact that Java will just pass down the pointers to the maps in any new namespaces created, so the same object is reference during set/get operations
-		return new Namespace(end);
+		return new Namespace(otherMap, this); // the outer scopes are shared, not copied, so modifications to global variables (or variables outside the scope) still get modified
+	}
+	
+	IValue enter (IExpression body, int[] params, int count) { // evaluates a function body in a new scope, whose arguments are the top count values on the stack
+		Frames frames = this.frames();
+		Namespace scope = frames.open(this, params, count);
+		
+		try {
+			return body.eval(scope);
+		} finally {
+			frames.close(scope);
+		}
+	}
+	
+	IValue global (String key) {
+		int symbol = Symbols.find(key);
+		return symbol == 0 ? null : this.global(symbol);
 	}
 	
+	IValue global (int symbol) { // the outermost scope's value for symbol, for GlobalReference
+		IValue value = this.root.vars.lookup(symbol);
+		return value == MISSING ? root.beyond(symbol) : value;
+	}
+	
+	static boolean shallowMode = false; // programs are run in a ShallowNamespace instead (Entry --shallow)
+	
 	static Namespace stdlib () { // the "standard library", essentially a manual namespace created to access "named functions". Should be passed into the first sequences eval
+		return stdlib(shallowMode);
+	}
+	
+	static Namespace stdlib (boolean shallow) {
 		Map<String, IValue> mappings = new HashMap<>();
 		
 		Utils utils = new Utils();
@@ -73,15 +199,265 @@ class Namespace { // The core of variable definitions and scoping
 		
 		utils.funcs.forEach((s, v) -> { mappings.put(s, new NamedFunction(s, utils)); }); // put a corresponding string to each named function for each named function in the collection
 		
-		return new Namespace(Utils.list(mappings)); // return a new namespace
+		return shallow ? new ShallowNamespace(mappings) : new Namespace(mappings, null); // return a new namespace
 	}
 }
 
-interface IExpression { // Everything in the AST is an IExpression
-	Namespace getNamespace(); // some of these methods are redundant or not necessary
-	void setNamespace(Namespace ns);
-	IValue eval(Namespace ns); // used to recursively evaluate the final tree
+class ShallowNamespace extends Namespace { // the same scoping rules as Namespace, with shallow binding
+	
+	/**
+	 * Instead of a map for each scope that get searches through from the innermost out, every name has one Binding holding the value it has right now,
+	 * so get and set are a single lookup however deep the calls are. A call saves the Bindings it changes on a stack, and puts them back when it returns.
+	 *
+	 * There's only one ShallowNamespace for a whole program, the scopes are the calls on the save stack rather than objects.
+	 * That works because a Function is always called in its caller's scope and never keeps one, but a scope can't be looked at after its call returns.
+	 * A scope made with copyWith is an ordinary Namespace, which finds any name it doesn't have here (see beyond).
+	 * */
+	
+	static class Binding {
+		IValue value; // null while the name isn't defined
+	}
+	
+	Binding[] bindings = new Binding[64]; // by symbol, symbols are numbered from 1 up so this is a plain array rather than a hash table
+	Binding[] saved = new Binding[64]; // the save stack, a Binding some call changed, and the value it had before
+	IValue[] before = new IValue[64];
+	int top = 0;
+	int calls = 0; // calls in progress, nothing is saved at the top level since it's never restored
+	
+	ShallowNamespace (Map<String, IValue> globals) {
+		super(new HashMap<String, IValue>(), null);
+		globals.forEach(this::set);
+	}
+	
+	ShallowNamespace () {
+		this(new HashMap<String, IValue>());
+	}
+	
+	IValue get (int symbol) {
+		Binding binding = symbol < bindings.length ? bindings[symbol] : null;
+		return binding == null ? null : binding.value;
+	}
+	
+	IValue set (int symbol, IValue value) { // the value a name has now is always its innermost one, so that's what changes, or it's a new local if there isn't one
+		Binding binding = this.binding(symbol);
+		
+		if (binding.value == null) {
+			this.save(binding);
+		}
+		
+		binding.value = value;
+		return value;
+	}
+	
+	IValue global (int symbol) { // names GlobalReference is used for are never defined inside a function, so their value now is the global one
+		return this.get(symbol);
+	}
+	
+	int stamp (int symbol) { // get is one lookup already, so FunctionCall doesn't cache anything here
+		return -1;
+	}
+	
+	IValue enter (IExpression body, int[] params, int count) {
+		int mark = top;
+		int callerBase = this.base;
+		IValue[] stack = this.frames().stack;
+		int base = this.frames().top - count;
+		calls++;
+		
+		try {
+			for (int i = 0; i < count; i++) {
+				this.bind(Symbols.arg(i + 1), stack[base + i]);
+			}
+			
+			for (int i = 0; i < params.length; i++) { // after @n, so a parameter called '@2' still wins, like Namespace.position
+				this.bind(params[i], stack[base + i]);
+			}
+			
+			this.base = base;
+			return body.eval(this);
+		} finally { // an error thrown out of the call still leaves its caller's values
+			while (top > mark) {
+				top--;
+				saved[top].value = before[top];
+				saved[top] = null;
+				before[top] = null;
+			}
+			
+			this.base = callerBase;
+			calls--;
+		}
+	}
+	
+	IValue beyond (int symbol) { // for the scopes made with copyWith
+		return this.get(symbol);
+	}
+	
+	int position (int symbol) { // arguments are bound like any other name, so a scope under this never finds them by position here
+		return -1;
+	}
+	
+	Binding binding (int symbol) {
+		if (symbol >= bindings.length) {
+			bindings = Arrays.copyOf(bindings, Math.max(symbol + 1, bindings.length * 2));
+		}
+		
+		Binding binding = bindings[symbol];
+		
+		if (binding == null) {
+			binding = new Binding();
+			bindings[symbol] = binding;
+		}
+		
+		return binding;
+	}
+	
+	void bind (int symbol, IValue value) { // a call's argument, saving what the name had before
+		Binding binding = this.binding(symbol);
+		this.save(binding);
+		binding.value = value;
+	}
+	
+	void save (Binding binding) {
+		if (calls == 0) {
+			return;
+		}
+		
+		if (top == saved.length) {
+			saved = Arrays.copyOf(saved, top * 2);
+			before = Arrays.copyOf(before, top * 2);
+		}
+		
+		saved[top] = binding;
+		before[top] = binding.value;
+		top++;
+	}
+}
+
+class Frames { // the function calls in progress under one outermost Namespace, so that making a call doesn't need anything new on the heap
+	
+	/**
+	 * A call's arguments are pushed onto the stack, and its scope reads them from there, by position, instead of copying them into a map.
+	 * The scope objects are kept too, one for each depth of calls, and used again by the next call that deep.
+	 * That's safe since nothing keeps a Namespace once the eval it was given to returns.
+	 *
+	 * One outermost Namespace is only ever used by one thread at a time, so each program being run (and each thread) has its own Frames.
+	 * */
+	
+	IValue[] stack = new IValue[64];
+	int top = 0;
+	Namespace[] scopes = new Namespace[16];
+	int depth = 0;
+	long calls = 0; // Functions called so far, for Benchmark
+	
+	void push (IValue value) {
+		if (top == stack.length) {
+			stack = Arrays.copyOf(stack, top * 2);
+		}
+		
+		stack[top++] = value;
+	}
+	
+	void pop (int count) {
+		for (int i = 0; i < count; i++) {
+			stack[--top] = null; // so the stack doesn't keep values alive
+		}
+	}
+	
+	int reserve (int count) { // count empty places on top of the stack, for Vm's registers, returns where they start
+		int base = top;
+		
+		if (top + count > stack.length) {
+			stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top + count));
+		}
+		
+		top += count;
+		return base;
+	}
+	
+	void release (int base) { // everything from base up, which was reserved
+		Arrays.fill(stack, base, top, null);
+		top = base;
+	}
+	
+	Namespace open (Namespace caller, int[] params, int count) { // a call's scope, its arguments are the top count values on the stack
+		if (depth == scopes.length) {
+			scopes = Arrays.copyOf(scopes, depth * 2);
+		}
+		
+		Namespace scope = scopes[depth];
+		
+		if (scope == null) {
+			scope = new Namespace(caller);
+			scopes[depth] = scope;
+		}
+		
+		depth++;
+		scope.parent = caller;
+		scope.params = params;
+		scope.base = top - count;
+		scope.count = count;
+		changed(scope);
+		return scope;
+	}
+	
+	void close (Namespace scope) {
+		depth--;
+		changed(scope);
+		
+		for (int i = 0; i < scope.vars.keys.length && scope.vars.size > 0; i++) { // the locals the call defined
+			if (scope.vars.keys[i] != 0) {
+				scope.changed(scope.vars.keys[i]);
+			}
+		}
+		
+		scope.vars.clear();
+		scope.parent = null;
+	}
+	
+	void changed (Namespace scope) { // the call binds its parameters while it's running (@n is never cached, see FunctionCall)
+		for (int i = 0; i < scope.params.length; i++) {
+			scope.changed(scope.params[i]);
+		}
+	}
+}
+
+interface IExpression { // Everything in the AST is an IExpression, and can't be changed once it's made, so one tree can be evaluated by several threads at once
+	IValue eval(Namespace ns); // used to recursively evaluate the final tree, the namespace is only ever passed down, never kept
 	String printOutput(); // similar to Java's toString method, used for 'print();' calls
+	
+	default double evalDouble (Namespace ns) { // eval, where a number is wanted, without making a NumberLiteral if it can help it (see Specialization)
+		return UnexpectedValue.number(this.eval(ns));
+	}
+	
+	default boolean evalBoolean (Namespace ns) { // and where a boolean is
+		return UnexpectedValue.bool(this.eval(ns));
+	}
+}
+
+class UnexpectedValue extends RuntimeException { // what evalDouble or evalBoolean throws when the value isn't one, so the caller can carry on with it the generic way
+	private static final long serialVersionUID = 1L;
+	final IValue value;
+	
+	UnexpectedValue (IValue value) {
+		super(null, null, false, false); // not an error, so no stack trace
+		this.value = value;
+	}
+	
+	static double number (IValue value) {
+		if (value instanceof NumberLiteral) {
+			return (Double) ((NumberLiteral) value).value;
+		}
+		
+		throw new UnexpectedValue(value);
+	}
+	
+	static boolean bool (IValue value) {
+		if (value instanceof BooleanLiteral) {
+			return (Boolean) ((BooleanLiteral) value).value;
+		}
+		
+		throw new UnexpectedValue(value);
+	}
 }
 
 interface IValue extends IExpression { // represents a value in the AST
@@ -98,17 +474,11 @@ class Nil extends ALiteral { // analogous to null
 	Nil () {
 		super(null);
 	}
-
-	public Namespace getNamespace() {
-		return null;
-	}
 	
 	public IValue eval(Namespace ns) {
 		return this;
 	}
 	
-	public void setNamespace (Namespace ns) {}
-	
 	public String printOutput () {
 		return "nil";
 	}
@@ -138,7 +508,7 @@ class Nil extends ALiteral { // analogous to null
 // LITERALS
 
 abstract class ALiteral implements IValue { // encompasses all literals supported by the language: Numbers, Booleans, and Strings
-	Object value;                          // Basically a wrapper around Java's Types
+	final Object value;                    // Basically a wrapper around Java's Types
 	
 	ALiteral (Object value, Namespace ns) {
 		this.value = value;
@@ -147,18 +517,11 @@ abstract class ALiteral implements IValue { // encompasses all literals supporte
 	ALiteral (Object value) {
 		this.value = value;
 	}
-
-	public Namespace getNamespace() {
-		return null;
-	}
 	
 	public IValue eval(Namespace ns) {
-		this.setNamespace(ns);
 		return this;
 	}
 	
-	public void setNamespace (Namespace ns) {}
-	
 	public String printOutput () {
 		return value.toString();
 	}
@@ -177,6 +540,14 @@ class NumberLiteral extends ALiteral {
 	NumberLiteral (Number value) {
 		super(value.doubleValue());
 	}
+	
+	NumberLiteral (double value) { // without boxing it twice
+		super(value);
+	}
+	
+	public double evalDouble (Namespace ns) {
+		return (Double) value;
+	}
 
 	public Datatype getType () {
 		return Datatype.NUMBER;
@@ -191,6 +562,10 @@ class BooleanLiteral extends ALiteral {
 	BooleanLiteral (boolean value) {
 		super(value);
 	}
+	
+	public boolean evalBoolean (Namespace ns) {
+		return (Boolean) value;
+	}
 
 	public Datatype getType () {
 		return Datatype.BOOLEAN;
@@ -218,42 +593,35 @@ class StringLiteral extends ALiteral {
 // References
 
 class Reference implements IValue { // a variable reference, e.g. 'a;' -> 1, assuming a is a variable with a value of 1
-	String key;
-	Namespace ns;
+	final String key;
+	final int symbol; // what it's looked up by, see Symbols
 	
-	Reference (String key, Namespace ns) {
-		this.key = key;
-		this.ns = ns;
+	Reference (String key, Namespace ns) { // like the other nodes, the namespace is only given when it's evaluated, this one is ignored
+		this(key);
 	}
 	
 	Reference (String key) {
 		this.key = key;
-		this.ns = new Namespace();
+		this.symbol = Symbols.id(key);
 	}
 	
-	public IValue eval(Namespace ns) {
-		this.setNamespace(ns);
-		IValue result = this.ns.get(this.key);
-		
-		return result == null ? new Nil() : result.eval(this.ns);
+	Reference (int symbol) { // from the parser, which already has the symbol
+		this.key = Symbols.name(symbol);
+		this.symbol = symbol;
 	}
 	
-	public Namespace getNamespace() {
-		return this.ns;
+	public IValue eval(Namespace ns) {
+		IValue result = ns.get(this.symbol);
+		
+		return result == null ? new Nil() : result; // what's in a namespace has already been evaluated
 	}
 	
 	public Datatype getType() {
 		return Datatype.FUNCTION; // it's not a function, but I can't delegate to the Object class
 	}
 	
-	public void setNamespace (Namespace ns) {
-		this.ns = ns;
-	}
-	
-	public String printOutput () {
-		IValue result = this.ns.get(this.key); // inefficient
-		
-		return result == null ? "nil" : result.printOutput();
+	public String printOutput () { // the value depends on where it's evaluated
+		return this.key;
 	}
 	
 	public String toString () {
@@ -265,24 +633,20 @@ class Reference implements IValue { // a variable reference, e.g. 'a;' -> 1, ass
 
 class ListValue implements ICollection { // represents a list
 	
-	ArrayList<IValue> value;
-	Namespace ns;
+	final ArrayList<IValue> value;
 	
 	ListValue (ArrayList<IValue> value) {
 		this.value = value;
-		this.ns = null;
-	}
-	
-	public Namespace getNamespace() {
-		return this.ns;
 	}
 
-	public IValue eval(Namespace ns) {
-		this.setNamespace(ns);
+	public IValue eval(Namespace ns) { // a new list each time, so '<<' on the result never changes the list written in the program
+		ArrayList<IValue> end = new ArrayList<>(value.size());
+		
 		for (int i = 0; i < value.size(); i++) {
-			value.set(i, value.get(i).eval(ns));
+			end.add(value.get(i).eval(ns));
 		}
-		return this;
+		
+		return new ListValue(end);
 	}
 	
 	public Datatype getType () {
@@ -290,10 +654,8 @@ class ListValue implements ICollection { // represents a list
 	}
 	
 	public IValue get(IValue identifier, Namespace ns) {
-		this.setNamespace(ns);
-		
 		double identifierDouble;
-		IValue maybeIndex = identifier.eval(this.ns); // evaluate first, to get references and such
+		IValue maybeIndex = identifier.eval(ns); // evaluate first, to get references and such
 		
 		if (!(maybeIndex instanceof NumberLiteral)) {
 			throw new IllegalArgumentException("Get operation on List expected an index, given " + maybeIndex.getClass().getName());
@@ -327,13 +689,11 @@ class ListValue implements ICollection { // represents a list
 	// most interactions with lists would occur using a ":" operator
 	
 	public IValue set(IValue entry, IValue location, Namespace ns) { // entry can be whatever, location has to be a NumberLiteral
-		this.setNamespace(ns);
-		
 		// if set is given -1 or the same as the .size of the list, a new thing is added
 		
 		// evaluate both
-		IValue evalEntry = entry.eval(this.ns);
-		IValue evalLocation = location.eval(this.ns);
+		IValue evalEntry = entry.eval(ns);
+		IValue evalLocation = location.eval(ns);
 		
 		if (!(evalLocation instanceof NumberLiteral)) {
 			throw new IllegalArgumentException("Set operation on List given an illegal index");
@@ -368,10 +728,6 @@ class ListValue implements ICollection { // represents a list
 		return this; // or the entry?
 	}
 	
-	public void setNamespace (Namespace ns) {
-		this.ns = ns;
-	}
-	
 	public String printOutput () {
 		return "nil";
 	}
@@ -387,12 +743,10 @@ class ListValue implements ICollection { // represents a list
 
 class MapValue implements ICollection { // represents a map
 	
-	Map<IValue, IValue> value;
-	Namespace ns;
+	final Map<IValue, IValue> value;
 	
 	MapValue (ArrayList<IValue> keys, ArrayList<IValue> values) {
 		this.value = new HashMap<IValue, IValue>();
-		this.ns = new Namespace();
 		
 		if (keys.size() != values.size()) {
 			throw new IllegalArgumentException("Map constructed with an odd number of key/value pairs");
@@ -403,12 +757,7 @@ class MapValue implements ICollection { // represents a map
 		}
 	}
 
-	public Namespace getNamespace() {
-		return this.ns;
-	}
-
 	public IValue eval(Namespace ns) {
-		this.setNamespace(ns);
 		return this;
 	}
 
@@ -416,26 +765,20 @@ class MapValue implements ICollection { // represents a map
 		return Datatype.MAP;
 	}
 	
-	public void setNamespace (Namespace ns) {
-		this.ns = ns;
-	}
-	
 	public String printOutput () {
 		return "map";
 	}
 
 	public IValue get(IValue identifier, Namespace ns) {
-		this.setNamespace(ns);
-		IValue evalKey = identifier.eval(this.ns); // for now, there's no restriction on what can be a key
+		IValue evalKey = identifier.eval(ns); // for now, there's no restriction on what can be a key
 		IValue getVal = this.value.get(evalKey);
 		
 		return getVal == null ? new Nil() : getVal;
 	}
 
 	public IValue set(IValue entry, IValue location, Namespace ns) {
-		this.setNamespace(ns);
-		IValue eEntry = entry.eval(this.ns);
-		IValue eLocation = entry.eval(this.ns);
+		IValue eEntry = entry.eval(ns);
+		IValue eLocation = entry.eval(ns);
 		
 		this.value.put(eLocation, eEntry);
 		
@@ -445,56 +788,102 @@ class MapValue implements ICollection { // represents a map
 
 class Function implements IValue { // represents a (first class) function
 
-	Namespace ns;
-	Sequence body;
-	ArrayList<String> params;
+	final Sequence body;
+	final ArrayList<String> params;
+	final int[] symbols; // the params' symbols
 	
-	Function (ArrayList<String> exArgs, Sequence body, Namespace ns) {
-		this.params = exArgs;
-		this.body = body;
-		this.ns = ns;
+	Function (ArrayList<String> exArgs, Sequence body, Namespace ns) { // a function doesn't keep a namespace, it's called in its caller's
+		this(exArgs, body);
 	}
 	
 	Function (ArrayList<String> exArgs, Sequence body) {
 		this.params = exArgs;
 		this.body = body;
-	}
-	
-	public Namespace getNamespace() {
-		return this.ns;
+		this.symbols = Symbols.ids(exArgs);
 	}
 
 	public IValue eval(Namespace ns) { // returns itself
-		this.setNamespace(ns);
 		return this;
 	}
 	
-	public IValue call(ArrayList<IValue> args, Namespace ns) { // used by a FunctionCall to evaluate the contents of the Function
-		this.setNamespace(ns);
+	public IValue call(ArrayList<IValue> args, Namespace ns) { // used by a FunctionCall to evaluate the contents of the Function, with any number of arguments
+		this.arity(args.size());
+		Frames frames = ns.frames();
 		
-		Map<String, IValue> argNS = new HashMap<>();
+		for (int i = 0; i < args.size(); i++) {
+			frames.push(args.get(i)); // the body sees them as @1 ... @n, and by the parameters' names (e.g 'f (a b) > {};' would name the first two 'a' and 'b')
+		}
 		
-		if (args.size() < params.size()) {
+		return this.run(args.size(), ns);
+	}
+	
+	// call0 up to call4 are the same as call, without a list for the arguments. A NamedFunction makes one if it needs it
+	
+	IValue call0 (Namespace ns) {
+		this.arity(0);
+		return this.run(0, ns);
+	}
+	
+	IValue call1 (IValue a, Namespace ns) {
+		this.arity(1);
+		ns.frames().push(a);
+		return this.run(1, ns);
+	}
+	
+	IValue call2 (IValue a, IValue b, Namespace ns) {
+		this.arity(2);
+		Frames frames = ns.frames();
+		frames.push(a);
+		frames.push(b);
+		return this.run(2, ns);
+	}
+	
+	IValue call3 (IValue a, IValue b, IValue c, Namespace ns) {
+		this.arity(3);
+		Frames frames = ns.frames();
+		frames.push(a);
+		frames.push(b);
+		frames.push(c);
+		return this.run(3, ns);
+	}
+	
+	IValue call4 (IValue a, IValue b, IValue c, IValue d, Namespace ns) {
+		this.arity(4);
+		Frames frames = ns.frames();
+		frames.push(a);
+		frames.push(b);
+		frames.push(c);
+		frames.push(d);
+		return this.run(4, ns);
+	}
+	
+	void arity (int count) {
+		if (count < symbols.length) {
 			throw new IllegalArgumentException("Arity mismatch");
 		}
+	}
+	
+	IValue run (int count, Namespace ns) { // the body, with the top count values on the stack as its arguments, which are popped after
+		Frames frames = ns.frames();
+		frames.calls++;
 		
-		for (int i = 0; i < args.size(); i++) {
-			argNS.put("@" + String.valueOf(i + 1), args.get(i)); // adds @1 ... @n to the namespace
-			
-			if (i < params.size()) {
-				argNS.put(params.get(i), args.get(i)); // adds the expected argument keys to the namespace (e.g 'f (a b) > {};' would add 'a' and 'b' to the function scope)
-			}
+		try {
+			return ns.enter(this.code(), this.symbols, count);
+		} finally {
+			frames.pop(count);
 		}
-		
-		return this.body.eval(this.ns.copyWith(argNS));
 	}
 
-	public Datatype getType() {
-		return null;
+	Sequence body () { // LazyFunction parses its body here, the first time it's needed
+		return this.body;
 	}
 	
-	public void setNamespace (Namespace ns) {
-		this.ns = ns;
+	IExpression code () { // what a call evaluates, a FlatFunction's body is part of a FlatAst instead
+		return this.body();
+	}
+
+	public Datatype getType() {
+		return null;
 	}
 	
 	public String printOutput () {
@@ -502,7 +891,7 @@ class Function implements IValue { // represents a (first class) function
 	}
 	
 	public String toString () {
-		return "Func " + params.toString() + " -> " + body.toString();
+		return "Func " + params.toString() + " -> " + body().toString();
 	}
 	
 }
@@ -510,16 +899,18 @@ class Function implements IValue { // represents a (first class) function
 class NamedFunction extends Function { // represents core functions
 	Utils utils = new Utils();
 	
-	String type;
-	IFuncOperation operation;
+	final String type;
+	final IFuncOperation operation;
+	final IBinaryOperation binary; // null if there isn't one
 	static boolean firstPrint = true;
 	
 	NamedFunction (String type, Namespace ns) {
-		super(new ArrayList<String>(), new Sequence(new ArrayList<IExpression>(), ns), ns);
+		super(new ArrayList<String>(), new Sequence(new ArrayList<IExpression>()));
 		
 		utils.loadNamed();
 		this.type = type;
 		this.operation = utils.getFunc(type);
+		this.binary = utils.binary.get(type);
 		
 		if (this.operation == null) {
 			throw new IllegalArgumentException("NamedFunction given a non-standard function");
@@ -527,11 +918,12 @@ class NamedFunction extends Function { // represents core functions
 	}
 	
 	NamedFunction (String type) {
-		super(new ArrayList<String>(), new Sequence(new ArrayList<IExpression>(), new Namespace()));
+		super(new ArrayList<String>(), new Sequence(new ArrayList<IExpression>()));
 		
 		utils.loadNamed();
 		this.type = type;
 		this.operation = utils.getFunc(type);
+		this.binary = utils.binary.get(type);
 		
 		if (this.operation == null) {
 			throw new IllegalArgumentException("NamedFunction given a non-standard function");
@@ -539,10 +931,11 @@ class NamedFunction extends Function { // represents core functions
 	}
 	
 	NamedFunction (String type, Utils utils) {
-		super(new ArrayList<String>(), new Sequence(new ArrayList<IExpression>(), new Namespace()));
+		super(new ArrayList<String>(), new Sequence(new ArrayList<IExpression>()));
 		
 		this.type = type;
 		this.operation = utils.getFunc(type);
+		this.binary = utils.binary.get(type);
 		
 		if (this.operation == null) {
 			throw new IllegalArgumentException("NamedFunction given a non-standard function");
@@ -550,8 +943,6 @@ class NamedFunction extends Function { // represents core functions
 	}
 	
 	public IValue call (ArrayList<IValue> args, Namespace ns) {
-		this.setNamespace(ns);
-		
 		ArrayList<IValue> endArgs = new ArrayList<>();
 		
 		if (this.type.equals("print")) {
@@ -565,33 +956,50 @@ class NamedFunction extends Function { // represents core functions
 			endArgs.add(args.get(i));
 		}
 		
-		return this.operation.apply(endArgs, this.ns);
+		return this.operation.apply(endArgs, ns);
+	}
+	
+	IValue call0 (Namespace ns) {
+		return this.call(new ArrayList<IValue>(), ns);
+	}
+	
+	IValue call1 (IValue a, Namespace ns) {
+		return this.call(Utils.list(a), ns);
+	}
+	
+	IValue call2 (IValue a, IValue b, Namespace ns) { // most of the core functions have a version for two arguments that doesn't need a list
+		return this.binary != null ? this.binary.apply(a, b, ns) : this.call(Utils.list(a, b), ns);
+	}
+	
+	IValue call3 (IValue a, IValue b, IValue c, Namespace ns) {
+		return this.type.equals("if") ? Utils.conditional(a, b, c, ns) : this.call(Utils.list(a, b, c), ns);
+	}
+	
+	IValue call4 (IValue a, IValue b, IValue c, IValue d, Namespace ns) {
+		return this.call(Utils.list(a, b, c, d), ns);
 	}
 }
 
 class Sequence implements IExpression { // represents a sequence of IExpressions to be called in order
 	
-	ArrayList<IExpression> body;
-	Namespace ns;
+	final ArrayList<IExpression> body;
 	
 	Sequence (ArrayList<IExpression> body, Namespace ns) {
 		this.body = body;
-		this.ns = ns;
 	}
-
-	public Namespace getNamespace() {
-		return this.ns;
+	
+	Sequence (ArrayList<IExpression> body) {
+		this.body = body;
 	}
 
 	public IValue eval(Namespace ns) {
 		IValue last = new Nil();
-		this.setNamespace(ns);
 		
 		for (int i = 0; i < body.size(); i++) {
 			if (i == body.size() - 1) {
-				last = body.get(i).eval(this.ns);
+				last = body.get(i).eval(ns);
 			} else {
-				body.get(i).eval(this.ns);
+				body.get(i).eval(ns);
 			}
 		}
 		
@@ -599,15 +1007,11 @@ class Sequence implements IExpression { // represents a sequence of IExpressions
 	}
 	
 	static Sequence makeSequence (Namespace ns, IExpression... expr) {
-		return new Sequence(new ArrayList<IExpression>(Arrays.asList(expr)), ns);
+		return new Sequence(new ArrayList<IExpression>(Arrays.asList(expr)));
 	}
 	
 	static Sequence makeSequence (IExpression... expr) {
-		return new Sequence(new ArrayList<IExpression>(Arrays.asList(expr)), new Namespace());
-	}
-	
-	public void setNamespace (Namespace ns) {
-		this.ns = ns;
+		return new Sequence(new ArrayList<IExpression>(Arrays.asList(expr)));
 	}
 	
 	public String printOutput () {
@@ -622,20 +1026,7 @@ class Sequence implements IExpression { // represents a sequence of IExpressions
 
 // AST ANodeS
 
-abstract class ANode implements IValue {
-	Namespace ns;
-	
-	ANode (Namespace ns) {
-		this.ns = ns;
-	}
-	
-	public Namespace getNamespace () {
-		return this.ns;
-	}
-	
-	public void setNamespace (Namespace ns) {
-		this.ns = ns;
-	}
+abstract class ANode implements IValue { // the constructors that take a Namespace ignore it, they're kept for the tests
 	
 	public String printOutput () {
 		return "AST node";
@@ -648,37 +1039,77 @@ abstract class ANode implements IValue {
 
 class FunctionCall extends ANode { // have to have their own args stored, actuqlly, same with all the ANodes, args don't need to be in every IExpression
 
-	IValue maybeFunc;
-	ArrayList<IValue> args;
+	final IValue maybeFunc;
+	final ArrayList<IValue> args;
+	final int symbol; // maybeFunc's, if it's a Reference whose value can be cached, otherwise 0
+	CallCache cache = CallCache.EMPTY; // the only things in the tree that change, see CallCache
+	Specialization special = Specialization.EMPTY; // and what its arguments have been, see Specialization
 	
 	FunctionCall (IValue func, ArrayList<IValue> args, Namespace ns) { // takes in an IValue that has to evaluate to a function
-		super(ns);
-		this.maybeFunc = func;
-		this.args = args;
+		this(func, args);
 	}
 	
 	FunctionCall (IValue func, ArrayList<IValue> args) { // takes in an IValue that has to evaluate to a function
-		super(new Namespace());
 		this.maybeFunc = func;
 		this.args = args;
+		this.symbol = func.getClass() == Reference.class && Symbols.argNumber(((Reference) func).symbol) == 0 ? ((Reference) func).symbol : 0; // @n is different in every call
 	}
 	
 	public IValue eval(Namespace ns) {
-		this.setNamespace(ns);
+		Function func = this.callee(ns);
+		
+		switch (args.size()) { // arguments are evaluated left to right, either way
+		case 0: return func.call0(ns);
+		case 1: return func.call1(args.get(0).eval(ns), ns);
+		case 2: {
+			if (Specialization.specializeMode && special.typed()) { // it evaluates the arguments itself
+				return Specialization.eval2(this, func, ns);
+			}
+			
+			IValue a = args.get(0).eval(ns);
+			IValue b = args.get(1).eval(ns);
+			return Specialization.specializeMode ? Specialization.call2(this, func, a, b, ns) : func.call2(a, b, ns);
+		}
+		case 3: return Specialization.specializeMode ? Specialization.eval3(this, func, ns) : func.call3(args.get(0).eval(ns), args.get(1).eval(ns), args.get(2).eval(ns), ns);
+		case 4: return func.call4(args.get(0).eval(ns), args.get(1).eval(ns), args.get(2).eval(ns), args.get(3).eval(ns), ns);
+		}
 		
-		IValue result = this.maybeFunc.eval(this.ns); // run here to work with namespaces // evaluates, to work with references
+		ArrayList<IValue> finalArgs = new ArrayList<>(args.size());
 		
-		if (!(result instanceof Function)) { // if the result of the evaluation isn't a function
-			throw new IllegalArgumentException("Tried to call a function on something that isn't a function.");
+		for (int i = 0; i < this.args.size(); i++) {
+			finalArgs.add(this.args.get(i).eval(ns));
 		}
 		
-		ArrayList<IValue> finalArgs = new ArrayList<>(); // takes up space, worth doing in place?
+		return func.call(finalArgs, ns);
+	}
+	
+	public double evalDouble (Namespace ns) { // arithmetic nested in arithmetic never makes the NumberLiterals in between, see Specialization
+		return Specialization.specializeMode && special.typed() ? Specialization.evalDouble(this, ns) : UnexpectedValue.number(this.eval(ns));
+	}
+	
+	public boolean evalBoolean (Namespace ns) {
+		return Specialization.specializeMode && special.typed() ? Specialization.evalBoolean(this, ns) : UnexpectedValue.bool(this.eval(ns));
+	}
+	
+	Function callee (Namespace ns) { // maybeFunc's value, from the cache if its name hasn't changed since
+		CallCache cache = this.cache;
+		int stamp = symbol == 0 || cache == CallCache.MEGAMORPHIC || !CallCache.inlineMode ? -1 : ns.stamp(symbol);
 		
-		for (int i = 0; i < this.args.size(); i++) {
-			finalArgs.add(this.args.get(i).eval(this.ns));
+		if (stamp >= 0) {
+			Function cached = cache.find(ns.environment(), stamp);
+			
+			if (cached != null) {
+				return cached;
+			}
+		}
+		
+		Function result = Utils.function(this.maybeFunc.eval(ns)); // run here to work with namespaces // evaluates, to work with references
+		
+		if (stamp >= 0) {
+			this.cache = cache.with(ns.environment(), stamp, result);
 		}
 		
-		return ((Function) result).call(finalArgs, this.getNamespace());
+		return result;
 	}
 	
 	public Datatype getType() {
@@ -691,23 +1122,99 @@ class FunctionCall extends ANode { // have to have their own args stored, actuql
 	
 }
 
+final class CallCache { // what a FunctionCall's function was, in the last four programs (outermost Namespaces) to run it, with the stamp its name had
+	
+	/**
+	 * A CallCache is never changed, a FunctionCall swaps in a new one, so threads running the same tree at once only ever see a whole cache.
+	 * Each one just caches less if they race.
+	 *
+	 * A program that isn't one of the last four pushes out the oldest. A site becomes MEGAMORPHIC, and looks its function up every time like it would
+	 * without a cache, if its name keeps changing in a program (e.g. a parameter that's a different function each call) or the programs keep pushing each other out.
+	 * */
+	
+	static boolean inlineMode = true; // Entry --no-inline-cache turns it off
+	static final int WAYS = 4;
+	static final int CHANGES = 64; // times the name can change in a program that's cached, before giving up
+	static final int EVICTIONS = 1024;
+	static final CallCache EMPTY = new CallCache(new int[0], new int[0], new Function[0], 0, 0);
+	static final CallCache MEGAMORPHIC = new CallCache(new int[0], new int[0], new Function[0], CHANGES, EVICTIONS);
+	
+	final int[] environments; // oldest first
+	final int[] stamps;
+	final Function[] targets;
+	final int changes;
+	final int evictions;
+	
+	CallCache (int[] environments, int[] stamps, Function[] targets, int changes, int evictions) {
+		this.environments = environments;
+		this.stamps = stamps;
+		this.targets = targets;
+		this.changes = changes;
+		this.evictions = evictions;
+	}
+	
+	Function find (int environment, int stamp) { // null if it's not cached
+		for (int i = 0; i < environments.length; i++) {
+			if (environments[i] == environment && stamps[i] == stamp) {
+				return targets[i];
+			}
+		}
+		
+		return null;
+	}
+	
+	CallCache with (int environment, int stamp, Function target) {
+		int i = 0;
+		
+		while (i < environments.length && environments[i] != environment) {
+			i++;
+		}
+		
+		int changes = this.changes + (i < environments.length ? 1 : 0);
+		int evictions = this.evictions + (i == WAYS ? 1 : 0);
+		
+		if (changes >= CHANGES || evictions >= EVICTIONS) {
+			return MEGAMORPHIC;
+		}
+		
+		int ways = Math.min(Math.max(i + 1, environments.length), WAYS);
+		int from = i == WAYS ? 1 : 0; // the oldest is dropped
+		CallCache end = new CallCache(Arrays.copyOfRange(environments, from, from + ways), Arrays.copyOfRange(stamps, from, from + ways), Arrays.copyOfRange(targets, from, from + ways), changes, evictions);
+		i = Math.min(i, WAYS - 1);
+		end.environments[i] = environment;
+		end.stamps[i] = stamp;
+		end.targets[i] = target;
+		return end;
+	}
+}
+
 class Operation extends ANode { // TODO: finish & create type enforce method
 	
 	static Utils utils = new Utils(); // hopefully saves space
 	
-	IFuncOperation operation;
-	ArrayList<IValue> operands;
+	static {
+		utils.loadOps(); // once, rather than in every constructor, which isn't safe when parsing on several threads
+	}
+	
+	final String type;
+	final IFuncOperation operation;
+	final ArrayList<IValue> operands;
+	final boolean index; // ':' on two operands, which can be specialized
+	Specialization special = Specialization.EMPTY; // see Specialization
 	
 	Operation (String type, ArrayList<IValue> operands) { // DON'
-		super(new Namespace());
-		utils.loadOps();
+		this.type = type;
 		this.operation = utils.getOp(type);
 		this.operands = operands;
+		this.index = type.equals(":") && operands.size() == 2;
 	}
 
 	public IValue eval(Namespace ns) {
-		this.setNamespace(ns);
-		return this.operation.apply(operands, this.ns);
+		if (this.index && Specialization.specializeMode) { // the same as the ':' in Utils.loadOps
+			return Specialization.index(this, operands.get(0).eval(ns), operands.get(1).eval(ns), ns);
+		}
+		
+		return this.operation.apply(operands, ns);
 	}
 	
 	public Datatype getType() {
@@ -718,26 +1225,26 @@ class Operation extends ANode { // TODO: finish & create type enforce method
 
 class Definition extends ANode { // analogous to a variable assignment, e.g. 'a 1;' -> defines the variable a with a value of 1
 
-	String key;
-	IValue value;
+	final String key;
+	final int symbol;
+	final IValue value;
 	
 	Definition (String key, IValue value, Namespace ns) {
-		super(ns);
-		this.key = key;
-		this.value = value;
+		this(key, value);
 	}
 	
 	Definition (String key, IValue value) {
-		super(new Namespace());
-		this.key = key;
+		this(Symbols.id(key), value);
+	}
+	
+	Definition (int symbol, IValue value) {
+		this.key = Symbols.name(symbol);
+		this.symbol = symbol;
 		this.value = value;
 	}
 	
 	public IValue eval(Namespace ns) {
-		this.setNamespace(ns);
-		this.ns.set(this.key, this.value.eval(this.ns));
-		
-		return this.ns.get(this.key);
+		return ns.set(this.symbol, this.value.eval(ns));
 	}
 
 	public Datatype getType() {
@@ -752,21 +1259,17 @@ class Definition extends ANode { // analogous to a variable assignment, e.g. 'a
 
 class Conditional extends ANode { // represents a conditional, ie an if statement // DONT USE
 
-	ArrayList<IExpression> conditions;
-	ArrayList<IExpression> thens;
-	IExpression elseExpr;
+	final ArrayList<IExpression> conditions;
+	final ArrayList<IExpression> thens;
+	final IExpression elseExpr;
 	
 	Conditional(IExpression condition, IExpression then, IExpression elseExpr) {
-		super(new Namespace());
-		
 		this.conditions = Utils.list(condition);
 		this.thens = Utils.list(then);
 		this.elseExpr = elseExpr;
 	}
 	
 	Conditional(ArrayList<IExpression> condition, ArrayList<IExpression> then, IExpression elseExpr) {
-		super(new Namespace());
-		
 		if (condition.size() != then.size() || condition.size() < 1 || then.size() < 1) {
 			throw new IllegalArgumentException("Conditional Given an illegal number of arguments");
 		}
@@ -777,15 +1280,13 @@ class Conditional extends ANode { // represents a conditional, ie an if statemen
 	}
 	
 	public IValue eval(Namespace ns) {
-		this.setNamespace(ns);
-		
 		IValue evaledCond;
 		
 		for (int i = 0; i < this.conditions.size(); i++) {
-			evaledCond = conditions.get(i).eval(this.ns);
+			evaledCond = conditions.get(i).eval(ns);
 			
 			if (evaledCond instanceof Function) { // keeps syntax clean
-				evaledCond = ((Function) evaledCond).call(Utils.list(), this.ns); // mutates for simplicity's sake // gross
+				evaledCond = ((Function) evaledCond).call0(ns); // mutates for simplicity's sake // gross
 			}
 			
 			if (!(evaledCond instanceof BooleanLiteral)) {
@@ -795,11 +1296,11 @@ class Conditional extends ANode { // represents a conditional, ie an if statemen
 			// The main calculation:
 			
 			if ((boolean) ((BooleanLiteral) evaledCond).value) { // lovely casting
-				return thens.get(i).eval(this.ns);
+				return thens.get(i).eval(ns);
 			}
 		}
 		
-		return elseExpr.eval(this.ns);
+		return elseExpr.eval(ns);
 	}
 	
 }
@@ -809,17 +1310,87 @@ interface IFuncOperation {
 	IValue apply(ArrayList<IValue> args, Namespace ns);
 };
 
+interface IBinaryOperation { // a core function called with two arguments
+	IValue apply(IValue a, IValue b, Namespace ns);
+};
+
 class Utils {
 	
 	Map<String, IFuncOperation> funcs = new HashMap<>();
 	ToDoubleFunction<IValue> literalToDouble = literal -> ((Number) ((ALiteral) literal).value).doubleValue();
 	
 	Map<String, IFuncOperation> ops = new HashMap<>();
+	Map<String, IBinaryOperation> binary = new HashMap<>(); // the same as some of funcs, given exactly two arguments
 	
 	Utils () {}
 	
+	@SafeVarargs // the items are only copied out
 	static <T> ArrayList<T> list (T ...items) {
-		return new ArrayList<T>(Arrays.asList(items));
+		ArrayList<T> end = new ArrayList<T>(items.length);
+		
+		for (T item : items) {
+			end.add(item);
+		}
+		
+		return end;
+	}
+	
+	static double sum (double a, double b) { // what the '+' below gives for two numbers, which isn't always a + b
+		/**
+		 * Collectors.summingDouble keeps a compensation for what each addition rounded off, and takes it back out at the end,
+		 * so e.g. +(0.1 0.3) is 0.39999999999999997, not 0.4. This is the same steps for two numbers, starting from 0 like it does (so -0 + -0 is 0),
+		 * and with the plain sum if the compensated one is NaN from infinities.
+		 * */
+		
+		double high = 0.0 + a;
+		double compensation = (high - 0.0) - a;
+		double next = b - compensation;
+		double total = high + next;
+		compensation = (total - high) - next;
+		double result = total - compensation;
+		return Double.isNaN(result) && Double.isInfinite(a + b) ? a + b : result;
+	}
+	
+	static IValue conditional (IValue condition, IValue then, IValue els, Namespace ns) { // 'if', its arguments have already been evaluated by the FunctionCall
+		//steps;
+		//make sure the first parameter evals to boolean, if it's a function, evaluate it
+		//evaluate either the second or third parameter, if it's a function, wrap it in a call
+		
+		return branch(truth(condition, ns) ? then : els, ns);
+	}
+	
+	// the rules every engine follows, the compilers (ClosureCompiler, Jit, Vm) and Specialization call these instead of having their own
+	
+	static boolean truth (IValue condition, Namespace ns) { // an if's condition
+		if (condition instanceof Function) { // a function is called to get the value
+			condition = ((Function) condition).call0(ns);
+		}
+		
+		if (!(condition instanceof BooleanLiteral)) {
+			throw new IllegalArgumentException("If statement condition doesn't evaluate to a boolean");
+		}
+		
+		return (boolean) ((BooleanLiteral) condition).value; // lovely casting
+	}
+	
+	static IValue branch (IValue chosen, Namespace ns) { // what an if gives for the branch it chose
+		return chosen instanceof Function ? ((Function) chosen).call0(ns) : chosen;
+	}
+	
+	static boolean isIf (IValue func) { // the core 'if', a program can define its own
+		return func instanceof NamedFunction && ((NamedFunction) func).type.equals("if");
+	}
+	
+	static Function function (IValue value) { // what a call is made on
+		if (!(value instanceof Function)) { // if the result of the evaluation isn't a function
+			throw new IllegalArgumentException("Tried to call a function on something that isn't a function.");
+		}
+		
+		return (Function) value;
+	}
+	
+	static IValue orNil (IValue value) { // a name that holds nothing is nil
+		return value == null ? new Nil() : value;
 	}
 	
 	void loadNamed () {
@@ -857,7 +1428,7 @@ class Utils {
 			Function func = (Function) l.get(1);
 			
 			for (int i = 0; i < list.value.size(); i++) {
-				ret.add(func.call(Utils.list(list.value.get(i)), ns));
+				ret.add(func.call1(list.value.get(i), ns));
 			}
 			
 			return new ListValue(ret);
@@ -868,47 +1439,29 @@ class Utils {
 		// conditionals
 		
 		funcs.put("if", (l, ns) -> {
-			//steps;
-			//make sure the first parameter evals to boolean, if it's a function, evaluate it
-			//evaluate either the second or third parameter, if it's a function, wrap it in a call
-			
-			//System.out.println(l);
-			
 			if (l.size() != 3) {
 				throw new IllegalArgumentException("If statement given " + l.size() + " instead of 3 arguments");
 			}
 			
-			IValue condition = l.get(0).eval(ns);
-			IValue then = l.get(1);
-			IValue els = l.get(2);
-			
-			if (condition instanceof Function) {
-				condition = ((Function) condition).call(Utils.list(), ns);
-			}
-			
-			if (!(condition instanceof BooleanLiteral)) {
-				throw new IllegalArgumentException("If statement condition doesn't evaluate to a boolean");
-			}
-			
-			// main thing
-			
-			if ((boolean) ((BooleanLiteral) condition).value) { // lovely casting
-				
-				if (then instanceof Function) {
-					then = ((Function) then).call(Utils.list(), ns);
-				}
-				
-				return then.eval(ns);
-			} else {
-				
-				if (els instanceof Function) {
-					els = ((Function) els).call(Utils.list(), ns);
-				}
-				
-				return els.eval(ns);
-			}
+			return conditional(l.get(0), l.get(1), l.get(2), ns);
 		});
 		
+		// the common ones again, for two arguments (see NamedFunction.call2), these have to give exactly what the ones above do
+		
+		binary.put("+", (a, b, ns) -> a instanceof StringLiteral || b instanceof StringLiteral ? new StringLiteral(a.toString() + b.toString())
+				: new NumberLiteral(sum(literalToDouble.applyAsDouble(a), literalToDouble.applyAsDouble(b))));
+		binary.put("-", (a, b, ns) -> new NumberLiteral(literalToDouble.applyAsDouble(a) - literalToDouble.applyAsDouble(b)));
+		binary.put("*", (a, b, ns) -> new NumberLiteral(literalToDouble.applyAsDouble(a) * literalToDouble.applyAsDouble(b)));
+		binary.put("/", (a, b, ns) -> new NumberLiteral(literalToDouble.applyAsDouble(a) / literalToDouble.applyAsDouble(b)));
+		binary.put("^", (a, b, ns) -> new NumberLiteral(Math.pow(literalToDouble.applyAsDouble(a), literalToDouble.applyAsDouble(b))));
+		
+		binary.put("<", (a, b, ns) -> new BooleanLiteral(literalToDouble.applyAsDouble(a) < literalToDouble.applyAsDouble(b)));
+		binary.put(">", (a, b, ns) -> new BooleanLiteral(literalToDouble.applyAsDouble(a) > literalToDouble.applyAsDouble(b)));
+		binary.put("<=", (a, b, ns) -> new BooleanLiteral(literalToDouble.applyAsDouble(a) <= literalToDouble.applyAsDouble(b)));
+		binary.put(">=", (a, b, ns) -> new BooleanLiteral(literalToDouble.applyAsDouble(a) >= literalToDouble.applyAsDouble(b)));
+		binary.put("=", (a, b, ns) -> new BooleanLiteral(Objects.equals(((ALiteral) a).value, ((ALiteral) b).value)));
+		binary.put("!=", (a, b, ns) -> new BooleanLiteral(!Objects.equals(((ALiteral) a).value, ((ALiteral) b).value)));
+		
 		// lofuncs
 		
 	}
@@ -963,10 +1516,11 @@ class ValueTests {
 	Map<String, IValue> map;
 	ArrayList<IValue> empty = new ArrayList<>();
 	ArrayList<Map<String, IValue>> nsList;
+	boolean shallow = false; // run with a ShallowNamespace, see testShallow
 	
 	void initNS () {
 		nsList = new ArrayList<>(Arrays.asList(new HashMap<String, IValue>()));
-		namespace = new Namespace(nsList);
+		namespace = shallow ? new ShallowNamespace(nsList.get(0)) : new Namespace(nsList);
 		map = new HashMap<String, IValue>();
 	}
 	
@@ -1034,18 +1588,18 @@ class ValueTests {
 		t.checkExpect(func.eval(namespace), func);
 		
 		//t.checkExpect(func.body.body.get(0).getNamespace(), expectedNS);
-		t.checkExpect(func.body.body.get(0).getNamespace().get("@1"), num1);
-		t.checkExpect(func.body.body.get(0).getNamespace().get("@2"), num2);
+		t.checkExpect(bodySees("@1", num1, num2), num1); // nodes don't keep the namespace they were evaluated in, so the body returns what it sees
+		t.checkExpect(bodySees("@2", num1, num2), num2);
 		
-		t.checkExpect(func.body.body.get(0).getNamespace().get("@0"), null);
-		t.checkExpect(func.body.body.get(0).getNamespace().get("@3"), null);
+		t.checkExpect(bodySees("@0", num1, num2), new Nil());
+		t.checkExpect(bodySees("@3", num1, num2), new Nil());
 
-		t.checkExpect(func.body.body.get(0).getNamespace().get("a"), num1);
-		t.checkExpect(func.body.body.get(0).getNamespace().get("b"), num2);
+		t.checkExpect(bodySees("a", num1, num2), num1);
+		t.checkExpect(bodySees("b", num1, num2), num2);
 		
-		t.checkExpect(func.ns.get("@1"), null);
+		t.checkExpect(namespace.get("@1"), null);
 		
-		t.checkExpect(func.body.body.get(0).getNamespace().get("c"), null);
+		t.checkExpect(bodySees("c", num1, num2), new Nil());
 		
 		// with function calls
 		
@@ -1072,6 +1626,224 @@ class ValueTests {
 						new ArrayList<String>(),
 						Sequence.makeSequence(namespace, new Definition("orange", num2, namespace), new Reference("@1", namespace)),
 						namespace), new ArrayList<IValue>(Arrays.asList(tru)), namespace), new Reference("@1", namespace)).eval(namespace), new Nil()); // this test verifies that @1 (or any definitions created by the function) don't get pushed to the global namespace
+		
+		// assignments change the innermost variable with that name, the one a Reference would find
+		
+		initNS();
+		Function setOrange = new Function(new ArrayList<String>(), Sequence.makeSequence(namespace, new Definition("orange", num2, namespace)), namespace); // {orange 24602;}
+		
+		t.checkExpect(Sequence.makeSequence(namespace,
+				new Definition("orange", num1, namespace), // orange 24601;
+				new FunctionCall(new Function(
+						new ArrayList<String>(Arrays.asList("orange")),
+						Sequence.makeSequence(namespace, new Definition("orange", num2, namespace), new Reference("orange", namespace)), // (orange) > {orange 24602; orange;}(true) # -> 24602
+						namespace), new ArrayList<IValue>(Arrays.asList(tru)), namespace)).eval(namespace), num2);
+		t.checkExpect(namespace.get("orange"), num1); // the parameter shadows the global, so the global isn't changed
+		
+		t.checkExpect(Sequence.makeSequence(namespace,
+				new FunctionCall(new Function(
+						new ArrayList<String>(Arrays.asList("orange")),
+						Sequence.makeSequence(namespace, new FunctionCall(setOrange, new ArrayList<IValue>(), namespace), new Reference("orange", namespace)), // (orange) > {setOrange(); orange;}(true) # -> 24602
+						namespace), new ArrayList<IValue>(Arrays.asList(tru)), namespace)).eval(namespace), num2); // a function called from inside changes the caller's variable
+		t.checkExpect(namespace.get("orange"), num1);
+		
+		t.checkExpect(Sequence.makeSequence(namespace,
+				new FunctionCall(new Function(
+						new ArrayList<String>(),
+						Sequence.makeSequence(namespace, new FunctionCall(setOrange, new ArrayList<IValue>(), namespace)), // {setOrange();}()
+						namespace), new ArrayList<IValue>(), namespace), new Reference("orange", namespace)).eval(namespace), num2); // with nothing in between, it's the global
+		t.checkExpect(namespace.get("orange"), num2);
+		
+		t.checkExpect(Sequence.makeSequence(namespace,
+				new FunctionCall(new Function(
+						new ArrayList<String>(),
+						Sequence.makeSequence(namespace, new Definition("apple", num1, namespace)), // {apple 24601;}() # -> 24601
+						namespace), new ArrayList<IValue>(), namespace)).eval(namespace), num1);
+		t.checkExpect(namespace.get("apple"), null); // a new variable is local to the function
+	}
+	
+	IValue bodySees (String key, IValue... args) { // calls (a b) > { key; } with args
+		return new Function(Utils.list("a", "b"), Sequence.makeSequence(new Reference(key))).call(new ArrayList<IValue>(Arrays.asList(args)), namespace);
+	}
+	
+	void testScopes (Tester t) {
+		initNS();
+		NumberLiteral num1 = new NumberLiteral(1);
+		NumberLiteral num2 = new NumberLiteral(2);
+		
+		namespace.set("outer", num1);
+		Namespace call = namespace.copyWith(new HashMap<>());
+		Namespace sibling = namespace.copyWith(new HashMap<>());
+		Namespace inner = call.copyWith(new HashMap<>());
+		
+		t.checkExpect(inner.get("outer"), num1); // the outer scopes are shared
+		t.checkExpect(inner.set("outer", num2), num2); // so writes to them are seen everywhere
+		t.checkExpect(namespace.get("outer"), num2);
+		t.checkExpect(sibling.get("outer"), num2);
+		
+		t.checkExpect(call.set("local", num1), num1); // and locals stay in their own scope
+		t.checkExpect(inner.get("local"), num1);
+		t.checkExpect(namespace.get("local"), null);
+		t.checkExpect(sibling.get("local"), null);
+		
+		t.checkExpect(inner.root, namespace);
+		t.checkExpect(new Namespace(Utils.list(nsList.get(0), call.vars, inner.vars)).get("local"), num1); // built by hand, outermost first
+		t.checkExpect(new Namespace(Utils.list(namespace.vars, call.vars, inner.vars)).parent.parent.vars == namespace.vars, true); // and share its maps
+	}
+	
+	void testCalls (Tester t) {
+		initNS();
+		NumberLiteral num1 = new NumberLiteral(1);
+		NumberLiteral num2 = new NumberLiteral(2);
+		Function pair = new Function(Utils.list("a", "b"), Sequence.makeSequence(new ListValue(Utils.list(new Reference("b"), new Reference("@1"))))); // (a b) > { [b @1]; }
+		
+		t.checkExpect(pair.call2(num1, num2, namespace), pair.call(Utils.list(num1, num2), namespace)); // the same as a call with a list
+		t.checkExpect(pair.call3(num1, num2, num1, namespace), pair.call(Utils.list(num1, num2, num1), namespace));
+		t.checkException(new IllegalArgumentException("Arity mismatch"), pair, "call1", num1, namespace);
+		
+		Frames frames = namespace.frames();
+		Function fails = new Function(Utils.list("a"), Sequence.makeSequence(new FunctionCall(num1, Utils.list()))); // (a) > { 1(); }
+		
+		t.checkException(new IllegalArgumentException("Tried to call a function on something that isn't a function."), fails, "call1", num1, namespace);
+		t.checkExpect(frames.top, 0); // popped even though the call threw
+		t.checkExpect(frames.depth, 0);
+		
+		Namespace scope = frames.scopes[0];
+		pair.call2(num1, num2, namespace);
+		t.checkExpect(frames.scopes[0] == scope, true); // the scope is used again
+		t.checkExpect(scope.vars.size(), 0);
+		
+		String code = "f (a) > { a 5; [a @1]; }; g (n) > { if (<(n 1) { 0; } { +(n g(-(n 1))); }); }; [f(1) g(100) +(\"a\" 1) *(2 3) =(1 1) !=(1 \"1\") ^(2 10)];";
+		String expected = "[[5.0, 1.0], 5050.0, a1.0, 6.0, true, true, 1024.0]"; // an argument that's assigned to doesn't change @n
+		
+		t.checkExpect(Parser.parse(code).eval(Namespace.stdlib()).toString(), expected);
+		t.checkExpect(Parser.parse(code).eval(Namespace.stdlib(true)).toString(), expected);
+		t.checkExpect(Resolver.resolve(Parser.parse(code)).eval(Namespace.stdlib()).toString(), expected);
+		
+		Utils utils = new Utils();
+		utils.loadNamed();
+		
+		for (String op : utils.binary.keySet()) { // each two argument version gives what the general one does
+			NamedFunction func = new NamedFunction(op, utils);
+			
+			for (IValue[] args : new IValue[][] { { num1, num2 }, { num2, num1 }, { num2, num2 }, { new NumberLiteral(0.1), new NumberLiteral(0.2) },
+					{ new NumberLiteral(0.1), new NumberLiteral(0.3) }, { new NumberLiteral(-0.0), new NumberLiteral(-0.0) },
+					{ new NumberLiteral(Double.POSITIVE_INFINITY), new NumberLiteral(Double.NEGATIVE_INFINITY) } }) {
+				t.checkExpect(func.call2(args[0], args[1], namespace).toString(), utils.getFunc(op).apply(Utils.list(args[0], args[1]), namespace).toString()); // the exact double
+			}
+		}
+	}
+	
+	void testInlineCache (Tester t) {
+		String code = "f () > { 1; }; g () > { f(); }; h (f) > { g(); }; a [g() h({ 3; }) g()]; f () > { 2; }; [a g()];";
+		String expected = "[[1.0, 3.0, 1.0], 2.0]"; // a parameter hides f while its call runs, and f can be defined again
+		Sequence program = (Sequence) Parser.parse(code);
+		FunctionCall site = (FunctionCall) ((Function) ((Definition) program.body.get(1)).value).body.body.get(0); // the f() in g
+		
+		t.checkExpect(program.eval(Namespace.stdlib()).toString(), expected);
+		t.checkExpect(site.cache.environments.length, 1);
+		t.checkExpect(site.cache.changes, 3);
+		
+		for (int i = 0; i < 6; i++) { // each program is cached separately, the last four are kept
+			t.checkExpect(program.eval(Namespace.stdlib()).toString(), expected);
+		}
+		
+		t.checkExpect(site.cache.environments.length, CallCache.WAYS);
+		t.checkExpect(program.eval(Namespace.stdlib(true)).toString(), expected); // a ShallowNamespace isn't cached
+		t.checkExpect(site.cache.environments.length, CallCache.WAYS);
+		
+		Sequence changing = (Sequence) Parser.parse("apply (fn) > { fn(); }; [for (0...100 { apply({ 1; }); }) apply({ 2; })];");
+		FunctionCall fn = (FunctionCall) ((Function) ((Definition) changing.body.get(0)).value).body.body.get(0);
+		
+		t.checkExpect(changing.eval(Namespace.stdlib()).toString().endsWith("1.0], 2.0]"), true);
+		t.checkExpect(fn.cache, CallCache.MEGAMORPHIC); // fn is different each call, so it's looked up every time
+		t.checkExpect(((FunctionCall) ((Sequence) Parser.parse("@1();")).body.get(0)).symbol, 0);
+		
+		initNS();
+		namespace.set("f", new Function(Utils.list(), Sequence.makeSequence(new NumberLiteral(1))));
+		Map<String, IValue> locals = new HashMap<>();
+		locals.put("f", new Function(Utils.list(), Sequence.makeSequence(new NumberLiteral(2))));
+		Namespace inner = namespace.copyWith(locals);
+		FunctionCall call = new FunctionCall(new Reference("f"), Utils.list());
+		
+		t.checkExpect(call.eval(inner), new NumberLiteral(2));
+		t.checkExpect(call.eval(namespace), new NumberLiteral(1)); // scopes made by hand aren't cached either
+		t.checkExpect(call.cache, CallCache.EMPTY);
+	}
+	
+	void testShallow (Tester t) { // the same tests again with shallow binding
+		shallow = true;
+		
+		try {
+			testSeqs(t);
+			testDefs(t);
+			testRefs(t);
+			testFuncs(t);
+			testNamedFuncs(t);
+			testCond(t);
+		} finally {
+			shallow = false;
+		}
+		
+		ShallowNamespace ns = new ShallowNamespace();
+		NumberLiteral num1 = new NumberLiteral(1);
+		Function fails = new Function(Utils.list("a"), Sequence.makeSequence(new Definition("b", num1), new FunctionCall(num1, Utils.list()))); // (a) > { b 1; 1(); }
+		
+		t.checkException(new IllegalArgumentException("Tried to call a function on something that isn't a function."), fails, "call", Utils.list(num1), ns);
+		t.checkExpect(ns.get("a"), null); // put back even though the call threw
+		t.checkExpect(ns.get("b"), null);
+		t.checkExpect(ns.top, 0);
+		
+		NumberLiteral num2 = new NumberLiteral(2);
+		Map<String, IValue> locals = new HashMap<>();
+		locals.put("local", num2);
+		ns.set("outer", num1);
+		Namespace inner = ns.copyWith(locals); // an ordinary scope, over the shallow one
+		
+		t.checkExpect(inner.get("outer"), num1);
+		t.checkExpect(inner.get("local"), num2);
+		t.checkExpect(ns.get("local"), null);
+		t.checkExpect(inner.set("outer", num2), num2); // the outer scope is shared
+		t.checkExpect(ns.get("outer"), num2);
+		t.checkExpect(inner.global("outer"), num2);
+		t.checkExpect(new FunctionCall(new Function(Utils.list("x"), Sequence.makeSequence(new Reference("local"))), Utils.list(num1)).eval(inner), num2);
+		
+		String code = "f () > { a; }; g (a) > { f(); }; g(5);"; // f sees g's a
+		t.checkExpect(Parser.parse(code).eval(Namespace.stdlib(true)), new NumberLiteral(5));
+		t.checkExpect(Resolver.resolve(Parser.parse(code)).eval(Namespace.stdlib(true)), new NumberLiteral(5));
+		t.checkExpect(Parser.parse(Benchmark.recursive + "sum(300);").eval(Namespace.stdlib(true)), Parser.parse(Benchmark.recursive + "sum(300);").eval(Namespace.stdlib(false)));
+	}
+	
+	void testSymbols (Tester t) {
+		int apples = Symbols.id("apples");
+		
+		t.checkExpect(Symbols.id("apples"), apples); // one symbol for each name
+		t.checkExpect(Symbols.id("a apples b", 2, 8), apples); // found straight from the source
+		t.checkExpect(Symbols.name(apples) == Symbols.name(Symbols.id(new String("apples"))), true);
+		t.checkExpect(Symbols.find("never used anywhere"), 0);
+		t.checkExpect(Symbols.arg(3), Symbols.id("@3"));
+		t.checkExpect(Symbols.arg(40), Symbols.id("@40"));
+		
+		SymbolMap vars = new SymbolMap();
+		
+		for (int i = 0; i < 100; i++) { // grows past its first size a few times
+			vars.put("v" + i, new NumberLiteral(i));
+		}
+		
+		t.checkExpect(vars.size(), 100);
+		t.checkExpect(vars.get("v42"), new NumberLiteral(42));
+		t.checkExpect(vars.lookup(Symbols.id("v99")), new NumberLiteral(99));
+		t.checkExpect(vars.lookup(apples), Namespace.MISSING);
+		t.checkExpect(vars.get("never used anywhere"), null);
+		
+		Map<String, IValue> copy = new HashMap<>(vars); // and is still a Map of names
+		t.checkExpect(vars.equals(copy) && copy.equals(vars), true);
+		
+		Namespace ns = new Namespace(Utils.list(copy, new HashMap<>()));
+		t.checkExpect(ns.get("v7"), new NumberLiteral(7));
+		t.checkExpect(ns.set("v7", new NumberLiteral(-7)), new NumberLiteral(-7));
+		t.checkExpect(ns.parent.vars.get("v7"), new NumberLiteral(-7));
+		t.checkExpect(ns.vars.size(), 0);
 	}
 	
 	void testHashMaps (Tester t) {
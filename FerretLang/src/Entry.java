@@ -7,16 +7,31 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.file.Paths;
 
 // wiki: https://github.com/ra2yama/ferret-lang/wiki
 // the repo also includes examples
 
 public class Entry {
+	static boolean streamMode = false;
+	
 	public static void main(String[] args) throws IOException {
 		
+		try {
+			args = Entry.options(args);
+		} catch (IllegalArgumentException e) { // flags that can't go together
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+		
 		System.out.println(args);
 		
-		if (args.length <= 0) {
+		if (streamMode) { // 'Entry --stream file.ft', or 'Entry --stream' to read the program from stdin
+			Reader in = args.length > 0 ? new FileReader(args[0]) : new InputStreamReader(System.in);
+			System.out.println("=> " + Entry.stream(in, Namespace.stdlib()));
+			in.close();
+		} else if (args.length <= 0) {
 			System.out.println("Opening REPL...");
 			Entry.repl();
 		} else if (args[0].equals("test")) {
@@ -48,9 +63,21 @@ public class Entry {
 				expected.append(args[i] + " ");
 			}
 			
-			TestHarness harness = new TestHarness(code, new Parser(Lexer.lex(expected.toString())).parse().eval(Namespace.stdlib())); // does this make sense to do?
+			TestHarness harness = new TestHarness(code, new Parser(Lexer.tokenize(expected.toString())).parse().eval(Namespace.stdlib())); // does this make sense to do?
 			harness.runTests();
 			
+		} else if (args[0].endsWith(".fbc")) { // compiled by 'Entry --fbc file.ft', run without the lexer or parser
+			IExpression program;
+			
+			try {
+				program = Vm.load(Paths.get(args[0]));
+			} catch (IllegalStateException e) { // not a .fbc, cut short, or from another version
+				System.out.println("Error loading file: " + e.getMessage());
+				return;
+			}
+			
+			System.out.println("\nRunning program...\n");
+			System.out.println("=> " + program.eval(Namespace.stdlib()));
 		} else {
 			System.out.println("Trying to access file...\n");
 			String code = "";
@@ -68,37 +95,146 @@ public class Entry {
 				}
 				
 				System.out.println("\nRunning program...\n"); // the main execution
-				Parser p = new Parser(Lexer.lex(code));
 				//System.out.println(Lexer.lex(code));
-				IExpression program = p.parse();
+				IExpression program = AstCache.parse(code);
+				
+				if (Resolver.resolveMode) {
+					program = Resolver.resolve(program);
+				}
+				
+				if (Interner.internMode) {
+					program = Interner.intern(program);
+					System.out.println(Interner.shared.report());
+				}
+				
+				if (ClosureCompiler.compileMode) {
+					program = ClosureCompiler.compile(program);
+				} else if (Vm.vmMode) {
+					VmCode compiled = Vm.compile(program);
+					
+					if (Vm.saveMode) {
+						Vm.save(compiled, Paths.get(args[0].replaceFirst("\\.ft$", "") + ".fbc"));
+					}
+					
+					program = new VmNode(compiled);
+				} else if (Jit.jitMode) {
+					program = Jit.prepare(program);
+				} else if (FlatAst.flatMode) {
+					program = FlatAst.flatten(program);
+				}
 				//System.out.println(program);
 				System.out.println("=> " + program.eval(Namespace.stdlib()));
 			}
 	}
 	
-	public static void repl () throws IOException {
-		BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+	static String[] options (String[] args) { // flags can go anywhere, e.g. 'Entry --parallel big.ft', everything else is positional
+		Entry.conflicts(args); // before any of them are set
+		ArrayList<String> rest = new ArrayList<>();
+		
+		for (String arg : args) {
+			switch (arg) {
+			case "--parallel": Parser.parallelMode = true; break; // lex and parse large files on several threads
+			case "--stream": streamMode = true; break; // run each statement as soon as it's read
+			case "--legacy-lexer": Lexer.legacyMode = true; break;
+			case "--bulk-lexer": Lexer.bulkMode = true; break;
+			case "--trace-parser": Parser.traceMode = true; break; // print what the parser does, and how much
+			case "--lazy": Parser.lazyMode = true; break; // parse function bodies the first time they're called
+			case "--cache": AstCache.cacheMode = true; break; // reuse the parsed program if the file hasn't changed
+			case "--resolve": Resolver.resolveMode = true; break; // look up parameters and global names directly
+			case "--flat": FlatAst.flatMode = true; break; // run the program from a few flat arrays instead of an object per node
+			case "--intern": Interner.internMode = true; break; // share identical parts of the program, for generated code
+			case "--shallow": Namespace.shallowMode = true; break; // shallow binding, variables are found with one lookup however deep the calls are
+			case "--compile": ClosureCompiler.compileMode = true; break; // compile the program into closures before running it
+			case "--jit": Jit.jitMode = true; break; // compile functions that are called often to JVM classes
+			case "--jit-dump": Jit.jitMode = Jit.dumpMode = true; break; // and write the classes to jit/
+			case "--vm": Vm.vmMode = true; break; // compile the program for the register machine before running it
+			case "--fbc": Vm.vmMode = Vm.saveMode = true; break; // and save it as file.fbc, which 'Entry file.fbc' runs
+			case "--no-inline-cache": CallCache.inlineMode = false; break; // look up the function at every call, instead of caching it at the call
+			case "--no-specialize": Specialization.specializeMode = false; break; // call the core functions every time, instead of doing what a call has been doing
+			default: rest.add(arg);
+			}
+		}
+		
+		return rest.toArray(new String[0]);
+	}
+	
+	static void conflicts (String[] args) { // flags that would quietly override each other are refused instead
+		ArrayList<String> engines = new ArrayList<>(); // each runs the program its own way, so only one can
+		ArrayList<String> whole = new ArrayList<>(); // these work on the whole program, which --stream never has
+		boolean stream = false;
 		
-		Parser p;
+		for (String arg : args) {
+			switch (arg) {
+			case "--compile": case "--vm": case "--fbc": case "--jit": case "--jit-dump": case "--flat": {
+				String engine = arg.equals("--fbc") ? "--vm" : arg.equals("--jit-dump") ? "--jit" : arg; // the same engine, with something saved
+				
+				if (!engines.contains(engine)) {
+					engines.add(engine);
+				}
+				break;
+			}
+			case "--resolve": case "--intern": case "--cache": case "--parallel": whole.add(arg); break;
+			case "--stream": stream = true; break;
+			}
+		}
+		
+		if (engines.size() > 1) {
+			throw new IllegalArgumentException(String.join(" and ", engines) + " can't be used together, pick one way to run the program");
+		}
+		
+		if (stream && engines.size() + whole.size() > 0) {
+			engines.addAll(whole);
+			throw new IllegalArgumentException("--stream runs each statement as soon as it's read, so it can't be used with " + String.join(" or ", engines));
+		}
+	}
+	
+	static IValue stream (Reader in, Namespace global) throws IOException { // the program is never held in memory as a whole, only the statement being run
+		StatementReader statements = new StatementReader(in);
+		IValue last = new Nil();
+		
+		for (String statement = statements.next(); statement != null; statement = statements.next()) {
+			last = Parser.parse(statement).eval(global);
+		}
+		
+		return last;
+	}
+	
+	public static void repl () throws IOException {
+		Entry.repl(new BufferedReader(new InputStreamReader(System.in)));
+	}
+	
+	static void repl (BufferedReader br) throws IOException {
+		IncrementalParser p = new IncrementalParser(); // an entry can go over several lines, the lines already finished aren't parsed again
+		String entry = "";
 		Namespace global = Namespace.stdlib();
 		
 		boolean running = true;
 		
         while (running) {
-        		System.out.print(">>> ");
+        		System.out.print(entry.isEmpty() ? ">>> " : "... ");
             String s = br.readLine();
             
-            if (s.equals("quit") || s.equals("quit()") || s.equals("quit();") || s.equals("exit") || s.equals("exit()") || s.equals("exit();")) {
+            if (s == null || s.equals("quit") || s.equals("quit()") || s.equals("quit();") || s.equals("exit") || s.equals("exit()") || s.equals("exit();")) {
             		System.out.println("Leaving REPL...");
             		running = false;
             		break;
             }
             
-            p = new Parser(Lexer.lex(s));
+            entry = entry.isEmpty() ? s : entry + "\n" + s;
             
             try {
-            		System.out.println("=> " + p.parse().eval(global));
+            		IExpression program = p.parse(entry);
+            		entry = "";
+            		System.out.println("=> " + program.eval(global));
+            } catch (ParsingError e) {
+            		if (e.atEnd && !s.isEmpty()) { // unfinished, keep reading, an empty line gives up on it
+            			continue;
+            		}
+            		
+            		entry = "";
+            		System.out.println("ERROR " + e);
             } catch (Exception e) {
+            		entry = "";
             		System.out.println("ERROR " + e);
             }
         }
@@ -1,3 +1,5 @@
+import java.util.ArrayList;
+
 class FerretSample {
 	String code = String.join("\n", 
 			"a 3;",
@@ -17,6 +19,26 @@ class FerretSample {
         return x;
 	}
 		
+	double factorial (double n) { // rec_factorial.ft by hand, for Benchmark jit
+		return n <= 1 ? 1 : n * factorial(n - 1);
+	}
+	
+	ArrayList<Double> fibonacci (int n) { // and fibonacci.ft
+		ArrayList<Double> end = new ArrayList<>();
+		double oldNumber = 0;
+		double number = 1;
+		end.add(number);
+		
+		for (int i = 0; i < n; i++) {
+			double sum = oldNumber + number;
+			end.add(sum);
+			oldNumber = number;
+			number = sum;
+		}
+		
+		return end;
+	}
+		
 }
 
 /**
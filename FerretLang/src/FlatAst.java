@@ -0,0 +1,328 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+// A program flattened into a few arrays of primitives, instead of an object for every node
+// Nodes are numbered in the order they're written, a node's children are a range of the children array, holding their numbers in order
+
+class FlatAst {
+	static boolean flatMode = false; // run programs from their flat form (Entry --flat)
+	
+	static final byte CONSTANT = 0, REFERENCE = 1, SLOT = 2, GLOBAL = 3, LIST = 4, SEQUENCE = 5, CALL = 6, OPERATION = 7, DEFINITION = 8, FUNCTION = 9;
+	
+	/**
+	 * What a node's operand is, by kind:
+	 *
+	 * CONSTANT                        index into constants, literals with the same value are only stored once
+	 * REFERENCE, GLOBAL, DEFINITION   the name's symbol (see Symbols)
+	 * SLOT                            the name's symbol, the slot is kept in first, since it has no children
+	 * OPERATION                       index into operations, an Operation over FlatNodes, as the operators evaluate their own operands
+	 * FUNCTION                        index into functions, the function's body is its only child
+	 *
+	 * CALL's children are the function and then the arguments, and DEFINITION's is its value.
+	 * That's 13 bytes a node, and 4 more each time it's a child. A subtree that's shared (see Interner) is only written once.
+	 * */
+	
+	final byte[] kinds;
+	final int[] operands;
+	final int[] first; // where the node's children start in children
+	final int[] counts;
+	final int[] children;
+	
+	final IValue[] constants;
+	final Operation[] operations;
+	final Function[] functions;
+	
+	FlatAst (IExpression program) { // the root is node 0
+		Builder builder = new Builder();
+		builder.add(program);
+		
+		int size = builder.size;
+		this.kinds = Arrays.copyOf(builder.kinds, size);
+		this.operands = Arrays.copyOf(builder.operands, size);
+		this.first = Arrays.copyOf(builder.first, size);
+		this.counts = Arrays.copyOf(builder.counts, size);
+		this.children = Arrays.copyOf(builder.children, builder.childCount);
+		this.constants = builder.constants.toArray(new IValue[0]);
+		this.operations = new Operation[builder.operations.size()];
+		this.functions = new Function[builder.functions.size()];
+		
+		for (int i = 0; i < operations.length; i++) { // these point back at this FlatAst, so they're made once it's done
+			Operation op = builder.operations.get(i);
+			int node = builder.operationNodes.get(i);
+			ArrayList<IValue> views = new ArrayList<>();
+			
+			for (int c = first[node]; c < first[node] + counts[node]; c++) {
+				views.add(new FlatNode(this, children[c]));
+			}
+			
+			operations[i] = new Operation(op.type, views);
+		}
+		
+		for (int i = 0; i < functions.length; i++) {
+			int node = builder.functionNodes.get(i);
+			functions[i] = new FlatFunction(builder.functions.get(i).params, new FlatNode(this, children[first[node]]));
+		}
+	}
+	
+	static IExpression flatten (IExpression program) { // something Entry can evaluate like any other program
+		return new FlatNode(new FlatAst(program), 0);
+	}
+	
+	int size () {
+		return kinds.length;
+	}
+	
+	IValue eval (int node, Namespace ns) {
+		switch (kinds[node]) {
+		case CONSTANT:
+			return constants[operands[node]];
+		case REFERENCE:
+			return Utils.orNil(ns.get(operands[node]));
+		case SLOT: {
+			if (ns.base >= 0) {
+				return ns.slot(first[node]);
+			}
+			
+			return Utils.orNil(ns.get(operands[node])); // not evaluated by Function.call, like SlotReference
+		}
+		case GLOBAL:
+			return Utils.orNil(ns.global(operands[node]));
+		case LIST: {
+			ArrayList<IValue> end = new ArrayList<>(counts[node]);
+			
+			for (int c = first[node]; c < first[node] + counts[node]; c++) {
+				end.add(eval(children[c], ns));
+			}
+			
+			return new ListValue(end);
+		}
+		case SEQUENCE: {
+			IValue last = null;
+			
+			for (int c = first[node]; c < first[node] + counts[node]; c++) {
+				last = eval(children[c], ns);
+			}
+			
+			return last == null ? new Nil() : last;
+		}
+		case CALL: {
+			Function func = Utils.function(eval(children[first[node]], ns));
+			int c = first[node] + 1;
+			
+			switch (counts[node] - 1) { // like FunctionCall
+			case 0: return func.call0(ns);
+			case 1: return func.call1(eval(children[c], ns), ns);
+			case 2: return func.call2(eval(children[c], ns), eval(children[c + 1], ns), ns);
+			case 3: return func.call3(eval(children[c], ns), eval(children[c + 1], ns), eval(children[c + 2], ns), ns);
+			case 4: return func.call4(eval(children[c], ns), eval(children[c + 1], ns), eval(children[c + 2], ns), eval(children[c + 3], ns), ns);
+			}
+			
+			ArrayList<IValue> args = new ArrayList<>(counts[node] - 1);
+			
+			for (; c < first[node] + counts[node]; c++) {
+				args.add(eval(children[c], ns));
+			}
+			
+			return func.call(args, ns);
+		}
+		case OPERATION:
+			return operations[operands[node]].eval(ns);
+		case DEFINITION:
+			return ns.set(operands[node], eval(children[first[node]], ns));
+		case FUNCTION:
+			return functions[operands[node]];
+		default:
+			throw new IllegalStateException("Unknown node " + kinds[node]);
+		}
+	}
+	
+	static final String[] kindNames = { "Constant", "Ref", "Slot", "Global", "List", "Sequence", "Call", "Operation", "Def", "Func" };
+	
+	String toString (int node) { // e.g. '3: Call [4, 5, 6]'
+		String operand;
+		
+		switch (kinds[node]) {
+		case CONSTANT: operand = " " + constants[operands[node]]; break;
+		case REFERENCE: case GLOBAL: case DEFINITION: operand = " " + Symbols.name(operands[node]); break;
+		case SLOT: operand = " " + Symbols.name(operands[node]) + " @" + (first[node] + 1); break;
+		case OPERATION: operand = " " + operations[operands[node]].type; break;
+		case FUNCTION: operand = " " + functions[operands[node]].params; break;
+		default: operand = "";
+		}
+		
+		String nodes = counts[node] == 0 ? "" : " " + Arrays.toString(Arrays.copyOfRange(children, first[node], first[node] + counts[node]));
+		return node + ": " + kindNames[kinds[node]] + operand + nodes;
+	}
+	
+	public String toString () {
+		StringBuilder end = new StringBuilder();
+		
+		for (int node = 0; node < size(); node++) {
+			end.append(toString(node)).append("\n");
+		}
+		
+		return end.toString();
+	}
+	
+	static class Builder { // the arrays while they're growing
+		byte[] kinds = new byte[256];
+		int[] operands = new int[256];
+		int[] first = new int[256];
+		int[] counts = new int[256];
+		int[] children = new int[256];
+		int size = 0;
+		int childCount = 0;
+		
+		ArrayList<IValue> constants = new ArrayList<>();
+		Map<Object, Integer> constantIndex = new HashMap<>(); // the literal's class and value
+		Map<IExpression, Integer> added = new IdentityHashMap<>(); // so a shared subtree gets one number
+		ArrayList<Operation> operations = new ArrayList<>();
+		ArrayList<Integer> operationNodes = new ArrayList<>();
+		ArrayList<Function> functions = new ArrayList<>();
+		ArrayList<Integer> functionNodes = new ArrayList<>();
+		
+		int add (IExpression node) { // returns the node's number, after adding it and everything under it
+			Integer seen = added.get(node);
+			
+			if (seen == null) {
+				seen = this.write(node);
+				added.put(node, seen);
+			}
+			
+			return seen;
+		}
+		
+		int write (IExpression node) {
+			if (node instanceof FlatNode) {
+				throw new IllegalArgumentException("Already flat");
+			} else if (node instanceof ALiteral || node instanceof NamedFunction) { // values that can't change, so one object can stand for every copy
+				return leaf(CONSTANT, constant((IValue) node), 0);
+			} else if (node instanceof SlotReference) {
+				return leaf(SLOT, ((Reference) node).symbol, ((SlotReference) node).slot);
+			} else if (node instanceof GlobalReference) {
+				return leaf(GLOBAL, ((Reference) node).symbol, 0);
+			} else if (node instanceof Reference) {
+				return leaf(REFERENCE, ((Reference) node).symbol, 0);
+			} else if (node instanceof ListValue) {
+				return parent(LIST, 0, ((ListValue) node).value);
+			} else if (node instanceof Sequence) {
+				return parent(SEQUENCE, 0, ((Sequence) node).body);
+			} else if (node instanceof FunctionCall) {
+				ArrayList<IExpression> callChildren = new ArrayList<>();
+				callChildren.add(((FunctionCall) node).maybeFunc);
+				callChildren.addAll(((FunctionCall) node).args);
+				return parent(CALL, 0, callChildren);
+			} else if (node instanceof Operation) {
+				operations.add((Operation) node);
+				operationNodes.add(size); // the number parent gives it, noted now since its children can be operations too
+				return parent(OPERATION, operations.size() - 1, ((Operation) node).operands);
+			} else if (node instanceof Definition) {
+				return parent(DEFINITION, ((Definition) node).symbol, Utils.list(((Definition) node).value));
+			} else if (node instanceof Function) {
+				functions.add((Function) node);
+				functionNodes.add(size);
+				return parent(FUNCTION, functions.size() - 1, Utils.list(((Function) node).body())); // a lazy body is parsed now
+			}
+			
+			throw new IllegalArgumentException("Can't flatten a " + node.getClass().getName());
+		}
+		
+		int leaf (byte kind, int operand, int slot) {
+			int index = node(kind, operand);
+			first[index] = slot;
+			return index;
+		}
+		
+		int parent (byte kind, int operand, ArrayList<? extends IExpression> nodes) { // numbered before its children, so a program reads from the front of the arrays
+			int index = node(kind, operand);
+			int[] numbers = new int[nodes.size()];
+			
+			for (int i = 0; i < numbers.length; i++) {
+				numbers[i] = add(nodes.get(i));
+			}
+			
+			if (childCount + numbers.length > children.length) {
+				children = Arrays.copyOf(children, Math.max(children.length * 2, childCount + numbers.length));
+			}
+			
+			System.arraycopy(numbers, 0, children, childCount, numbers.length);
+			first[index] = childCount;
+			counts[index] = numbers.length;
+			childCount += numbers.length;
+			return index;
+		}
+		
+		int node (byte kind, int operand) {
+			if (size == kinds.length) {
+				kinds = Arrays.copyOf(kinds, size * 2);
+				operands = Arrays.copyOf(operands, size * 2);
+				first = Arrays.copyOf(first, size * 2);
+				counts = Arrays.copyOf(counts, size * 2);
+			}
+			
+			kinds[size] = kind;
+			operands[size] = operand;
+			return size++;
+		}
+		
+		int constant (IValue value) {
+			Object key = new AbstractMap.SimpleEntry<Object, Object>(value.getClass(), value instanceof NamedFunction ? ((NamedFunction) value).type : ((ALiteral) value).value);
+			Integer index = constantIndex.get(key);
+			
+			if (index == null) {
+				index = constants.size();
+				constants.add(value);
+				constantIndex.put(key, index);
+			}
+			
+			return index;
+		}
+	}
+}
+
+class FlatNode implements IValue { // a node of a FlatAst, where something needs an IExpression: the program, a function's body, or an operand
+	final FlatAst ast;
+	final int node;
+	
+	FlatNode (FlatAst ast, int node) {
+		this.ast = ast;
+		this.node = node;
+	}
+	
+	public IValue eval (Namespace ns) {
+		return ast.eval(node, ns);
+	}
+	
+	public Datatype getType () {
+		return Datatype.AST_NODE;
+	}
+	
+	public String printOutput () {
+		return "AST node";
+	}
+	
+	public String toString () {
+		return "Flat " + ast.toString(node);
+	}
+}
+
+class FlatFunction extends Function { // a function whose body is in a FlatAst
+	final FlatNode code;
+	
+	FlatFunction (ArrayList<String> params, FlatNode code) {
+		super(params, null);
+		this.code = code;
+	}
+	
+	IExpression code () {
+		return this.code;
+	}
+	
+	public String toString () {
+		return "Func " + params.toString() + " -> " + code.toString();
+	}
+}
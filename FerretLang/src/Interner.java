@@ -0,0 +1,292 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Objects;
+
+// Hash-consing, run after parsing: subtrees that are the same in every way become one shared object
+// A node's children and values can't be changed once it's made, so a subtree can be in any number of places, in any number of programs
+
+class Interner {
+	static boolean internMode = false; // intern programs run from a file (Entry --intern)
+	static final Interner shared = new Interner(); // one table for every program, so generated scripts share with each other too
+	
+	/**
+	 * The table only holds nodes weakly, so a subtree is forgotten once no program uses it. It's a hash table of weak references,
+	 * rather than a WeakHashMap, since nodes don't have an equals of their own (MapValue keys depend on that), two nodes are the same here if:
+	 *
+	 * - they're the same class, with the same value, key, parameters or operator
+	 * - and their children are the same objects, which they are once the children have been interned
+	 *
+	 * So a node is compared with one level of the table, not its whole subtree. Lazy function bodies aren't parsed for this, they're left alone.
+	 *
+	 * Call sites (FunctionCall, and Operation for ':') do change as they run, they keep the function they found (CallCache) and what they've been given
+	 * (Specialization). That's only ever a guess checked on the next run, so sharing a site never changes what a program does, but a shared site learns
+	 * from every place it's in: a '+' given numbers in one and strings in another keeps swapping between the two until it gives up and stays generic,
+	 * and a call found from several scopes fills its cache sooner. Sites are still shared, since every function body and block above them is only shared if they are.
+	 * */
+	
+	static class Entry extends WeakReference<IExpression> {
+		final int hash;
+		Entry next;
+		
+		Entry (IExpression node, int hash, Entry next, ReferenceQueue<IExpression> queue) {
+			super(node, queue);
+			this.hash = hash;
+			this.next = next;
+		}
+	}
+	
+	Entry[] table = new Entry[1 << 10];
+	int size = 0;
+	ReferenceQueue<IExpression> cleared = new ReferenceQueue<>();
+	
+	int nodes = 0; // nodes looked at, and how many of them were already in the table
+	int found = 0;
+	long saved = 0; // an estimate of the bytes the copies held, see bytes
+	
+	static IExpression intern (IExpression program) {
+		return shared.canonical(program);
+	}
+	
+	synchronized IExpression canonical (IExpression node) { // the shared copy of node, with shared copies of its children
+		IExpression end;
+		
+		if (node instanceof ListValue) {
+			ArrayList<IValue> values = canonicalAll(((ListValue) node).value);
+			end = values == null ? node : new ListValue(values);
+		} else if (node instanceof Sequence) {
+			ArrayList<IExpression> body = canonicalAll(((Sequence) node).body);
+			end = body == null ? node : new Sequence(body);
+		} else if (node instanceof FunctionCall) {
+			FunctionCall call = (FunctionCall) node;
+			IValue func = (IValue) canonical(call.maybeFunc);
+			ArrayList<IValue> args = canonicalAll(call.args);
+			end = func == call.maybeFunc && args == null ? node : new FunctionCall(func, args == null ? call.args : args);
+		} else if (node instanceof Operation) {
+			ArrayList<IValue> operands = canonicalAll(((Operation) node).operands);
+			end = operands == null ? node : new Operation(((Operation) node).type, operands);
+		} else if (node instanceof Definition) {
+			IValue value = (IValue) canonical(((Definition) node).value);
+			end = value == ((Definition) node).value ? node : new Definition(((Definition) node).key, value);
+		} else if (plainFunction(node)) {
+			Sequence body = (Sequence) canonical(((Function) node).body);
+			end = body == ((Function) node).body ? node : new Function(((Function) node).params, body);
+		} else if (node instanceof ALiteral || node instanceof Reference) {
+			end = node;
+		} else {
+			return node; // NamedFunction, LazyFunction, and anything else is left as it is
+		}
+		
+		nodes++;
+		return this.lookup(end);
+	}
+	
+	@SuppressWarnings("unchecked")
+	<T extends IExpression> ArrayList<T> canonicalAll (ArrayList<T> nodes) { // null if every one was already the shared copy
+		ArrayList<T> end = null;
+		
+		for (int i = 0; i < nodes.size(); i++) {
+			T node = (T) canonical(nodes.get(i));
+			
+			if (node != nodes.get(i) && end == null) {
+				end = new ArrayList<>(nodes.subList(0, i));
+			}
+			
+			if (end != null) {
+				end.add(node);
+			}
+		}
+		
+		return end;
+	}
+	
+	IExpression lookup (IExpression node) { // the node in the table the same as node, or node after adding it
+		this.expunge();
+		int hash = hash(node);
+		
+		for (Entry entry = table[hash & (table.length - 1)]; entry != null; entry = entry.next) {
+			IExpression other = entry.get();
+			
+			if (entry.hash == hash && other != null && same(node, other)) {
+				found++;
+				saved += bytes(node);
+				return other;
+			}
+		}
+		
+		if (size >= table.length * 3 / 4) {
+			this.resize();
+		}
+		
+		int index = hash & (table.length - 1);
+		table[index] = new Entry(node, hash, table[index], cleared);
+		size++;
+		return node;
+	}
+	
+	void expunge () { // takes out the entries for nodes that have been collected
+		for (Object ref = cleared.poll(); ref != null; ref = cleared.poll()) {
+			Entry gone = (Entry) ref;
+			int index = gone.hash & (table.length - 1);
+			
+			if (table[index] == gone) {
+				table[index] = gone.next;
+				size--;
+				continue;
+			}
+			
+			for (Entry entry = table[index]; entry != null; entry = entry.next) {
+				if (entry.next == gone) {
+					entry.next = gone.next;
+					size--;
+					break;
+				}
+			}
+		}
+	}
+	
+	void resize () {
+		Entry[] bigger = new Entry[table.length * 2];
+		
+		for (Entry head : table) {
+			for (Entry entry = head; entry != null; ) {
+				Entry next = entry.next;
+				int index = entry.hash & (bigger.length - 1);
+				entry.next = bigger[index];
+				bigger[index] = entry;
+				entry = next;
+			}
+		}
+		
+		table = bigger;
+	}
+	
+	static boolean plainFunction (IExpression node) { // a function the parser made, with its body already there
+		return node instanceof Function && node.getClass() == Function.class;
+	}
+	
+	static int hash (IExpression node) {
+		int hash = node.getClass().hashCode();
+		
+		if (node instanceof ALiteral) {
+			hash = hash * 31 + Objects.hashCode(((ALiteral) node).value);
+		} else if (node instanceof Reference) {
+			hash = hash * 31 + ((Reference) node).symbol + (node instanceof SlotReference ? ((SlotReference) node).slot : 0);
+		} else if (node instanceof ListValue) {
+			hash = hash * 31 + identities(((ListValue) node).value);
+		} else if (node instanceof Sequence) {
+			hash = hash * 31 + identities(((Sequence) node).body);
+		} else if (node instanceof FunctionCall) {
+			hash = (hash * 31 + System.identityHashCode(((FunctionCall) node).maybeFunc)) * 31 + identities(((FunctionCall) node).args);
+		} else if (node instanceof Operation) {
+			hash = (hash * 31 + ((Operation) node).type.hashCode()) * 31 + identities(((Operation) node).operands);
+		} else if (node instanceof Definition) {
+			hash = (hash * 31 + ((Definition) node).symbol) * 31 + System.identityHashCode(((Definition) node).value);
+		} else if (node instanceof Function) {
+			hash = (hash * 31 + ((Function) node).params.hashCode()) * 31 + System.identityHashCode(((Function) node).body);
+		}
+		
+		return hash ^ (hash >>> 16);
+	}
+	
+	static int identities (ArrayList<? extends IExpression> nodes) {
+		int hash = 1;
+		
+		for (IExpression node : nodes) {
+			hash = hash * 31 + System.identityHashCode(node);
+		}
+		
+		return hash;
+	}
+	
+	static boolean same (IExpression a, IExpression b) { // a and b's children are already shared, so they're compared by identity
+		if (a.getClass() != b.getClass()) {
+			return false;
+		} else if (a instanceof ALiteral) {
+			return Objects.equals(((ALiteral) a).value, ((ALiteral) b).value);
+		} else if (a instanceof SlotReference) {
+			return ((Reference) a).symbol == ((Reference) b).symbol && ((SlotReference) a).slot == ((SlotReference) b).slot;
+		} else if (a instanceof Reference) {
+			return ((Reference) a).symbol == ((Reference) b).symbol;
+		} else if (a instanceof ListValue) {
+			return identical(((ListValue) a).value, ((ListValue) b).value);
+		} else if (a instanceof Sequence) {
+			return identical(((Sequence) a).body, ((Sequence) b).body);
+		} else if (a instanceof FunctionCall) {
+			return ((FunctionCall) a).maybeFunc == ((FunctionCall) b).maybeFunc && identical(((FunctionCall) a).args, ((FunctionCall) b).args);
+		} else if (a instanceof Operation) {
+			return ((Operation) a).type.equals(((Operation) b).type) && identical(((Operation) a).operands, ((Operation) b).operands);
+		} else if (a instanceof Definition) {
+			return ((Definition) a).symbol == ((Definition) b).symbol && ((Definition) a).value == ((Definition) b).value;
+		} else if (a instanceof Function) {
+			return ((Function) a).params.equals(((Function) b).params) && ((Function) a).body == ((Function) b).body;
+		}
+		
+		return false;
+	}
+	
+	static boolean identical (ArrayList<? extends IExpression> a, ArrayList<? extends IExpression> b) {
+		if (a.size() != b.size()) {
+			return false;
+		}
+		
+		for (int i = 0; i < a.size(); i++) {
+			if (a.get(i) != b.get(i)) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	static long bytes (IExpression node) { // roughly what node holds besides its children, which are counted on their own
+		/**
+		 * An estimate, for a 64-bit JVM with compressed references: 12 byte object headers, 4 bytes a field, everything padded to 8 bytes,
+		 * and Latin-1 strings (Java 9 and later). Boxed booleans, and the strings Symbols and the core functions keep anyway, aren't counted.
+		 * Benchmark.intern measures the real difference, this is so --intern can say something without a heap dump.
+		 * */
+		
+		if (node instanceof ALiteral) {
+			Object value = ((ALiteral) node).value;
+			return object(1) + (value instanceof Double ? object(2) : value instanceof String ? string((String) value) : 0);
+		} else if (node instanceof Reference) {
+			return object(node instanceof SlotReference ? 3 : 2);
+		} else if (node instanceof ListValue) {
+			return object(1) + list(((ListValue) node).value.size());
+		} else if (node instanceof Sequence) {
+			return object(1) + list(((Sequence) node).body.size());
+		} else if (node instanceof FunctionCall) {
+			return object(5) + list(((FunctionCall) node).args.size());
+		} else if (node instanceof Operation) {
+			return object(5) + list(((Operation) node).operands.size());
+		} else if (node instanceof Definition) {
+			return object(3);
+		} else if (node instanceof Function) {
+			int params = ((Function) node).params.size();
+			return object(3) + list(params) + pad(16 + 4 * params);
+		}
+		
+		return 0;
+	}
+	
+	static long object (int fields) {
+		return pad(12 + 4 * fields);
+	}
+	
+	static long list (int size) { // an ArrayList, and its array
+		return object(3) + pad(16 + 4 * size);
+	}
+	
+	static long string (String s) {
+		return object(4) + pad(16 + s.length());
+	}
+	
+	static long pad (long bytes) {
+		return (bytes + 7) & ~7;
+	}
+	
+	String report () { // e.g. 'interned 1200 nodes, 900 were copies (75%), about 40 KB saved, 300 in the table'
+		String bytes = saved < 10 * 1024 ? saved + " bytes" : saved / 1024 + " KB";
+		return "interned " + nodes + " nodes, " + found + " were copies (" + (nodes == 0 ? 0 : found * 100 / nodes) + "%), about " + bytes + " saved, " + size + " in the table";
+	}
+}
@@ -0,0 +1,663 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A JIT for function bodies: once a function has been called often enough, its body is compiled to a JVM class, which HotSpot then compiles like any other Java
+// Anything the JIT doesn't know how to compile is left to the interpreter, one node at a time
+
+class Jit {
+	static boolean jitMode = false; // Entry --jit
+	static boolean dumpMode = false; // write each class to jit/ as well, to look at with javap (Entry --jit-dump)
+	static int threshold = 1000; // calls before a function is compiled
+	
+	/**
+	 * Every function in the program becomes a JitFunction (see prepare), and the program is resolved first, like ClosureCompiler.
+	 * A compiled body is one class implementing ICompiled, its run method is the body with every node written out in place, so each node has its own
+	 * call sites for HotSpot to profile and inline, all the way into the Functions it calls. Nodes are compiled to:
+	 *
+	 * - slot, global and ordinary loads for names (Jit.slot, Jit.global, Jit.get), and Namespace.set for a definition
+	 * - call0 up to call4 by the number of arguments, or Jit.call for more. A plain name is found through FunctionCall's cache
+	 * - Jit.binary for a call with two arguments to + - * / < > <= or >=, which does the arithmetic without a call if the function really is that
+	 *   NamedFunction when it runs, and both arguments are numbers. Anything else (strings for '+', an operator defined again) is an ordinary call2
+	 * - branches for 'if' given two blocks, which run in the caller's scope like ClosureCompiler, and a comparison as the condition doesn't make a BooleanLiteral
+	 * - a constant for literals and functions, and Jit.index for ':'
+	 *
+	 * Any other node (the other operators, things made by hand) is kept as a constant, and evaluated by the interpreter. If the class can't be made at all
+	 * (e.g. a body too big for one method) the function stays interpreted.
+	 *
+	 * Classes are defined as hidden classes where the JVM has them (15 and up), so one is unloaded once its function is, with Lookup.defineClass before that,
+	 * and ClassLoader.defineClass on Java 8. Each is written in class file version 49, which doesn't need stack map frames.
+	 * */
+	
+	static final String[] OPERATORS = { "+", "-", "*", "/", "<", ">", "<=", ">=" }; // Jit.binary's op is an index into this, the comparisons are from COMPARISONS on
+	static final int COMPARISONS = 4;
+	static final AtomicInteger classes = new AtomicInteger(); // made so far, also gives each one its own name
+	
+	static IExpression prepare (IExpression program) { // something Entry can evaluate like any other program
+		return rebuild(Resolver.resolve(program), null);
+	}
+	
+	static IExpression rebuild (IExpression node, String name) { // with a JitFunction for each function, name is what it's defined as
+		if (node instanceof Sequence) {
+			return new Sequence(rebuildAll(((Sequence) node).body));
+		} else if (node instanceof FunctionCall) {
+			return new FunctionCall((IValue) rebuild(((FunctionCall) node).maybeFunc, null), rebuildAll(((FunctionCall) node).args));
+		} else if (node instanceof Operation) {
+			return new Operation(((Operation) node).type, rebuildAll(((Operation) node).operands));
+		} else if (node instanceof Definition) {
+			Definition def = (Definition) node;
+			return new Definition(def.symbol, (IValue) rebuild(def.value, def.key));
+		} else if (node instanceof ListValue) {
+			return new ListValue(rebuildAll(((ListValue) node).value));
+		} else if (node.getClass() == Function.class || node instanceof LazyFunction) {
+			Function func = (Function) node;
+			return new JitFunction(func.params, (Sequence) rebuild(func.body(), null), name);
+		}
+		
+		return node;
+	}
+	
+	@SuppressWarnings("unchecked")
+	static <T extends IExpression> ArrayList<T> rebuildAll (ArrayList<T> nodes) {
+		ArrayList<T> end = new ArrayList<>(nodes.size());
+		
+		for (T node : nodes) {
+			end.add((T) rebuild(node, null));
+		}
+		
+		return end;
+	}
+	
+	static ICompiled compile (JitFunction func) { // null if it can't be
+		String name = "Jit$" + (func.name == null ? "lambda" : func.name.replaceAll("[^A-Za-z0-9_]", "_")) + "$" + classes.incrementAndGet();
+		
+		try {
+			JitWriter writer = new JitWriter(name);
+			writer.sequence(func.body.body);
+			byte[] bytes = writer.toClass();
+			
+			if (dumpMode) {
+				dump(name, bytes);
+			}
+			
+			return (ICompiled) define(bytes).getConstructor(IExpression[].class).newInstance((Object) writer.constants());
+		} catch (IllegalStateException e) { // too big, so it's left to the interpreter
+			if (dumpMode) {
+				System.err.println("Didn't compile " + name + ": " + e.getMessage());
+			}
+			
+			return null;
+		} catch (IOException | RuntimeException | ReflectiveOperationException | LinkageError e) { // JitWriter wrote something wrong, the interpreter can still run it
+			System.err.println("Couldn't compile " + name + ": " + e);
+			
+			if (dumpMode) {
+				e.printStackTrace();
+			}
+			
+			return null;
+		}
+	}
+	
+	static Class<?> define (byte[] bytes) throws ReflectiveOperationException { // in this package, since the classes use its package-private ones
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		
+		try { // these are looked up by name, the code has to build for Java 8
+			Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+			Object none = Array.newInstance(option, 0);
+			Method hidden = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, none.getClass());
+			return ((MethodHandles.Lookup) hidden.invoke(lookup, bytes, true, none)).lookupClass();
+		} catch (ClassNotFoundException | NoSuchMethodException e) {
+			// before Java 15
+		}
+		
+		try {
+			return (Class<?>) MethodHandles.Lookup.class.getMethod("defineClass", byte[].class).invoke(lookup, bytes);
+		} catch (NoSuchMethodException e) {
+			// Java 8
+		}
+		
+		Method define = ClassLoader.class.getDeclaredMethod("defineClass", String.class, byte[].class, int.class, int.class);
+		define.setAccessible(true);
+		return (Class<?>) define.invoke(Jit.class.getClassLoader(), null, bytes, 0, bytes.length);
+	}
+	
+	static void dump (String name, byte[] bytes) {
+		try {
+			Files.createDirectories(Paths.get("jit"));
+			Files.write(Paths.get("jit", name + ".class"), bytes);
+		} catch (IOException e) {
+			System.err.println("Couldn't write jit/" + name + ".class: " + e);
+		}
+	}
+	
+	static boolean block (IExpression node) { // a block that can be run in its caller's scope, see ClosureCompiler
+		return node instanceof JitFunction && ((Function) node).params.isEmpty() && !ClosureCompiler.defines(((Function) node).body);
+	}
+	
+	static int operator (FunctionCall call) { // which of OPERATORS call is to, by name, or -1
+		return call.args.size() == 2 && call.maybeFunc instanceof Reference ? Arrays.asList(OPERATORS).indexOf(((Reference) call.maybeFunc).key) : -1;
+	}
+	
+	// what the compiled code calls, small enough for HotSpot to inline
+	
+	static IValue slot (Namespace ns, int slot, int symbol) {
+		return ns.base >= 0 ? ns.slot(slot) : get(ns, symbol); // not run by Function.call, like SlotReference
+	}
+	
+	static IValue global (Namespace ns, int symbol) {
+		return Utils.orNil(ns.global(symbol));
+	}
+	
+	static IValue get (Namespace ns, int symbol) {
+		return Utils.orNil(ns.get(symbol));
+	}
+	
+	static IValue nil () {
+		return new Nil();
+	}
+	
+	static IValue list (IValue[] values) {
+		return new ListValue(new ArrayList<>(Arrays.asList(values)));
+	}
+	
+	static IValue call (Function func, IValue[] args, Namespace ns) {
+		return func.call(new ArrayList<>(Arrays.asList(args)), ns);
+	}
+	
+	static IValue index (IValue collection, IValue key, Namespace ns) { // the ':' in Utils.loadOps
+		return ((ICollection) collection).get(key, ns);
+	}
+	
+	static boolean named (IValue func, int op) {
+		return func instanceof NamedFunction && ((NamedFunction) func).type.equals(OPERATORS[op]);
+	}
+	
+	static double number (IValue value) {
+		return (Double) ((NumberLiteral) value).value;
+	}
+	
+	static IValue binary (int op, IValue func, IValue a, IValue b, Namespace ns) { // the same as the binary operations in Utils.loadNamed
+		if (a instanceof NumberLiteral && b instanceof NumberLiteral && named(func, op)) {
+			double x = number(a);
+			double y = number(b);
+			
+			switch (op) {
+			case 0: return new NumberLiteral(Utils.sum(x, y));
+			case 1: return new NumberLiteral(x - y);
+			case 2: return new NumberLiteral(x * y);
+			case 3: return new NumberLiteral(x / y);
+			default: return new BooleanLiteral(test(op, x, y));
+			}
+		}
+		
+		return Utils.function(func).call2(a, b, ns);
+	}
+	
+	static boolean condition (int op, IValue func, IValue a, IValue b, Namespace ns) { // a comparison as an if's condition
+		if (a instanceof NumberLiteral && b instanceof NumberLiteral && named(func, op)) {
+			return test(op, number(a), number(b));
+		}
+		
+		return Utils.truth(Utils.function(func).call2(a, b, ns), ns);
+	}
+	
+	static boolean test (int op, double x, double y) {
+		switch (op) {
+		case 4: return x < y;
+		case 5: return x > y;
+		case 6: return x <= y;
+		default: return x >= y;
+		}
+	}
+}
+
+class JitFunction extends Function { // a function that's compiled once it's been called Jit.threshold times
+	final String name; // what it was defined as, if it was, for its class's name
+	volatile CompiledNode compiled; // null until then, or if it couldn't be
+	int calls = 0; // not exact with several threads, it doesn't need to be
+	
+	JitFunction (ArrayList<String> params, Sequence body, String name) {
+		super(params, body);
+		this.name = name;
+	}
+	
+	IExpression code () {
+		CompiledNode compiled = this.compiled;
+		
+		if (compiled != null) {
+			return compiled;
+		}
+		
+		if (++calls == Jit.threshold) { // only tried once
+			ICompiled code = Jit.compile(this);
+			
+			if (code != null) {
+				this.compiled = new CompiledNode(code, this.body);
+			}
+		}
+		
+		return this.body;
+	}
+}
+
+class JitWriter { // writes one compiled body as a class file, by hand
+	
+	/**
+	 * The class is:
+	 *
+	 *     final class Jit$name$n implements ICompiled {
+	 *         final IExpression[] k; // constants, and the nodes left to the interpreter
+	 *         public Jit$name$n (IExpression[] k) { this.k = k; }
+	 *         public IValue run (Namespace ns) { the body }
+	 *     }
+	 *
+	 * The body is written as it's compiled, keeping track of how deep the operand stack gets. There are no loops, so jumps only ever go forward.
+	 * */
+	
+	static final String VALUE = "LIValue;", NAMESPACE = "LNamespace;";
+	
+	final String name;
+	final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+	final DataOutputStream pool = new DataOutputStream(poolBytes);
+	final Map<String, Integer> entries = new HashMap<>();
+	int poolCount = 1;
+	
+	byte[] code = new byte[256];
+	int length = 0;
+	int stack = 0;
+	int maxStack = 0;
+	final Map<Integer, Integer> jumps = new HashMap<>(); // how deep the stack is after each jump, for where it lands
+	
+	final ArrayList<IExpression> constants = new ArrayList<>();
+	final Map<IExpression, Integer> constantIndex = new IdentityHashMap<>();
+	
+	JitWriter (String name) {
+		this.name = name;
+	}
+	
+	IExpression[] constants () {
+		return constants.toArray(new IExpression[0]);
+	}
+	
+	// the body
+	
+	void expression (IExpression node) { // leaves node's value on the stack
+		if (node instanceof ALiteral || node instanceof Function || node instanceof MapValue) { // these evaluate to themselves
+			this.constant(node, "IValue");
+		} else if (node instanceof SlotReference) {
+			op(0x2b, 1); // aload_1, ns
+			push(((SlotReference) node).slot);
+			push(((Reference) node).symbol);
+			invoke(0xb8, "Jit", "slot", "(" + NAMESPACE + "II)" + VALUE);
+		} else if (node instanceof GlobalReference || node.getClass() == Reference.class) {
+			op(0x2b, 1);
+			push(((Reference) node).symbol);
+			invoke(0xb8, "Jit", node instanceof GlobalReference ? "global" : "get", "(" + NAMESPACE + "I)" + VALUE);
+		} else if (node instanceof Sequence) {
+			this.sequence(((Sequence) node).body);
+		} else if (node instanceof ListValue) {
+			this.array(((ListValue) node).value);
+			invoke(0xb8, "Jit", "list", "([" + VALUE + ")" + VALUE);
+		} else if (node instanceof FunctionCall) {
+			this.call((FunctionCall) node);
+		} else if (node instanceof Operation && ((Operation) node).type.equals(":") && ((Operation) node).operands.size() == 2) {
+			expression(((Operation) node).operands.get(0));
+			expression(((Operation) node).operands.get(1));
+			op(0x2b, 1);
+			invoke(0xb8, "Jit", "index", "(" + VALUE + VALUE + NAMESPACE + ")" + VALUE);
+		} else if (node instanceof Definition) {
+			op(0x2b, 1);
+			push(((Definition) node).symbol);
+			expression(((Definition) node).value);
+			invoke(0xb6, "Namespace", "set", "(I" + VALUE + ")" + VALUE);
+		} else { // left to the interpreter
+			this.constant(node, null);
+			op(0x2b, 1);
+			invoke(0xb9, "IExpression", "eval", "(" + NAMESPACE + ")" + VALUE);
+		}
+	}
+	
+	void sequence (ArrayList<IExpression> body) {
+		if (body.isEmpty()) {
+			invoke(0xb8, "Jit", "nil", "()" + VALUE);
+			return;
+		}
+		
+		for (int i = 0; i < body.size(); i++) {
+			expression(body.get(i));
+			
+			if (i < body.size() - 1) {
+				op(0x57, -1); // pop
+			}
+		}
+	}
+	
+	void array (ArrayList<? extends IExpression> nodes) { // an IValue[] of their values
+		push(nodes.size());
+		op(0xbd, 0); // anewarray
+		u2(classRef("IValue"));
+		
+		for (int i = 0; i < nodes.size(); i++) {
+			op(0x59, 1); // dup
+			push(i);
+			expression(nodes.get(i));
+			op(0x53, -3); // aastore
+		}
+	}
+	
+	void call (FunctionCall call) {
+		int n = call.args.size();
+		int op = Jit.operator(call);
+		
+		if (n == 3 && Jit.block(call.args.get(1)) && Jit.block(call.args.get(2))) {
+			this.conditional(call);
+			return;
+		} else if (op >= 0) {
+			push(op);
+			this.callee(call);
+			expression(call.args.get(0));
+			expression(call.args.get(1));
+			op(0x2b, 1);
+			invoke(0xb8, "Jit", "binary", "(I" + VALUE + VALUE + VALUE + NAMESPACE + ")" + VALUE);
+			return;
+		}
+		
+		this.callee(call);
+		invoke(0xb8, "Utils", "function", "(" + VALUE + ")LFunction;");
+		
+		if (n > 4) {
+			this.array(call.args);
+			op(0x2b, 1);
+			invoke(0xb8, "Jit", "call", "(LFunction;[" + VALUE + NAMESPACE + ")" + VALUE);
+			return;
+		}
+		
+		StringBuilder desc = new StringBuilder("(");
+		
+		for (IValue arg : call.args) {
+			expression(arg);
+			desc.append(VALUE);
+		}
+		
+		op(0x2b, 1);
+		invoke(0xb6, "Function", "call" + n, desc.append(NAMESPACE).append(")").append(VALUE).toString());
+	}
+	
+	void callee (FunctionCall call) { // the function, as an IValue
+		if (call.symbol == 0) {
+			expression(call.maybeFunc);
+			return;
+		}
+		
+		this.constant(call, "FunctionCall"); // a plain name, found through the call's cache
+		op(0x2b, 1);
+		invoke(0xb6, "FunctionCall", "callee", "(" + NAMESPACE + ")LFunction;");
+	}
+	
+	void conditional (FunctionCall call) { // 'if (cond { ... } { ... })', the blocks' bodies are run here if it's really 'if'
+		this.callee(call);
+		op(0x59, 1); // dup
+		invoke(0xb8, "Utils", "isIf", "(" + VALUE + ")Z");
+		int ordinary = jump(0x99, -1); // ifeq
+		op(0x57, -1); // pop
+		this.condition(call.args.get(0));
+		int otherwise = jump(0x99, -1);
+		this.sequence(((Function) call.args.get(1)).body.body);
+		int end = jump(0xa7, 0); // goto
+		
+		land(otherwise);
+		this.sequence(((Function) call.args.get(2)).body.body);
+		int end2 = jump(0xa7, 0);
+		
+		land(ordinary); // the function is still on the stack
+		invoke(0xb8, "Utils", "function", "(" + VALUE + ")LFunction;");
+		expression(call.args.get(0));
+		expression(call.args.get(1));
+		expression(call.args.get(2));
+		op(0x2b, 1);
+		invoke(0xb6, "Function", "call3", "(" + VALUE + VALUE + VALUE + NAMESPACE + ")" + VALUE);
+		
+		land(end);
+		land(end2);
+	}
+	
+	void condition (IExpression node) { // leaves an int, whether the condition is true
+		int op = node instanceof FunctionCall ? Jit.operator((FunctionCall) node) : -1;
+		
+		if (op >= Jit.COMPARISONS) {
+			FunctionCall call = (FunctionCall) node;
+			push(op);
+			this.callee(call);
+			expression(call.args.get(0));
+			expression(call.args.get(1));
+			op(0x2b, 1);
+			invoke(0xb8, "Jit", "condition", "(I" + VALUE + VALUE + VALUE + NAMESPACE + ")Z");
+			return;
+		}
+		
+		expression(node);
+		op(0x2b, 1);
+		invoke(0xb8, "Utils", "truth", "(" + VALUE + NAMESPACE + ")Z");
+	}
+	
+	void constant (IExpression node, String type) { // k[i], cast to type unless it's null
+		Integer index = constantIndex.get(node);
+		
+		if (index == null) {
+			index = constants.size();
+			constants.add(node);
+			constantIndex.put(node, index);
+		}
+		
+		op(0x2a, 1); // aload_0
+		op(0xb4, 0); // getfield
+		u2(ref(9, name, "k", "[LIExpression;"));
+		push(index);
+		op(0x32, -1); // aaload
+		
+		if (type != null) {
+			op(0xc0, 0); // checkcast
+			u2(classRef(type));
+		}
+	}
+	
+	// instructions
+	
+	void op (int opcode, int effect) { // effect is how much it changes the depth of the stack by
+		u1(opcode);
+		stack += effect;
+		maxStack = Math.max(maxStack, stack);
+	}
+	
+	void push (int value) {
+		if (value >= -1 && value <= 5) {
+			op(0x03 + value, 1); // iconst
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			op(0x10, 1); // bipush
+			u1(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			op(0x11, 1); // sipush
+			u2(value);
+		} else {
+			op(0x13, 1); // ldc_w
+			u2(entry("I" + value, 3, out -> out.writeInt(value)));
+		}
+	}
+	
+	void invoke (int opcode, String owner, String method, String desc) { // the stack effect comes from the descriptor, none of them take a long or a double
+		int args = 0;
+		
+		for (int i = 1; desc.charAt(i) != ')'; i++, args++) {
+			while (desc.charAt(i) == '[') {
+				i++;
+			}
+			
+			if (desc.charAt(i) == 'L') {
+				i = desc.indexOf(';', i);
+			}
+		}
+		
+		int effect = (desc.endsWith(")V") ? 0 : 1) - args - (opcode == 0xb8 ? 0 : 1);
+		op(opcode, effect);
+		u2(ref(opcode == 0xb9 ? 11 : 10, owner, method, desc));
+		
+		if (opcode == 0xb9) { // invokeinterface also gives its number of argument slots
+			u1(args + 1);
+			u1(0);
+		}
+	}
+	
+	int jump (int opcode, int effect) { // a forward jump, returns where it is so land can fill in where it goes
+		int at = length;
+		op(opcode, effect);
+		u2(0);
+		jumps.put(at, stack);
+		return at;
+	}
+	
+	void land (int jump) { // the jump goes here, with the stack as deep as it was after jumping
+		int offset = length - jump;
+		
+		if (offset > Short.MAX_VALUE) {
+			throw new IllegalStateException("Body too big to compile");
+		}
+		
+		code[jump + 1] = (byte) (offset >> 8);
+		code[jump + 2] = (byte) offset;
+		stack = jumps.get(jump);
+	}
+	
+	void u1 (int value) {
+		if (length == code.length) {
+			code = Arrays.copyOf(code, length * 2);
+		}
+		
+		code[length++] = (byte) value;
+	}
+	
+	void u2 (int value) {
+		u1(value >> 8);
+		u1(value);
+	}
+	
+	// the constant pool
+	
+	interface Entry {
+		void write(DataOutputStream out) throws IOException;
+	}
+	
+	int entry (String key, int tag, Entry entry) { // an entry's index, added the first time it's asked for
+		Integer index = entries.get(key);
+		
+		if (index == null) {
+			try {
+				pool.writeByte(tag);
+				entry.write(pool);
+			} catch (IOException e) {
+				throw new IllegalStateException(e); // a ByteArrayOutputStream doesn't throw
+			}
+			
+			index = poolCount++;
+			entries.put(key, index);
+		}
+		
+		return index;
+	}
+	
+	int utf8 (String text) {
+		return entry("U" + text, 1, out -> out.writeUTF(text));
+	}
+	
+	int classRef (String type) {
+		int text = utf8(type);
+		return entry("C" + type, 7, out -> out.writeShort(text));
+	}
+	
+	int ref (int tag, String owner, String member, String desc) { // 9 for a field, 10 for a method, 11 for an interface method
+		int ownerIndex = classRef(owner);
+		int memberIndex = utf8(member);
+		int descIndex = utf8(desc);
+		int nameAndType = entry("N" + member + desc, 12, out -> {
+			out.writeShort(memberIndex);
+			out.writeShort(descIndex);
+		});
+		
+		return entry(tag + owner + "." + member + desc, tag, out -> {
+			out.writeShort(ownerIndex);
+			out.writeShort(nameAndType);
+		});
+	}
+	
+	byte[] toClass () throws IOException { // once the body has been written
+		op(0xb0, -1); // areturn
+		
+		if (length > Short.MAX_VALUE || poolCount > 0xffff) {
+			throw new IllegalStateException("Body too big to compile");
+		}
+		
+		byte[] init = { 0x2a, (byte) 0xb7, 0, 0, 0x2a, 0x2b, (byte) 0xb5, 0, 0, (byte) 0xb1 }; // super(); this.k = k; return;
+		int superInit = ref(10, "java/lang/Object", "<init>", "()V");
+		int field = ref(9, name, "k", "[LIExpression;");
+		init[2] = (byte) (superInit >> 8);
+		init[3] = (byte) superInit;
+		init[7] = (byte) (field >> 8);
+		init[8] = (byte) field;
+		
+		int thisClass = classRef(name);
+		int superClass = classRef("java/lang/Object");
+		int compiled = classRef("ICompiled");
+		int codeName = utf8("Code");
+		int[] names = { utf8("k"), utf8("[LIExpression;"), utf8("<init>"), utf8("([LIExpression;)V"), utf8("run"), utf8("(" + NAMESPACE + ")" + VALUE) };
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(49);
+		out.writeShort(poolCount);
+		poolBytes.writeTo(out);
+		out.writeShort(0x0030); // final, super
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(1);
+		out.writeShort(compiled);
+		
+		out.writeShort(1); // k
+		out.writeShort(0x0010);
+		out.writeShort(names[0]);
+		out.writeShort(names[1]);
+		out.writeShort(0);
+		
+		out.writeShort(2);
+		method(out, names[2], names[3], codeName, 2, init, init.length);
+		method(out, names[4], names[5], codeName, maxStack, code, length);
+		out.writeShort(0);
+		return bytes.toByteArray();
+	}
+	
+	static void method (DataOutputStream out, int name, int desc, int codeName, int maxStack, byte[] code, int length) throws IOException { // public, with two locals (this and the argument)
+		out.writeShort(0x0001);
+		out.writeShort(name);
+		out.writeShort(desc);
+		out.writeShort(1);
+		out.writeShort(codeName);
+		out.writeInt(12 + length);
+		out.writeShort(maxStack);
+		out.writeShort(2);
+		out.writeInt(length);
+		out.write(code, 0, length);
+		out.writeShort(0); // no exception table
+		out.writeShort(0); // or attributes
+	}
+}
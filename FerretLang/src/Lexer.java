@@ -1,3 +1,5 @@
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -115,9 +117,593 @@ class BreakT extends AToken {
 	}
 }
 
+class TokenBuffer { // the lexer's output, stored as parallel arrays instead of one AToken object per token
+	static final int END = 0, IDENTIFIER = 1, NUMBER = 2, STRING = 3, BOOL = 4, NIL = 5, // END is what's "read" past the last token
+			LEFT_PAREN = 6, RIGHT_PAREN = 7, LEFT_BRACE = 8, RIGHT_BRACE = 9, LEFT_BRACKET = 10, RIGHT_BRACKET = 11, SEMICOLON = 12,
+			COLON = 13, LESS = 14, GREATER = 15, ELLIPSIS = 16;
+
+	static final String[] symbols = { null, null, null, null, null, null, "(", ")", "{", "}", "[", "]", ";", ":", "<", ">", "..." };
+	static final String[] names = { "end of input", "identifier", "NUMBER", "STRING", "BOOL", "NIL" };
+
+	CharSequence source;
+	int size = 0;
+	int[] kinds;
+	int[] starts; // offsets into the source, the text of a token is source[start, end)
+	int[] ends;
+	double[] numbers; // NUMBER tokens are parsed once, by the lexer
+
+	TokenBuffer (CharSequence source) {
+		int capacity = Math.max(16, source.length() / 4); // a rough guess, most tokens are more than a few characters apart
+
+		this.source = source;
+		this.kinds = new int[capacity];
+		this.starts = new int[capacity];
+		this.ends = new int[capacity];
+		this.numbers = new double[capacity];
+	}
+
+	static int kindOf (char symbol) {
+		switch (symbol) {
+		case '(': return LEFT_PAREN;
+		case ')': return RIGHT_PAREN;
+		case '{': return LEFT_BRACE;
+		case '}': return RIGHT_BRACE;
+		case '[': return LEFT_BRACKET;
+		case ']': return RIGHT_BRACKET;
+		case ';': return SEMICOLON;
+		case ':': return COLON;
+		case '<': return LESS;
+		case '>': return GREATER;
+		default: throw new IllegalArgumentException("Not a separator or operator: " + symbol);
+		}
+	}
+
+	static TokenBuffer of (ArrayList<AToken> tokens) { // for token lists made by hand, or by the legacy lexer
+		StringBuilder source = new StringBuilder();
+		TokenBuffer buffer = new TokenBuffer(source);
+
+		for (AToken token : tokens) {
+			if (token.isBreak()) {
+				continue;
+			}
+
+			String text = (String) token.getValue();
+			int start = source.length();
+			source.append(text).append(' ');
+
+			if (token.isIdentifier()) {
+				buffer.add(IDENTIFIER, start, start + text.length());
+			} else if (token.isLiteral()) {
+				Type type = ((LiteralT) token).type;
+
+				if (type == Type.NUMBER) {
+					buffer.addNumber(start, start + text.length(), Lexer.parseNumber(source, start, start + text.length()));
+				} else {
+					buffer.add(type == Type.STRING ? STRING : type == Type.BOOL ? BOOL : NIL, start, start + text.length());
+				}
+			} else {
+				buffer.add(text.equals("...") ? ELLIPSIS : kindOf(text.charAt(0)), start, start + text.length());
+			}
+		}
+
+		return buffer;
+	}
+
+	void add (int kind, int start, int end) {
+		if (size == kinds.length) {
+			grow();
+		}
+
+		kinds[size] = kind;
+		starts[size] = start;
+		ends[size] = end;
+		size++;
+	}
+
+	void addNumber (int start, int end, double value) {
+		add(NUMBER, start, end);
+		numbers[size - 1] = value;
+	}
+
+	void grow () {
+		int capacity = kinds.length * 2;
+
+		kinds = Arrays.copyOf(kinds, capacity);
+		starts = Arrays.copyOf(starts, capacity);
+		ends = Arrays.copyOf(ends, capacity);
+		numbers = Arrays.copyOf(numbers, capacity);
+	}
+
+	int kind (int i) {
+		return i < size ? kinds[i] : END;
+	}
+
+	double number (int i) {
+		return numbers[i];
+	}
+
+	String text (int i) {
+		return source.subSequence(starts[i], ends[i]).toString();
+	}
+
+	int symbol (int i) { // an IDENTIFIER's symbol, found without copying the token out of the source
+		return Symbols.id(source, starts[i], ends[i]);
+	}
+
+	boolean textIs (int i, String text) { // compares without copying the token out of the source
+		return i < size && Lexer.matches(source, starts[i], ends[i], text);
+	}
+
+	AToken token (int i) { // the equivalent AToken, e.g. for printing
+		switch (kinds[i]) {
+		case IDENTIFIER: return new IdentifierT(text(i));
+		case NUMBER: return new LiteralT(text(i), Type.NUMBER);
+		case STRING: return new LiteralT(text(i), Type.STRING);
+		case BOOL: return new LiteralT(text(i), Type.BOOL);
+		case NIL: return new LiteralT(text(i), Type.NIL);
+		case COLON: case LESS: case GREATER: case ELLIPSIS: return new OperatorT(symbols[kinds[i]]);
+		default: return new SeparatorT(symbols[kinds[i]]);
+		}
+	}
+
+	ArrayList<AToken> toTokens () {
+		ArrayList<AToken> result = new ArrayList<AToken>(size);
+
+		for (int i = 0; i < size; i++) {
+			result.add(token(i));
+		}
+
+		return result;
+	}
+
+	static String describe (int kind) { // matches the toString of the corresponding AToken, for error messages
+		if (kind >= COLON) {
+			return "\"" + symbols[kind] + "\"";
+		} else if (kind >= LEFT_PAREN) {
+			return "Separator '" + symbols[kind] + "'";
+		}
+
+		return names[kind];
+	}
+
+	String describeAt (int i) {
+		return i < size ? token(i).toString() : "end of input";
+	}
+
+	public String toString () {
+		return toTokens().toString();
+	}
+}
+
+class StatementReader { // pulls top-level statements out of a stream one at a time, so only the current statement is ever in memory
+	Reader reader;
+	char[] buffer = new char[8192];
+	int position = 0;
+	int limit = 0;
+	StringBuilder statement = new StringBuilder();
+
+	StatementReader (Reader reader) {
+		this.reader = reader;
+	}
+
+	String next () throws IOException { // the source of the next statement, up to and including its ';', or null at the end of the stream
+		/**
+		 * Same rules as Lexer.statementBoundaries: a statement ends at a ';' outside of any brackets, strings or comments.
+		 * Semicolons, whitespace and comments between statements are skipped, since the parser would have eaten them anyway.
+		 * Comments inside of a statement are dropped as they're read, only the newline that ends them is kept.
+		 * */
+
+		statement.setLength(0);
+		int depth = 0;
+		int c = skipBetween();
+
+		while (c != -1) {
+			char current = (char) c;
+
+			switch (Lexer.kindOf(current)) {
+			case Lexer.SEPARATOR:
+				statement.append(current);
+
+				if (current == '(' || current == '[' || current == '{') {
+					depth++;
+				} else if (current == ';' && depth == 0) {
+					return statement.toString();
+				} else if (current != ';' && --depth < 0) { // a stray closing bracket, no ';' would end the statement after it, so it ends here for the parser to report
+					return statement.toString();
+				}
+				break;
+			case Lexer.QUOTE:
+				statement.append(current);
+
+				for (int d = read(); d != -1; d = read()) {
+					statement.append((char) d);
+
+					if (d == current) {
+						break;
+					}
+				}
+				break;
+			case Lexer.COMMENT:
+				for (int d = read(); d != -1; d = read()) {
+					if (d == '\n') {
+						statement.append('\n');
+						break;
+					}
+				}
+				break;
+			default:
+				statement.append(current);
+			}
+
+			c = read();
+		}
+
+		return statement.length() == 0 ? null : statement.toString(); // the last statement doesn't need a ';'
+	}
+
+	int skipBetween () throws IOException { // the first character of the next statement
+		int c = read();
+
+		while (c != -1) {
+			if (c == '#') {
+				do {
+					c = read();
+				} while (c != -1 && c != '\n');
+			} else if (c != ';' && Lexer.kindOf((char) c) != Lexer.SKIP) {
+				break;
+			}
+
+			c = read();
+		}
+
+		return c;
+	}
+
+	int read () throws IOException {
+		if (position == limit) {
+			limit = reader.read(buffer, 0, buffer.length);
+			position = 0;
+
+			if (limit <= 0) {
+				limit = 0;
+				return -1;
+			}
+		}
+
+		return buffer[position++];
+	}
+}
+
 class Lexer {
 
+	static boolean legacyMode = false; // switch back to the original regex lexer, e.g. to compare token streams
+	static boolean bulkMode = false; // skip through strings, comments and whitespace in their own tight loops, outside the per-token switch (see Benchmark.lexer)
+
+	// character classes for the table-driven scanner, indexed by (ASCII) character
+	static final byte SKIP = 0, SEPARATOR = 1, OPERATOR = 2, DOT = 3, NUMBER = 4, IDENTIFIER = 5, QUOTE = 6, COMMENT = 7; // what a token starting on the character is
+	static final byte NUMBER_PART = 1, IDENTIFIER_PART = 2; // what runs a character can continue
+
+	static final byte[] kinds = new byte[128];
+	static final byte[] parts = new byte[128];
+
+	static {
+		classify("{[(}]);", SEPARATOR);
+		classify(":<>", OPERATOR);
+		classify(".", DOT);
+		classify("0123456789-", NUMBER); // same order as the regex lexer, a '-' starts a number before an identifier
+		classify("abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ|+*/&=!^@", IDENTIFIER);
+		classify("\"'", QUOTE);
+		classify("#", COMMENT);
+
+		for (char c : "0123456789.-".toCharArray()) {
+			parts[c] |= NUMBER_PART;
+		}
+
+		for (char c : "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789|+-*/&=!^@".toCharArray()) {
+			parts[c] |= IDENTIFIER_PART;
+		}
+	}
+
+	static void classify (String cs, byte kind) {
+		for (char c : cs.toCharArray()) {
+			kinds[c] = kind;
+		}
+	}
+
+	static byte kindOf (char c) {
+		return c < 128 ? kinds[c] : SKIP; // anything outside of ASCII is ignored, like in the regex lexer
+	}
+
+	static boolean isPart (char c, byte part) {
+		return c < 128 && (parts[c] & part) != 0;
+	}
+
 	static ArrayList<AToken> lex (String code) {
+		return legacyMode ? lexLegacy(code) : scan(code);
+	}
+
+	static TokenBuffer tokenize (String code) { // what the parser reads from
+		return legacyMode ? TokenBuffer.of(lexLegacy(code)) : scanTokens(code);
+	}
+
+	static ArrayList<AToken> scan (CharSequence code) {
+		return scanTokens(code).toTokens();
+	}
+
+	static TokenBuffer scanTokens (CharSequence code) {
+		/**
+		 * Single pass over the input, driven by the character tables above.
+		 * Produces the same tokens as lexLegacy, but doesn't build a String or run a regex per character,
+		 * tokens are only recorded as a kind and a range of the source.
+		 *
+		 * for each character, look up its kind:
+		 * 	separators and operators become tokens on their own
+		 * 	numbers and identifiers take the longest run of characters that can continue them
+		 * 	strings and comments run until the closing quote or the end of the line
+		 * 	everything else (whitespace, stray characters) is skipped
+		 * */
+
+		TokenBuffer result = new TokenBuffer(code);
+		int length = code.length();
+		int i = 0;
+
+		while (i < length) {
+			char current = code.charAt(i);
+
+			switch (kindOf(current)) {
+			case SEPARATOR:
+			case OPERATOR:
+				result.add(TokenBuffer.kindOf(current), i, i + 1);
+				i++;
+				break;
+			case DOT:
+				if (isEllipsis(code, i)) {
+					result.add(TokenBuffer.ELLIPSIS, i, i + 3);
+					i += 3;
+				} else {
+					i++; // a lone period isn't a token
+				}
+				break;
+			case NUMBER: {
+				int end = runEnd(code, i + 1, NUMBER_PART);
+
+				for (int j = i + 1; j < end; j++) { // a ... inside of the run ends the number (0...10 -> 0 ... 10)
+					if (code.charAt(j) == '.' && isEllipsis(code, j)) {
+						end = j;
+						break;
+					}
+				}
+
+				result.addNumber(i, end, parseNumber(code, i, end));
+				i = end;
+				break;
+			}
+			case IDENTIFIER: {
+				int end = runEnd(code, i + 1, IDENTIFIER_PART);
+
+				if (matches(code, i, end, "nil")) {
+					result.add(TokenBuffer.NIL, i, end);
+				} else if (matches(code, i, end, "true") || matches(code, i, end, "false")) {
+					result.add(TokenBuffer.BOOL, i, end);
+				} else {
+					result.add(TokenBuffer.IDENTIFIER, i, end);
+				}
+
+				i = end;
+				break;
+			}
+			case QUOTE: {
+				int close = indexOf(code, i + 1, current);
+
+				if (close < i + 1) { // a quote as the very last character
+					throw new StringIndexOutOfBoundsException("Unterminated string at " + i);
+				}
+
+				result.add(TokenBuffer.STRING, i + 1, close); // unterminated strings lose their last character, as before
+				i = close + 1;
+				break;
+			}
+			case COMMENT:
+				i = indexOf(code, i, '\n') + 1;
+				break;
+			default:
+				i = bulkMode ? skipRun(code, i + 1) : i + 1;
+			}
+		}
+
+		return result;
+	}
+
+	static boolean matches (CharSequence code, int start, int end, String word) {
+		if (end - start != word.length()) {
+			return false;
+		}
+
+		for (int i = 0; i < word.length(); i++) {
+			if (code.charAt(start + i) != word.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	static double parseNumber (CharSequence code, int start, int end) { // NaN if it isn't actually a number (e.g. '-' or '1-2'), the parser reports those
+		boolean negative = code.charAt(start) == '-';
+		int i = negative ? start + 1 : start;
+		long whole = 0;
+
+		if (i < end && end - i <= 15) { // plain integers are exact as doubles, so they don't need Double.parseDouble
+			for (; i < end; i++) {
+				char c = code.charAt(i);
+
+				if (c < '0' || c > '9') {
+					break;
+				}
+
+				whole = whole * 10 + (c - '0');
+			}
+
+			if (i == end) {
+				return negative ? -(double) whole : (double) whole;
+			}
+		}
+
+		try {
+			return Double.parseDouble(code.subSequence(start, end).toString());
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	static int runEnd (CharSequence code, int start, byte part) { // the first index at or after start that can't continue the run
+		int i = start;
+
+		while (i < code.length() && isPart(code.charAt(i), part)) {
+			i++;
+		}
+
+		return i;
+	}
+
+	static int indexOf (CharSequence code, int start, char c) { // same contract as indexUntil: the last index if c is never found
+		if (bulkMode && code instanceof String) { // a loop over String's own array, without an interface call per character (only JDK 9 and later compile it to a vectorized search)
+			int found = ((String) code).indexOf(c, start);
+			return found < 0 ? code.length() - 1 : found;
+		}
+
+		for (int i = start; i < code.length(); i++) {
+			if (code.charAt(i) == c) {
+				return i;
+			}
+		}
+
+		return code.length() - 1;
+	}
+
+	static int skipRun (CharSequence code, int start) { // the end of a run of characters that don't start tokens, e.g. indentation, still one character at a time
+		int i = start;
+
+		while (i < code.length() && kindOf(code.charAt(i)) == SKIP) {
+			i++;
+		}
+
+		return i;
+	}
+
+	static boolean isEllipsis (CharSequence code, int start) {
+		return start + 2 < code.length() && code.charAt(start) == '.' && code.charAt(start + 1) == '.' && code.charAt(start + 2) == '.';
+	}
+
+	static ArrayList<Integer> statementBoundaries (CharSequence code, int chunkSize) {
+		/**
+		 * Offsets to split the code at so that each piece can be lexed and parsed on its own (see Parser.parseParallel).
+		 * Pieces end right after a ';' outside of any brackets, strings and comments, and are at least chunkSize long.
+		 * Returns null if the brackets don't balance, in which case the code has to be parsed as a whole.
+		 * */
+
+		ArrayList<Integer> boundaries = new ArrayList<Integer>();
+		int depth = 0;
+		int last = 0;
+		int i = 0;
+
+		boundaries.add(0);
+
+		while (i < code.length()) {
+			char current = code.charAt(i);
+
+			switch (kindOf(current)) {
+			case SEPARATOR:
+				if (current == '(' || current == '[' || current == '{') {
+					depth++;
+				} else if (current == ';') {
+					if (depth == 0 && i + 1 - last >= chunkSize) {
+						last = nextStatement(code, i + 1);
+						boundaries.add(last);
+						i = last - 1;
+					}
+				} else if (--depth < 0) {
+					return null;
+				}
+				i++;
+				break;
+			case QUOTE:
+				i = indexOf(code, i + 1, current) + 1;
+				break;
+			case COMMENT:
+				i = indexOf(code, i, '\n') + 1;
+				break;
+			default:
+				i++;
+			}
+		}
+
+		if (depth != 0) {
+			return null;
+		}
+
+		if (last < code.length()) {
+			boundaries.add(code.length());
+		}
+
+		return boundaries;
+	}
+
+	static int nextStatement (CharSequence code, int start) { // skips extra semicolons and comments, the parser eats those as part of the previous statement
+		int i = start;
+
+		while (i < code.length()) {
+			char current = code.charAt(i);
+
+			if (current == '#') {
+				i = indexOf(code, i, '\n') + 1;
+			} else if (current == ';' || kindOf(current) == SKIP) {
+				i++;
+			} else {
+				break;
+			}
+		}
+
+		return i;
+	}
+
+	static int statementEnd (CharSequence code, int start) { // where the statement starting at start ends, split the same way as statementBoundaries, or -1 if its brackets don't balance
+		StringBuilder open = new StringBuilder(); // the brackets still open, the kinds have to match too since only part of the code is looked at
+		int i = start;
+
+		while (i < code.length()) {
+			char current = code.charAt(i);
+
+			switch (kindOf(current)) {
+			case SEPARATOR:
+				if (current == '(' || current == '[' || current == '{') {
+					open.append(current);
+				} else if (current == ';') {
+					if (open.length() == 0) {
+						return nextStatement(code, i + 1);
+					}
+				} else if (open.length() == 0 || "([{".indexOf(open.charAt(open.length() - 1)) != ")]}".indexOf(current)) {
+					return -1;
+				} else {
+					open.setLength(open.length() - 1);
+				}
+				i++;
+				break;
+			case QUOTE:
+				i = indexOf(code, i + 1, current) + 1;
+				break;
+			case COMMENT:
+				i = indexOf(code, i, '\n') + 1;
+				break;
+			default:
+				i++;
+			}
+		}
+
+		return open.length() == 0 ? code.length() : -1;
+	}
+
+	static ArrayList<AToken> lexLegacy (String code) {
 		/**
 		 * Rules for lexing:
 		 * FOR NOW:
@@ -324,4 +910,48 @@ class Examples {
 		System.out.println(Lexer.lex("orange(1 2 3)"));
 		System.out.println(Lexer.lex("-1"));
 	}
+
+	void testScan (Tester t) { // the table-driven scanner has to agree with the regex lexer
+		String[] programs = {
+				"a 1;", "apples 'bananas';\n1.00001;", "apples; # bruh moment\n2.4601;", "f (a) > {1}", ">>>", "...", "<<", "12:213",
+				"0...n", "0...10", "-1", "-(a 1)", "[1 2 3] << orange <1< 4", "<(a);", ">(a);", "<=(a b)", "@1 @2;", "nil true false truee",
+				"print(\"thing: \" {+(@1 2)}(4) \"\nhey\")", "m [key1: \"pair1\" key2: 'pair2'];", "1..2 3.5.6 a.b", "x 'unterminated",
+				"for (1...+(n 1) {\n\trunning *(running @1);\n});", "\u00e9 \u00f1 $ % , ~ a\u00a0b"
+		};
+
+		for (String program : programs) {
+			t.checkExpect(Lexer.scan(program), Lexer.lexLegacy(program));
+		}
+		
+		Lexer.bulkMode = true;
+		
+		for (String program : programs) {
+			t.checkExpect(Lexer.scan(program), Lexer.lexLegacy(program));
+		}
+		
+		Lexer.bulkMode = false;
+	}
+
+	void testTokenBuffer (Tester t) {
+		TokenBuffer tokens = Lexer.tokenize("a (b) > {-(b 2.5)}; 'x' nil <<");
+
+		t.checkExpect(tokens.size, 17);
+		t.checkExpect(tokens.kind(0), TokenBuffer.IDENTIFIER);
+		t.checkExpect(tokens.kind(1), TokenBuffer.LEFT_PAREN);
+		t.checkExpect(tokens.kind(4), TokenBuffer.GREATER);
+		t.checkExpect(tokens.kind(6), TokenBuffer.NUMBER);
+		t.checkExpect(tokens.textIs(6, "-"), true);
+		t.checkExpect(Double.isNaN(tokens.number(6)), true);
+		t.checkExpect(tokens.number(9), 2.5);
+		t.checkExpect(tokens.kind(13), TokenBuffer.STRING);
+		t.checkExpect(tokens.text(13), "x");
+		t.checkExpect(tokens.kind(14), TokenBuffer.NIL);
+		t.checkExpect(tokens.kind(15), TokenBuffer.LESS);
+		t.checkExpect(tokens.kind(17), TokenBuffer.END);
+		t.checkExpect(TokenBuffer.of(Lexer.lexLegacy("a (b) > {-(b 2.5)};")).toTokens(), Lexer.lexLegacy("a (b) > {-(b 2.5)};"));
+
+		t.checkExpect(Lexer.parseNumber("1234567", 0, 7), 1234567.0);
+		t.checkExpect(Lexer.parseNumber("-0.125", 0, 6), -0.125);
+		t.checkExpect(Double.isNaN(Lexer.parseNumber("1-2", 0, 3)), true);
+	}
 }
\ No newline at end of file
@@ -1,15 +1,72 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
 import tester.Tester;
 
 class Parser {
-	ArrayList<AToken> input;
+	TokenBuffer input;
 	int index = 0;
-	boolean debugMode = false;
+	int[] matches; // see matches()
+	ParseTrace trace; // null unless tracing, so an untraced parse never builds an event
 	
-	Parser (ArrayList<AToken> input) {
+	static boolean parallelMode = false; // split large files into statements, and lex and parse them on several threads
+	static int parallelThreshold = 1 << 20; // files smaller than this aren't worth splitting
+	static boolean traceMode = false; // print every parser event, and a summary at the end
+	static boolean lazyMode = false; // skip over function bodies, and parse each one the first time it's called
+	
+	Parser (TokenBuffer input) {
 		this.input = input;
+		
+		if (traceMode) {
+			this.trace = new ParseTrace(input, true);
+		}
+	}
+	
+	Parser (ArrayList<AToken> input) {
+		this(TokenBuffer.of(input));
+	}
+	
+	static IExpression parse (String code) { // the whole front end, from source to a program
+		if (parallelMode && code.length() >= parallelThreshold) {
+			return parseParallel(code, Math.max(1 << 16, code.length() / (4 * ForkJoinPool.getCommonPoolParallelism())));
+		}
+		
+		return new Parser(Lexer.tokenize(code)).parse();
+	}
+	
+	static IExpression parseParallel (String code, int chunkSize) {
+		ArrayList<Integer> boundaries = Lexer.statementBoundaries(code, chunkSize);
+		
+		if (boundaries == null) { // unbalanced brackets, the pieces wouldn't parse the same as the whole
+			return new Parser(Lexer.tokenize(code)).parse();
+		}
+		
+		List<Sequence> pieces = IntStream.range(0, boundaries.size() - 1).parallel() // the common ForkJoinPool, results stay in order
+				.mapToObj(i -> (Sequence) new Parser(Lexer.tokenize(code.substring(boundaries.get(i), boundaries.get(i + 1)))).parse())
+				.collect(Collectors.toList());
+		
+		ArrayList<IExpression> exprs = new ArrayList<>();
+		pieces.forEach(piece -> exprs.addAll(piece.body));
+		
+		return new Sequence(exprs);
 	}
 	
 	IExpression parse () {
@@ -17,22 +74,41 @@ class Parser {
 		
 		while (!atEnd()) {
 			exprs.add(expression());
-			consume(new SeparatorT(";"));
-			consume(new BreakT());
+			consume(TokenBuffer.SEMICOLON);
 		}
 		
-		return new Sequence(exprs, new Namespace());
+		if (trace != null && trace.echo) {
+			System.out.println(trace);
+		}
+		
+		return new Sequence(exprs);
 	}
 	
+	/**
+	 * Predictive parser, every decision is made from the current token, the one after it, or the token after a matching bracket
+	 * (from the 'matches' table), so nothing is parsed twice and parsing is linear in the number of tokens.
+	 * 
+	 * statement:  name (params) > { body };   a named function
+	 *             name operation;             a definition
+	 *             operation;
+	 * operation:  prefix, followed by any infix operators, tightest first:  ...  then  :  then  << and <n< 
+	 * prefix:     literal | name | name(args) | >(args) | <(args) | <=(args) | -(args) | [values] | { body } | (params) > { body }
+	 *             functions can be called as soon as they're written, e.g. {+(@1 1)}(2)
+	 * */
+	
+	static final int INSERT = 1, ACCESS = 2, RANGE = 3; // binding powers of the infix operators
+	
 	IExpression expression () {
 		IValue left = operation();
-		print("expr on " + left);
+		trace(ParseTrace.EXPRESSION, left);
 		
-		if (current().value.equals("(") && !skip(till(new SeparatorT(")")) + 1).value.equals(">")) { // it's a call
-			print("call detected on" + current());
+		if (check(TokenBuffer.LEFT_PAREN) && !definitionAt(index)) { // it's a call
+			trace(ParseTrace.CALL, left);
 			return call(left);
-		} else if (current().value.equals(";")) {
-			consume(new SeparatorT(";"));
+		} else if (check(TokenBuffer.SEMICOLON)) {
+			consume(TokenBuffer.SEMICOLON);
+			return left;
+		} else if (check(TokenBuffer.END)) { // the last statement doesn't need a semicolon
 			return left;
 		} else {
 			IExpression def = definition();
@@ -41,74 +117,88 @@ class Parser {
 	}
 	
 	IExpression definition () { // the previous is the identifier
-		IExpression def = new Definition((String) prev().getValue(), operation());
-		expect(new SeparatorT(";")); // expect a semicolon after it
+		IExpression def = new Definition(input.symbol(prev()), operation());
+		expect(TokenBuffer.SEMICOLON); // expect a semicolon after it
 		return def;
 	}
 	
-	IValue function () { // TODO: fill out
-		//print("ffunc");
+	IValue function () {
+		trace(ParseTrace.FUNCTION, null);
 		
-		print("FUNC");
-		
-		ArrayList<IExpression> bodyList = new ArrayList<IExpression>();
 		ArrayList<String> params = new ArrayList<String>();
 		
-		if (check(new SeparatorT("{"))) {
-			advance(); // move past {
-			
-			while (!check(new SeparatorT("}"))) {
-				bodyList.add(expression());
-			}
-			
-		} else if (check(new SeparatorT("("))) {
-			
+		if (check(TokenBuffer.LEFT_PAREN)) {
 			params = parameters();
-			expect(new OperatorT(">"));
-			expect(new SeparatorT("{"));
+			expect(TokenBuffer.GREATER);
+		}
+		
+		if (lazyMode && check(TokenBuffer.LEFT_BRACE)) { // only find where the body ends, LazyFunction parses it if it's ever called
+			int start = current();
+			int end = matches()[start];
 			
-			while (!check(new SeparatorT("}"))) {
-				bodyList.add(expression());
+			if (input.kind(end) != TokenBuffer.RIGHT_BRACE) {
+				throw new ParsingError("Expected token " + TokenBuffer.describe(TokenBuffer.RIGHT_BRACE) + ", found " + input.describeAt(end), end >= input.size);
 			}
 			
+			index = end + 1;
+			return new LazyFunction(params, () -> bodyAt(start));
 		}
 		
-		advance();
+		return new Function(params, body());
+	}
+	
+	Sequence body () { // should be starting at a {
+		expect(TokenBuffer.LEFT_BRACE);
 		
-		print("current " + current());
+		ArrayList<IExpression> bodyList = new ArrayList<IExpression>();
 		
-		return new Function(params, new Sequence(bodyList, new Namespace()));
+		while (!check(TokenBuffer.RIGHT_BRACE)) {
+			unexpectedEnd(TokenBuffer.RIGHT_BRACE);
+			bodyList.add(expression());
+		}
+		
+		advance();
+		
+		return new Sequence(bodyList);
 	}
 	
-	IValue call (IValue func) {
-		int beginning = this.index;
-		// after arguments, if the current is a > then go back to beginning, and call function
-		ArrayList<IValue> args = arguments();
+	Sequence bodyAt (int start) { // parses a body that was skipped over, with its own parser so this one's position isn't touched
+		Parser parser = new Parser(input);
+		parser.matches = matches();
+		parser.index = start;
+		
+		Sequence body = parser.body();
 		
-		if (check(new OperatorT(">"))) {
-			this.index = beginning;
+		if (parser.index != matches()[start] + 1) {
+			throw new ParsingError("Function body ended before its closing bracket, at " + input.describeAt(parser.prev()));
+		}
+		
+		return body;
+	}
+	
+	IValue call (IValue func) { // should be starting at a (
+		if (definitionAt(index)) { // (params) > { body } isn't a call, it's a new function
 			return function();
 		}
 		
-		IValue f = new FunctionCall(func, args);
-		//print(f);
-		return f;
+		return new FunctionCall(func, arguments());
 	}
 	
 	IValue primary () {
 		
-		if (checkLitType(Type.BOOL)) {
-			return new BooleanLiteral(advance().value.equals("true") ? true : false);
-		} else if (checkLitType(Type.NUMBER)) {
-			if (current().value.equals("-")) {
+		if (check(TokenBuffer.BOOL)) {
+			return new BooleanLiteral(input.textIs(advance(), "true"));
+		} else if (check(TokenBuffer.NUMBER)) {
+			if (input.textIs(current(), "-")) {
 				advance();
 				return call(new Reference("-"));
 			}
 			
-			return new NumberLiteral((Number) Double.valueOf((String) advance().value));
-		} else if (checkLitType(Type.STRING)) {
-			return new StringLiteral((String) advance().value);
-		} else if (checkLitType(Type.NIL)) {
+			int number = advance();
+			return new NumberLiteral(Double.isNaN(input.number(number)) ? Double.valueOf(input.text(number)) : input.number(number)); // the lexer leaves malformed numbers as NaN, valueOf reports them
+		} else if (check(TokenBuffer.STRING)) {
+			return new StringLiteral(input.text(advance()));
+		} else if (check(TokenBuffer.NIL)) {
 			advance();
 			return new Nil();
 		} else {
@@ -117,20 +207,21 @@ class Parser {
 	}
 	
 	ArrayList<String> parameters () { // should be starting at a (
+		trace(ParseTrace.PARAMETERS, null);
 		advance();
 		ArrayList<String> end = new ArrayList<String>();
 		
-		print("param current " + current());
-		
-		while (!check(new SeparatorT(")"))) {
-			if (!checkType(new IdentifierT(""))) { // if it's not a literal
+		while (!check(TokenBuffer.RIGHT_PAREN)) {
+			unexpectedEnd(TokenBuffer.RIGHT_PAREN);
+			
+			if (!check(TokenBuffer.IDENTIFIER)) { // if it's not a literal
 				throw new ParsingError("Given non-Identifier types in parameter list.");
 			}
 			
-			end.add((String) current().value);
+			end.add(Symbols.name(input.symbol(current())));
 			advance();
 			
-			if (check(new SeparatorT(";"))) {
+			if (check(TokenBuffer.SEMICOLON)) {
 				throw new ParsingError("Semicolon found in argument list");
 			}
 		}
@@ -139,15 +230,16 @@ class Parser {
 		return end;
 	}
 	
-	ArrayList<IValue> arguments () { // should be starting at a ( TODO
-		print("args called");
+	ArrayList<IValue> arguments () { // should be starting at a (
+		trace(ParseTrace.ARGUMENTS, null);
 		
 		advance(); // move from the first one
 		ArrayList<IValue> end = new ArrayList<IValue>();
 		
-		while (!check(new SeparatorT(")"))) {
+		while (!check(TokenBuffer.RIGHT_PAREN)) {
+			unexpectedEnd(TokenBuffer.RIGHT_PAREN);
 			end.add(operation());
-			if (check(new SeparatorT(";"))) {
+			if (check(TokenBuffer.SEMICOLON)) {
 				throw new ParsingError("Semicolon found in argument list");
 			}
 		}
@@ -158,228 +250,383 @@ class Parser {
 	}
 	
 	IValue operation () {
-		return collectionInsert();
-	}
-	
-	IValue collectionInsert () {
-		IValue left = collectionAccess();
-		
-		if (check(new OperatorT("<"))) {
-			ArrayList<IValue> values = new ArrayList<>();
-			ArrayList<IValue> indeces = new ArrayList<>();
-			print("AAAHAHAHAHAHHAAA");
-			
-			while (check(new OperatorT("<"))) {
-				if (next().value.equals("<")) {
-					indeces.add(new NumberLiteral(-1));
-					advance();
-					advance();
-					print("chose at end, " + current());
-				} else {
-					advance();
-					indeces.add(collectionAccess());
-					print(current().toString());
-					if (!check(new OperatorT("<"))) {
-						throw new ParsingError("Expected closing '<' in list insert operation.");
-					}
-					advance();
-					print("chose somewhere, " + current());
-				}
-				
-				values.add(collectionAccess());
-			}
-			
-			ArrayList<IValue> consList = new ArrayList<>();
-			
-			for (int i = 0; i < indeces.size(); i++) {
-				consList.add(indeces.get(i));
-				consList.add(values.get(i));
-			}
-			
-			consList.add(left);
-			return new Operation("<<", consList);
-			
-		}
-		
-		return left;
+		return operation(INSERT);
 	}
 	
-	IValue collectionAccess () {
-		IValue left = collectionCreate();
-		if (check(new OperatorT(":"))) {
-			advance();
-			return new Operation(":", Utils.list(left, value()));
+	IValue operation (int minPower) { // a prefix, then infix operators that bind at least as tightly as minPower
+		IValue left = prefix();
+		
+		while (true) {
+			int kind = input.kind(current());
+			
+			if (kind == TokenBuffer.ELLIPSIS && RANGE >= minPower) {
+				advance();
+				left = new Operation("...", Utils.list(left, operation(RANGE + 1)));
+			} else if (kind == TokenBuffer.COLON && ACCESS >= minPower) {
+				advance();
+				left = new Operation(":", Utils.list(left, operation(ACCESS + 1)));
+			} else if (kind == TokenBuffer.LESS && INSERT >= minPower) {
+				left = insert(left);
+			} else {
+				return left;
+			}
 		}
-		return left;
 	}
 	
-	IValue collectionCreate () {
-		//print(current());
+	IValue insert (IValue collection) { // a chain of inserts, 'l << a <0< b' becomes one operation, with index/value pairs and then the collection
+		ArrayList<IValue> consList = new ArrayList<>();
 		
-		if (check(new SeparatorT("["))) {
-			ArrayList<IValue> end = new ArrayList<IValue>();
-			advance(); // move past [
-			while (!check(new SeparatorT("]"))) {
-				end.add(value());
+		while (check(TokenBuffer.LESS)) {
+			if (input.kind(next()) == TokenBuffer.LESS) { // << is an insert at the end
+				consList.add(new NumberLiteral(-1));
+				advance();
+				advance();
+				trace(ParseTrace.INSERT, "at end");
+			} else { // <n< is an insert at n
+				advance();
+				consList.add(operation(ACCESS));
+				if (!check(TokenBuffer.LESS)) {
+					throw new ParsingError("Expected closing '<' in list insert operation.");
+				}
+				advance();
+				trace(ParseTrace.INSERT, "at index");
 			}
-			advance(); // move out of ]
-			return new ListValue(end);
+			
+			consList.add(operation(ACCESS));
 		}
 		
-		IValue left = value();
-		//print(left);
-		
-		if (current().value.equals("...")) {
-			advance();
-			return new Operation("...", Utils.list(left, value()));
-		} else {
-			return left;
-		}
+		consList.add(collection);
+		return new Operation("<<", consList);
 	}
 	
-	IValue value () { // forward only
-		if (checkType(new LiteralT("", Type.NIL))) { // if its a literal, pass to primary
+	IValue prefix () {
+		switch (input.kind(current())) {
+		case TokenBuffer.NUMBER:
+		case TokenBuffer.STRING:
+		case TokenBuffer.BOOL:
+		case TokenBuffer.NIL:
 			return primary();
-		} else if (check(new OperatorT(">"))) {
+		case TokenBuffer.GREATER:
 			advance();
-			IValue c = call(new Reference(">"));
-			return c;
-		} else if (check(new OperatorT("<"))) {
+			return call(new Reference(">"));
+		case TokenBuffer.LESS:
 			advance();
-			if (check(new IdentifierT("="))) {
+			if (check(TokenBuffer.IDENTIFIER) && input.textIs(current(), "=")) {
 				advance();
 				return call(new Reference("<="));
 			}
-			IValue c = call(new Reference("<"));
-			return c;
-		} else if (checkType(new IdentifierT(""))) { // if its an identifier, it could be
-			int checkpoint = this.index;
-			
-			if (next().value.equals("(")) { // if its a function call
-				advance();
-				IValue c = call(new Reference((String) prev().getValue()));
-				if (c instanceof FunctionCall) {
-					return c;
-				}
+			return call(new Reference("<"));
+		case TokenBuffer.IDENTIFIER:
+			if (input.kind(next()) == TokenBuffer.LEFT_PAREN && !definitionAt(next())) { // if its a function call, and not a named function 'f (a) > {}'
+				return call(new Reference(input.symbol(advance())));
 			}
-			
-			this.index = checkpoint;
-			return new Reference((String) advance().getValue());
-		} else if (check(new SeparatorT("(")) || check(new SeparatorT("{"))) { // it's a function
+			return new Reference(input.symbol(advance()));
+		case TokenBuffer.LEFT_PAREN:
+		case TokenBuffer.LEFT_BRACE: { // it's a function
 			IValue f = function();
 			
-			if (check(new SeparatorT("("))) { // if there's a call on it
+			if (check(TokenBuffer.LEFT_PAREN)) { // if there's a call on it
 				return call(f);
 			}
 			
 			return f;
-		} else { // PROBLEM
-			//print("here");
+		}
+		case TokenBuffer.LEFT_BRACKET: {
+			ArrayList<IValue> end = new ArrayList<IValue>();
+			advance(); // move past [
+			while (!check(TokenBuffer.RIGHT_BRACKET)) {
+				unexpectedEnd(TokenBuffer.RIGHT_BRACKET);
+				end.add(prefix());
+			}
+			advance(); // move out of ]
+			return new ListValue(end);
+		}
+		case TokenBuffer.END:
+			throw new ParsingError("Unexpected end of input", true);
+		default: // PROBLEM
 			advance();
 			return new Nil();
 		}
 	}
 	
-	AToken consume (AToken t) {
-		while (!atEnd() && check(t)) {
-			advance();
+	// tokens are referred to by their index in the buffer, and compared by kind
+	
+	boolean definitionAt (int i) { // is there a parameter list '(...) >' at i
+		trace(ParseTrace.LOOKAHEAD, null);
+		return input.kind(i) == TokenBuffer.LEFT_PAREN && input.kind(matches()[i] + 1) == TokenBuffer.GREATER;
+	}
+	
+	int[] matches () { // the index of the matching bracket for every bracket (or the end, if there isn't one), found in one pass
+		if (this.matches == null) {
+			this.matches = new int[input.size];
+			int[] open = new int[input.size];
+			int depth = 0;
+			
+			for (int i = 0; i < input.size; i++) {
+				this.matches[i] = input.size;
+				
+				switch (input.kind(i)) {
+				case TokenBuffer.LEFT_PAREN: case TokenBuffer.LEFT_BRACE: case TokenBuffer.LEFT_BRACKET:
+					open[depth++] = i;
+					break;
+				case TokenBuffer.RIGHT_PAREN: case TokenBuffer.RIGHT_BRACE: case TokenBuffer.RIGHT_BRACKET:
+					if (depth > 0) {
+						depth--;
+						this.matches[open[depth]] = i;
+						this.matches[i] = open[depth];
+					}
+					break;
+				}
+			}
 		}
-		return current();
+		
+		return this.matches;
 	}
 	
-	boolean acceptType (AToken expected) {
-		if (current().getClass().equals(expected.getClass())) {
-			advance();
-			return true;
+	void unexpectedEnd (int expected) { // keeps loops looking for a closing bracket from running off the end
+		if (atEnd()) {
+			throw new ParsingError("Expected token " + TokenBuffer.describe(expected) + ", found the end of input", true);
 		}
-		return false;
 	}
 	
-	boolean accept (AToken expected) {
-		if (current().value.equals(expected.value)) {
+	void consume (int kind) {
+		while (!atEnd() && check(kind)) {
 			advance();
-			return true;
 		}
-		return false;
 	}
 	
-	boolean checkType (AToken t) {
-		if (current().getClass().equals(t.getClass())) {
+	boolean accept (int kind) {
+		if (check(kind)) {
+			advance();
 			return true;
 		}
 		return false;
 	}
 	
-	boolean checkLitType (Type t) {
-		if (current().isLiteral() && ((LiteralT) current()).type == t) {
+	boolean check (int kind) {
+		return input.kind(current()) == kind;
+	}
+	
+	boolean expect (int kind) {
+		if (!atEnd() && accept(kind)) {
 			return true;
 		}
-		return false;
+		throw new ParsingError("Expected token " + TokenBuffer.describe(kind));
 	}
 	
-	boolean check (AToken t) {
-		if (current().value.equals(t.value)) {
-			return true;
+	int advance () {
+		if (!atEnd()) {
+			index++;
+			
+			if (trace != null) {
+				trace.consumed++;
+			}
 		}
-		return false;
+		return prev();
 	}
 	
-	boolean expect (AToken expected) {
-		if (!atEnd() && accept(expected)) {
-			return true;
+	int current () { // past the last token this is END
+		return index;
+	}
+	
+	int next () {
+		return index + 1;
+	}
+	
+	int prev () {
+		return index == 0 ? index : index - 1;
+	}
+	
+	boolean atEnd () {
+		return index > (input.size - 1);
+	}
+	
+	void trace (int event, Object detail) { // detail is only turned into a string if the trace is printed
+		if (trace != null) {
+			trace.event(event, current(), detail);
 		}
-		throw new ParsingError("Expected token " + expected.toString());
 	}
+
+}
+
+class IncrementalParser { // for the REPL and editors, which submit the same buffer again and again with small edits
+	String source = "";
+	ArrayList<Integer> starts = new ArrayList<>(); // where each top-level statement of the source starts
+	ArrayList<ArrayList<IExpression>> statements = new ArrayList<>(); // and what it parsed to, shared by every parse it's unchanged in, since nodes are never changed
+	int reparsed = 0; // statements lexed and parsed by the last call
 	
-	int till (AToken t) {
-		int i = 0;
-		while (!skip(i).value.equals(t.value)) {
-			i++;
+	IExpression parse (String code) {
+		/**
+		 * Only the statements an edit touches are lexed and parsed again, the rest are the nodes from the last parse.
+		 * The edit is whatever lies between the text the old and new buffers start and end with. Statements are
+		 * scanned again from the last one starting before it, until a statement starts in the unchanged end of the
+		 * buffer at the same place one did before, from there on they're all the same as last time.
+		 * */
+		
+		if (code.equals(source)) {
+			reparsed = 0;
+			return program(statements);
+		}
+		
+		int prefix = 0;
+		int limit = Math.min(source.length(), code.length());
+		
+		while (prefix < limit && source.charAt(prefix) == code.charAt(prefix)) {
+			prefix++;
+		}
+		
+		int suffix = 0;
+		
+		while (suffix < limit - prefix && source.charAt(source.length() - 1 - suffix) == code.charAt(code.length() - 1 - suffix)) {
+			suffix++;
+		}
+		
+		int delta = code.length() - source.length();
+		int damageEnd = code.length() - suffix;
+		int first = 0;
+		
+		while (first + 1 < starts.size() && starts.get(first + 1) < prefix) { // a cut right at the edit can move, so that statement is scanned again too
+			first++;
+		}
+		
+		ArrayList<Integer> newStarts = new ArrayList<>(starts.subList(0, first));
+		ArrayList<ArrayList<IExpression>> newStatements = new ArrayList<>(statements.subList(0, first));
+		int pos = first < starts.size() ? starts.get(first) : 0;
+		int count = 0;
+		
+		try {
+			while (pos < code.length()) {
+				int old = pos >= damageEnd ? Collections.binarySearch(starts, pos - delta) : -1;
+				
+				if (old >= 0) { // back in step with the old buffer
+					for (int i = old; i < starts.size(); i++) {
+						newStarts.add(starts.get(i) + delta);
+						newStatements.add(statements.get(i));
+					}
+					break;
+				}
+				
+				int end = Lexer.statementEnd(code, pos);
+				
+				if (end < 0) { // unbalanced, the rest has to be parsed as a whole
+					end = code.length();
+				}
+				
+				newStarts.add(pos);
+				newStatements.add(body(new Parser(Lexer.tokenize(code.substring(pos, end))).parse()));
+				count++;
+				pos = end;
+			}
+		} catch (ParsingError e) { // the parser can recover from stray brackets in ways splitting doesn't, so parse it all to get the same result (or error) as Parser.parse
+			newStarts = Utils.list(0);
+			newStatements = new ArrayList<>();
+			newStatements.add(body(new Parser(Lexer.tokenize(code)).parse()));
+			count = 1;
 		}
-		return i;
+		
+		this.source = code; // only once everything has parsed, so an error leaves the last parse as it was
+		this.starts = newStarts;
+		this.statements = newStatements;
+		this.reparsed = count;
+		
+		return program(newStatements);
 	}
 	
-	AToken advance () {
-		if (!atEnd()) index++;
-		return prev();
+	static ArrayList<IExpression> body (IExpression parsed) {
+		return ((Sequence) parsed).body;
+	}
+	
+	static Sequence program (ArrayList<ArrayList<IExpression>> statements) {
+		ArrayList<IExpression> exprs = new ArrayList<>();
+		
+		for (ArrayList<IExpression> statement : statements) {
+			exprs.addAll(statement);
+		}
+		
+		return new Sequence(exprs);
 	}
+}
+
+class LazyFunction extends Function { // a function whose body hasn't been built yet, see Parser.lazyMode and AstReader
+	Supplier<Sequence> source; // builds the body, whatever it needs (tokens, a mapped file) is kept until then
+	volatile Sequence built; // volatile, since the first call can be on any thread running the program
 	
-	AToken current () {
-		return !atEnd() ? input.get(index) : prev();
+	LazyFunction (ArrayList<String> params, Supplier<Sequence> source) {
+		super(params, null);
+		this.source = source;
 	}
 	
-	AToken next () {
-		return atEnd() ? input.get(index) : input.get(index + 1);
+	Sequence body () {
+		Sequence body = this.built;
+		
+		if (body == null) {
+			synchronized (this) { // only one thread builds it
+				if (this.built == null) {
+					this.built = source.get();
+					this.source = null;
+				}
+				
+				body = this.built;
+			}
+		}
+		
+		return body;
 	}
+}
+
+class ParseTrace { // what a parser did, event by event, for debugging the grammar
+	static final int EXPRESSION = 0, CALL = 1, FUNCTION = 2, PARAMETERS = 3, ARGUMENTS = 4, INSERT = 5, LOOKAHEAD = 6;
+	static final String[] names = { "expression", "call", "function", "parameters", "arguments", "insert", "lookahead" };
+	
+	TokenBuffer input;
+	boolean echo; // print each event as it happens
+	int[] counts = new int[names.length];
+	int consumed = 0; // tokens the parser advanced past
 	
-	AToken skip (int i) {
-		return atEnd() ? input.get(index) : input.get(index + i);
+	ParseTrace (TokenBuffer input, boolean echo) {
+		this.input = input;
+		this.echo = echo;
 	}
 	
-	AToken prev () {
-		return index == 0 ? input.get(index) : input.get(index - 1);
+	void event (int event, int token, Object detail) {
+		counts[event]++;
+		
+		if (echo) {
+			System.out.println(names[event] + " at " + input.describeAt(token) + (detail == null ? "" : ": " + detail));
+		}
 	}
 	
-	boolean atEnd () {
-		return index > (input.size() - 1);
+	int count (int event) {
+		return counts[event];
 	}
 	
-	void print (String s) {
-		if (debugMode) {
-			System.out.println(s);
+	public String toString () {
+		String end = "parsed " + input.size + " tokens, consumed " + consumed; // nothing is ever backtracked, lookaheads are what decide
+		
+		for (int i = 0; i < names.length; i++) {
+			end += ", " + names[i] + "s " + counts[i];
 		}
+		
+		return end;
 	}
-
 }
 
 class ParsingError extends RuntimeException {
 	private static final long serialVersionUID = 1L;
+	final boolean atEnd; // the input ran out, so more of it might have finished the program (Entry.repl keeps reading)
+	
 	ParsingError (String e) {
+		this(e, false);
+	}
+	
+	ParsingError (String e, boolean atEnd) {
 		super(e);
+		this.atEnd = atEnd;
 	}
 	
 	ParsingError (String e, AToken location) {
 		super(e + " at " + location);
+		this.atEnd = false;
 	}
 };
 
@@ -403,11 +650,11 @@ class TestPair {
 	}
 	
 	void runParseTest (Tester t) {
-		t.checkExpect(new Parser(Lexer.lex(this.program)).parse(), this.output);
+		t.checkExpect(new Parser(Lexer.tokenize(this.program)).parse(), this.output);
 	}
 	
 	static IValue interpretString (String in) {
-		return new Parser(Lexer.lex(in)).parse().eval(Namespace.stdlib());
+		return new Parser(Lexer.tokenize(in)).parse().eval(Namespace.stdlib());
 	}
 	
 	static void runInterpretTestsFromList (ArrayList<TestPair> tests, Tester t) {
@@ -419,6 +666,19 @@ class TestPair {
 }
 
 class TestParser {
+	static final String SUM = "sum (n) > { if (<(n 1) { 0; } { +(n sum(-(n 1))); }); };\n"; // recursion, with blocks that read n from their caller
+	static final String[] ENGINES = { // what every way of running a program has to agree with the interpreter on, see conforms
+			SUM + "push (x) > { l []; l << x; l:0; }; f (n) > { +(n @1 1); }; g (a) > { if (<(a 1) { a; } { [a @1]; }); };\n"
+					+ "[push(1) sum(30) f(2) 0...3 for ([1 2] { *(@1 2); }) g(0) g(5)];",
+			SUM + "cat (s n) > { if (<(n 1) { s; } { +(s cat(s -(n 1))); }); }; five (a b c d e) > { [e l:1 0...2 { @1; }(a)]; }; l [5 6];\n"
+					+ "scoped { if (true { b 2; } { 3; }); }; g (a) > { if (a { 1; } { 2; }); }; [sum(30) cat(\"x\" 3) five(1 2 3 4 5) scoped() b g(true) g(false) g({ false; })];",
+			"f (n) > { *(n if (<(n 1) { 1; } { 2; })); }; g (n) > { [n if (n { 1; } { 2; })]; }; [f(0) f(3) g(true) g(false)];", // an 'if' under something else
+			"a 1; f { if (true { b 2; } { 3; }); }; [f() a b];", // b is a local of the block
+			"if (a b c) > { [a c()]; }; + (a b) > { \"no\"; }; g (x) > { if (x { 1; } { 2; }); }; [if (true { 1; } { 2; }) +(1 2) g(true) g(false)];", // 'if' and '+' aren't always the core ones
+			"plus (a b) > { +(a b); }; f (x) > { plus(x 1); }; [f(1) f(2) { + (a b) > { \"no\"; }; f(3); }()];", // even part way through
+			"s (a b) > { +(a b); }; [+(0.1 0.3) s(0.1 0.3) s(0.1 0.3) +(0.1 0.3 0) s(\"x\" 1)];", // rounded like the core '+'
+	};
+	
 	void testInterpret (Tester t) {
 		TestPair.runInterpretTestsFromList(new ArrayList<TestPair>(Arrays.asList(
 				new TestPair("a 5; a;", "5;"),
@@ -431,13 +691,548 @@ class TestParser {
 						+ "    } {"
 						+ "        1;"
 						+ "    });"
-						+ "}; sum(5);", "15;")//,
+						+ "}; sum(5);", "15;"),
+				new TestPair("+(\"(\" \";\" \")\");", "\"(;)\";"), // strings are never mistaken for separators
+				new TestPair("-(2 0.5);", "1.5;")//,
 				//new TestPair("for (0...10 {+(1 @1);});", "[1 2 3 4 5 6 7 8 9 10];") // This works, but the namespaces are different
 				)), t);
 	}
 	
 	void testParse (Tester t) {
+		t.checkExpect(new Parser(Lexer.tokenize("l << 3 <1< 4;")).parse(), Sequence.makeSequence(new Operation("<<", Utils.list(
+				new NumberLiteral(-1), new NumberLiteral(3), new NumberLiteral(1), new NumberLiteral(4), new Reference("l")))));
+		t.checkExpect(new Parser(Lexer.tokenize("0...n:1;")).parse(), Sequence.makeSequence(new Operation(":", Utils.list(
+				new Operation("...", Utils.list(new NumberLiteral(0), new Reference("n"))), new NumberLiteral(1)))));
+		t.checkExpect(new Parser(Lexer.tokenize("f (a) > { a; };")).parse(), Sequence.makeSequence(new Definition("f",
+				new Function(Utils.list("a"), Sequence.makeSequence(new Reference("a"))))));
+		t.checkExpect(new Parser(Lexer.tokenize("f(a);")).parse(), Sequence.makeSequence(new FunctionCall(new Reference("f"), Utils.list(new Reference("a")))));
+		
+		TestPair.runInterpretTestsFromList(new ArrayList<TestPair>(Arrays.asList(
+				new TestPair("outer (a) > { inner (b) > { *(b 2); }; inner(a); }; outer(21);", "42;"), // named functions inside of named functions
+				new TestPair("a 5; a", "5;"), // the last statement doesn't need a semicolon
+				new TestPair("l [[1 2] [3 4]]; l:1:0;", "3;")
+				)), t);
+	}
+	
+	void testParallel (Tester t) {
+		String code = "a 1; # a comment; with {brackets\n"
+				+ "b \"a string; with [brackets\";\n"
+				+ "f (n) > { x +(n 1); *(x 2); };\n"
+				+ "l [1 2 3] << 4;;\n"
+				+ "print('quoted; }');";
+		
+		t.checkExpect(Lexer.statementBoundaries(code, 1), Utils.list(0, 33, 63, 94, 111, code.length()));
+		t.checkExpect(Lexer.statementBoundaries(code, 60), Utils.list(0, 63, code.length()));
+		t.checkExpect(Lexer.statementBoundaries("f(a;", 1), null);
+		
+		t.checkExpect(Parser.parseParallel(code, 1), new Parser(Lexer.tokenize(code)).parse());
+		t.checkExpect(Parser.parseParallel(code, 1).eval(Namespace.stdlib()), new StringLiteral("quoted; }"));
+	}
+	
+	void testStream (Tester t) throws IOException {
+		String code = ";; a 1; # a comment; with {brackets\n"
+				+ "b \"a string; with [brackets\";;\n"
+				+ "f (n) > { x +(n 1); # inside ; a body\n *(x 2); };\n"
+				+ "f(a)";
+		StatementReader statements = new StatementReader(new StringReader(code));
+		
+		t.checkExpect(statements.next(), "a 1;");
+		t.checkExpect(statements.next(), "b \"a string; with [brackets\";");
+		t.checkExpect(statements.next(), "f (n) > { x +(n 1); \n *(x 2); };");
+		t.checkExpect(statements.next(), "f(a)");
+		t.checkExpect(statements.next(), null);
+		
+		t.checkExpect(Entry.stream(new StringReader(code + ";"), Namespace.stdlib()), TestPair.interpretString(code + ";"));
+		t.checkExpect(Entry.stream(new StringReader("sum (n) > { if (<(1 n) { +(n sum(-(n 1))); } { 1; }); }; sum(5);"), Namespace.stdlib()), new NumberLiteral(15));
+		t.checkExpect(Entry.stream(new StringReader(" # nothing to run\n"), Namespace.stdlib()), new Nil());
+		
+		StatementReader stray = new StatementReader(new StringReader("f (n) > { n; }}; f(3); g(4);")); // a stray bracket ends its statement, instead of every ';' after it being inside brackets
+		t.checkExpect(stray.next(), "f (n) > { n; }}");
+		t.checkExpect(stray.next(), "f(3);");
+		t.checkException(new ParsingError("Expected token Separator ';'"), new Entry(), "stream", new StringReader("a 1); b 2;"), Namespace.stdlib());
+	}
+	
+	void testOptions (Tester t) { // Entry.options, checked without setting anything
+		t.checkException(new IllegalArgumentException("--compile and --vm can't be used together, pick one way to run the program"), new Entry(), "conflicts", (Object) new String[] { "--compile", "--vm" });
+		t.checkException(new IllegalArgumentException("--vm and --flat can't be used together, pick one way to run the program"), new Entry(), "conflicts", (Object) new String[] { "--fbc", "x.ft", "--flat" });
+		t.checkException(new IllegalArgumentException("--jit and --flat can't be used together, pick one way to run the program"), new Entry(), "conflicts", (Object) new String[] { "--jit-dump", "--flat", "--jit" });
+		Entry.conflicts(new String[] { "--vm", "--fbc", "--resolve", "--intern", "x.ft" }); // the same engine twice, and things any engine can use
+		Entry.conflicts(new String[] { "--jit", "--jit-dump", "--shallow", "--no-specialize" });
+		t.checkException(new IllegalArgumentException("--stream runs each statement as soon as it's read, so it can't be used with --jit or --resolve"), new Entry(), "conflicts", (Object) new String[] { "--resolve", "--stream", "--jit" });
+		Entry.conflicts(new String[] { "--stream", "--lazy", "--shallow", "x.ft" });
+	}
+	
+	void testRepl (Tester t) throws IOException {
+		String[] unfinished = { "f { +(1 2);", "[1 2", "f (a) > { a; };\nf(", "f (a) > { a;" };
+		
+		int flagged = 0;
+		
+		for (String code : unfinished) { // flagged, not told apart by the message
+			try {
+				Parser.parse(code);
+			} catch (ParsingError e) {
+				flagged += e.atEnd ? 1 : 0;
+			}
+		}
+		
+		t.checkExpect(flagged, unfinished.length);
+		
+		t.checkException(new ParsingError("Expected token Separator ';'"), new Parser(Lexer.tokenize("a 1);")), "parse");
+		t.checkExpect(new ParsingError("Expected token Separator ';'").atEnd, false);
+		
+		PrintStream out = System.out;
+		ByteArrayOutputStream printed = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(printed));
+		
+		try { // an entry carries on over lines until it's finished, an empty line gives up on it, and other errors are shown straight away
+			Entry.repl(new BufferedReader(new StringReader("f (n) > {\n*(n 2);\n};\nf(3);\n[1 2\n\na 1);\n[1\n2];")));
+		} finally {
+			System.setOut(out);
+		}
+		
+		t.checkExpect(printed.toString().replace("\r", ""), ">>> ... ... => Func [n] -> Sequence: {[Call (Ref *) on [(Ref n), 2.0]]}\n>>> => 6.0\n"
+				+ ">>> ... ERROR ParsingError: Expected token Separator ']', found the end of input\n>>> ERROR ParsingError: Expected token Separator ';'\n"
+				+ ">>> ... => [1.0, 2.0]\n>>> Leaving REPL...\n");
+	}
+	
+	void testTrace (Tester t) {
+		TokenBuffer tokens = Lexer.tokenize("f (a) > { *(a a); }; l [1] << f(2);");
+		Parser parser = new Parser(tokens);
+		parser.trace = new ParseTrace(tokens, false);
+		parser.parse();
+		
+		t.checkExpect(parser.trace.consumed, tokens.size);
+		t.checkExpect(parser.trace.count(ParseTrace.FUNCTION), 1);
+		t.checkExpect(parser.trace.count(ParseTrace.PARAMETERS), 1);
+		t.checkExpect(parser.trace.count(ParseTrace.ARGUMENTS), 2);
+		t.checkExpect(parser.trace.count(ParseTrace.INSERT), 1);
+		t.checkExpect(parser.trace.count(ParseTrace.LOOKAHEAD), 6);
+		
+		Parser untraced = new Parser(tokens);
+		t.checkExpect(untraced.trace, null);
+		t.checkExpect(untraced.parse(), new Parser(tokens).parse());
+	}
+	
+	void testLazy (Tester t) {
+		String code = "f (n) > { x +(n 1); *(x 2); }; g { [1 {2;}] << @1; }; h { print(\"never called\"); }; l g(f(3));";
+		String broken = "broken { +(1 ]; }; ";
+		
+		Parser.lazyMode = true;
+		Sequence lazy = (Sequence) new Parser(Lexer.tokenize(broken + code)).parse(); // a body with errors is fine, until it's called
+		Parser.lazyMode = false;
+		Sequence eager = (Sequence) new Parser(Lexer.tokenize(code)).parse();
+		
+		LazyFunction f = (LazyFunction) ((Definition) lazy.body.get(1)).value;
+		t.checkExpect(f.built, null); // nothing is parsed until it's called
+		t.checkExpect(f.body(), ((Function) ((Definition) eager.body.get(0)).value).body);
+		t.checkExpect(f.source, null);
+		
+		t.checkExpect(lazy.eval(Namespace.stdlib()), eager.eval(Namespace.stdlib()));
+		
+		Parser.lazyMode = true;
+		t.checkException(new ParsingError("Expected token Separator '}', found end of input"), new Parser(Lexer.tokenize("f { +(1 2);")), "parse");
+		t.checkException(new ParsingError("Semicolon found in argument list"), ((Definition) lazy.body.get(0)).value, "body");
+		Parser.lazyMode = false;
+	}
+	
+	void testCache (Tester t) throws IOException {
+		String code = "f (n) > { x +(n 1); *(x 2); }; g { [1 \"two\" true nil {2;}] << @1; }; r 0...2; l g(f(3)) <0< -(4); l:0; caf\u00e9 'caf\u00e9';";
+		Sequence program = (Sequence) Parser.parse(code);
+		Sequence loaded = (Sequence) AstReader.read(ByteBuffer.wrap(AstWriter.write(program)));
+		
+		t.checkExpect(loaded.body.size(), program.body.size());
+		t.checkExpect(loaded.body.get(2), program.body.get(2));
+		t.checkExpect(loaded.body.get(3), program.body.get(3));
+		t.checkExpect(((LazyFunction) ((Definition) loaded.body.get(0)).value).body(), ((Function) ((Definition) program.body.get(0)).value).body());
+		t.checkExpect(loaded.eval(Namespace.stdlib()), Parser.parse(code).eval(Namespace.stdlib()));
+		
+		t.checkException(new IllegalStateException("Not a cached program, or from another version"), new AstReader(null, null), "read", ByteBuffer.wrap(new byte[8]));
+		byte[] ast = AstWriter.write(Parser.parse("f (n) > { +(n 1); };"));
+		t.checkException(new IllegalStateException("Function body runs past the end, at 22"), new AstReader(null, null), "read", ByteBuffer.wrap(Arrays.copyOf(ast, ast.length - 3)));
+		
+		Path directory = AstCache.directory; // put back however the checks go, so later tests don't find caching on
+		boolean cacheMode = AstCache.cacheMode;
+		Path cache = Files.createTempDirectory("ferret-cache");
+		AstCache.directory = cache;
+		AstCache.cacheMode = true;
+		
+		try {
+			Path file = cache.resolve(AstCache.key(code) + ".fast");
+			
+			t.checkExpect(AstCache.parse(code).eval(Namespace.stdlib()), Parser.parse(code).eval(Namespace.stdlib())); // parsed and saved
+			t.checkExpect(Files.exists(file), true);
+			t.checkExpect(AstCache.parse(code).eval(Namespace.stdlib()), Parser.parse(code).eval(Namespace.stdlib())); // loaded
+			t.checkExpect(AstCache.parse(code) instanceof Sequence && ((Definition) ((Sequence) AstCache.parse(code)).body.get(0)).value instanceof LazyFunction, true);
+			
+			Files.write(file, new byte[] { 1, 2, 3 }); // a broken file is parsed again and replaced
+			t.checkExpect(AstCache.parse(code).eval(Namespace.stdlib()), Parser.parse(code).eval(Namespace.stdlib()));
+			t.checkExpect(AstCache.load(file).eval(Namespace.stdlib()), Parser.parse(code).eval(Namespace.stdlib()));
+			
+			byte[] saved = Files.readAllBytes(file);
+			Files.write(file, Arrays.copyOf(saved, saved.length - 40)); // cut short, in a function body
+			t.checkExpect(AstCache.parse(code).eval(Namespace.stdlib()), Parser.parse(code).eval(Namespace.stdlib()));
+			byte[] flipped = saved.clone();
+			flipped[saved.length - 20] ^= 1; // or changed, where only the checksum would notice before the body's called
+			Files.write(file, flipped);
+			t.checkException(new IllegalStateException("Cached program is corrupt"), new AstCache(), "load", file);
+			t.checkExpect(AstCache.parse(code).eval(Namespace.stdlib()), Parser.parse(code).eval(Namespace.stdlib()));
+			t.checkExpect(Arrays.equals(Files.readAllBytes(file), saved), true); // and replaced
+			
+		} finally {
+			AstCache.cacheMode = cacheMode;
+			AstCache.directory = directory;
+			
+			for (File leftover : cache.toFile().listFiles()) { // the saved program, and anything a failed save left
+				leftover.delete();
+			}
+			
+			Files.delete(cache);
+		}
+	}
+	
+	void testIncremental (Tester t) {
+		String code = "a 1; # one\nf (n) > { +(n a); };\nl [1 2 3];\n\nprint(f(2));";
+		IncrementalParser parser = new IncrementalParser();
+		
+		t.checkExpect(Arrays.equals(AstWriter.write(parser.parse(code)), AstWriter.write(Parser.parse(code))), true);
+		t.checkExpect(parser.reparsed, 4);
+		t.checkExpect(parser.starts, Utils.list(0, 11, 32, 44));
+		
+		String[] edits = {
+				"a 1; # one\nf (n) > { +(n *(a 2)); };\nl [1 2 3];\n\nprint(f(2));", // inside a function
+				"a 1; # one\nf (n) > { +(n *(a 2)); };\nl [1 2 3];\n\nprint(f(2));", // nothing
+				"a 1; # one\nf (n) > { +(n *(a 2)); };\nl [1 2 3]; m 4;\n\nprint(f(2));", // a new statement
+				"a 1; # one\nf (n) > { +(n *(a 2)); };\nl [1 2 3] << 4;\n\nprint(f(2));", // two statements become one
+				"a 1; # one\nf (n) > { +(n *(a 2)); };\nl [1 2 3]; m 4;\n\nprint(f(2));",
+				"a 1;\nf (n) > { +(n *(a 2)); };\nl [1 2 3]; m 4;\n\nprint(f(2));", // a comment between statements
+				"a 1;\nf (n) > { +(n *(a 2)); };\nl [1 2 3]; m 4;\n\nprint(f(2)); g { h {",  // unfinished, whatever Parser.parse does
+				"a 1;\nf (n) > { +(n *(a 2)); };\nl [1 2 3]; m 4;\n\nprint(f(2)); g { h { 1; }; };",
+				"a 1;\nf (n) > { +(n *(a 2))); };\nl [1 2 3]; m 4;\n\nprint(f(2)); g { h { 1; }; };", // a stray bracket
+		};
+		int[] reparsed = { 1, 0, 2, 1, 2, 1, 0, 2, 1 }; // edit 6 doesn't parse
+		
+		for (int i = 0; i < edits.length; i++) {
+			try {
+				t.checkExpect(Arrays.equals(AstWriter.write(parser.parse(edits[i])), AstWriter.write(Parser.parse(edits[i]))), true);
+				t.checkExpect(parser.reparsed, reparsed[i]);
+			} catch (ParsingError e) {
+				t.checkException(e, new Parser(Lexer.tokenize(edits[i])), "parse");
+				t.checkExpect(parser.source, edits[i - 1]); // the last good parse is kept
+			}
+		}
+		
+		t.checkExpect(parser.parse(edits[5]).eval(Namespace.stdlib()), Parser.parse(edits[5]).eval(Namespace.stdlib()));
+		
+		Sequence before = (Sequence) parser.parse(edits[4]);
+		Sequence after = (Sequence) parser.parse(edits[3]); // only the third line changed
+		t.checkExpect(after.body.get(1) == before.body.get(1), true); // f is the same node, not parsed again
+		t.checkExpect(after.body.get(2) == before.body.get(2), false);
+	}
+	
+	void testResolve (Tester t) {
+		String code = "f (n) > { +(n @1 1); }; g (a) > { a +(a 1); h(); }; h { [a @1]; }; k (x x) > { for ([1 2] { *(@1 x); }); }; "
+				+ "[f(2) g(3) k(1 2)];";
+		Sequence parsed = (Sequence) Parser.parse(code);
+		Resolver resolver = new Resolver();
+		resolver.collect(parsed, false);
+		Sequence program = (Sequence) resolver.resolve(parsed, null);
+		
+		t.checkExpect(parsed, (Sequence) Parser.parse(code)); // a new tree, the parsed one isn't changed
+		
+		Function f = (Function) ((Definition) program.body.get(0)).value;
+		FunctionCall plus = (FunctionCall) f.body.body.get(0);
+		t.checkExpect(plus.maybeFunc instanceof GlobalReference, true); // stdlib
+		t.checkExpect(((SlotReference) plus.args.get(0)).slot, 0);
+		t.checkExpect(((SlotReference) plus.args.get(1)).slot, 0);
+		
+		Function g = (Function) ((Definition) program.body.get(1)).value;
+		t.checkExpect(((FunctionCall) ((Definition) g.body.body.get(0)).value).args.get(0).getClass(), Reference.class); // a is assigned in g, the slot could be out of date
+		t.checkExpect(((FunctionCall) g.body.body.get(1)).maybeFunc instanceof GlobalReference, true);
+		
+		Function h = (Function) ((Definition) program.body.get(2)).value;
+		t.checkExpect(((ListValue) h.body.body.get(0)).value.get(0).getClass(), Reference.class); // g's a, found in g's scope when h is called from g
+		t.checkExpect(((ListValue) h.body.body.get(0)).value.get(1).getClass(), Reference.class); // h has no parameters, @1 might not be given
+		
+		Function k = (Function) ((Definition) program.body.get(3)).value;
+		FunctionCall loop = (FunctionCall) k.body.body.get(0);
+		FunctionCall times = (FunctionCall) ((Function) loop.args.get(1)).body.body.get(0);
+		t.checkExpect(times.args.get(0).getClass(), Reference.class); // no parameters again, 'for' does give @1 but nothing says this is only called by 'for'
+		t.checkExpect(times.args.get(1).getClass(), Reference.class); // k's x, in the lambda it depends on who calls it
+		t.checkExpect(times.maybeFunc instanceof GlobalReference, true);
+		
+		t.checkExpect(resolver.resolved, 10);
+		t.checkExpect(program.eval(Namespace.stdlib()), Parser.parse(code).eval(Namespace.stdlib()));
+		t.checkExpect(Resolver.resolve(Parser.parse(code)).eval(Namespace.stdlib()).toString(), "[5.0, [4.0, 3.0], [2.0, 4.0]]");
+	}
+	
+	void testReentrant (Tester t) {
+		String code = SUM + "push (x) > { l []; l << x; l; };\n[push(1) push(2) sum(30)];";
+		IExpression program = Parser.parse(code);
+		
+		t.checkExpect(program.eval(Namespace.stdlib()).toString(), "[[1.0], [2.0], 465.0]"); // '[]' is a new list each call, not the one in the tree
+		t.checkExpect(program.eval(Namespace.stdlib()).toString(), "[[1.0], [2.0], 465.0]"); // and running it again gives the same
+		
+		IExpression resolved = Resolver.resolve(program);
+		
+		t.checkExpect(IntStream.range(0, 64).parallel() // one tree, on several threads at once
+				.mapToObj(i -> (i % 2 == 0 ? program : resolved).eval(Namespace.stdlib(i % 4 < 2)).toString())
+				.distinct().collect(Collectors.toList()), Utils.list("[[1.0], [2.0], 465.0]"));
+	}
+	
+	void testFlat (Tester t) { // and testEngines, for what it runs
+		FlatAst flat = new FlatAst(Parser.parse("a 1; b 1; [a b];"));
+		
+		t.checkExpect(flat.toString(), "0: Sequence [1, 3, 5]\n1: Def a [2]\n2: Constant 1.0\n3: Def b [4]\n4: Constant 1.0\n5: List [6, 7]\n6: Ref a\n7: Ref b\n");
+		t.checkExpect(flat.constants.length, 1); // both 1s are the same constant
+		t.checkExpect(flat.operands[1], Symbols.id("a")); // names are kept as their symbols
+		t.checkExpect(new FlatAst(Resolver.resolve(Parser.parse("f (n) > { n; };"))).toString(), "0: Sequence [1]\n1: Def f [2]\n2: Func [n] [3]\n3: Sequence [4]\n4: Slot n @1\n");
+	}
+	
+	void testCompile (Tester t) {
+		ClosureCompiler compiler = new ClosureCompiler();
+		compiler.compileNode(Resolver.resolve(Parser.parse(ENGINES[0])));
+		t.checkExpect(compiler.inlined, 4); // the blocks given to 'if' in sum and g, which read a and @1 from their caller
+		
+		Function scoped = (Function) ((Definition) ((Sequence) Parser.parse(ENGINES[3])).body.get(1)).value; // b is a local of the block, so the block is still called
+		t.checkExpect(ClosureCompiler.block(((FunctionCall) scoped.body.body.get(0)).args.get(1)), false);
+	}
+	
+	void testJit (Tester t) {
+		int threshold = Jit.threshold;
+		Jit.threshold = 2; // compiled on the second call, so the first is interpreted
+		
+		try {
+			Sequence program = (Sequence) Jit.prepare(Parser.parse(ENGINES[1]));
+			JitFunction sum = (JitFunction) ((Definition) program.body.get(0)).value;
+			
+			program.eval(Namespace.stdlib());
+			t.checkExpect(sum.compiled != null, true);
+			t.checkExpect(sum.name, "sum");
+			program.eval(Namespace.stdlib()); // five is only called once a run
+			t.checkExpect(((JitFunction) ((Definition) program.body.get(2)).value).compiled != null, true); // five, with operators left to the interpreter
+			
+			Sequence nested = (Sequence) Jit.prepare(Parser.parse(ENGINES[2])); // an 'if' with something under it on the stack
+			nested.eval(Namespace.stdlib());
+			t.checkExpect(((JitFunction) ((Definition) nested.body.get(0)).value).compiled != null, true);
+			t.checkExpect(((JitFunction) ((Definition) nested.body.get(1)).value).compiled != null, true);
+		} finally {
+			Jit.threshold = threshold;
+		}
+		
+		Sequence cold = (Sequence) Jit.prepare(Parser.parse(ENGINES[1]));
+		cold.eval(Namespace.stdlib());
+		t.checkExpect(((JitFunction) ((Definition) cold.body.get(0)).value).compiled, null); // not called often enough
+	}
+	
+	void testEngines (Tester t) { // each way of running a program gives what the tree-walking interpreter does
+		conforms(t, Resolver::resolve);
+		conforms(t, FlatAst::flatten);
+		conforms(t, program -> FlatAst.flatten(Resolver.resolve(program)));
+		conforms(t, ClosureCompiler::compile);
+		conforms(t, Vm::prepare);
+		conforms(t, program -> new VmNode(VmReader.program(ByteBuffer.wrap(VmWriter.write(Vm.compile(program)))))); // saved and loaded, without the parser
+		conforms(t, Jit::prepare); // never called often enough to compile
+		
+		int threshold = Jit.threshold;
+		Jit.threshold = 2;
+		
+		try {
+			conforms(t, Jit::prepare);
+		} finally {
+			Jit.threshold = threshold;
+		}
+		
+		t.checkException(new IllegalArgumentException("Can't compile a FlatNode"), new ClosureCompiler(), "compileNode", FlatAst.flatten(Parser.parse("1;")));
+		t.checkException(new IllegalArgumentException("Can't compile a FlatNode"), new Vm(), "compile", FlatAst.flatten(Parser.parse("1;")));
+	}
+	
+	void conforms (Tester t, UnaryOperator<IExpression> engine) { // runs every program in ENGINES, and the ones that fail, with engine
+		for (String code : ENGINES) {
+			String expected = Parser.parse(code).eval(Namespace.stdlib()).toString();
+			IExpression program = engine.apply(Parser.parse(code));
+			
+			t.checkExpect(program.eval(Namespace.stdlib()).toString(), expected);
+			t.checkExpect(program.eval(Namespace.stdlib()).toString(), expected); // again, with whatever the first run compiled or specialized
+			t.checkExpect(program.eval(Namespace.stdlib(true)).toString(), expected);
+		}
+		
+		IllegalArgumentException notFunction = new IllegalArgumentException("Tried to call a function on something that isn't a function.");
+		t.checkException(notFunction, engine.apply(Parser.parse("1();")), "eval", Namespace.stdlib());
+		t.checkException(notFunction, engine.apply(Parser.parse("f (x) > { x(); }; f({ 1; }); f(2);")), "eval", Namespace.stdlib()); // once f may have been compiled
+	}
+	
+	void testSpecialize (Tester t) {
+		String code = "add (a b) > { +(a b); }; m [1 2 3]; at (i) > { m:i; }; id (x) > { x; };\n"
+				+ "[add(1 2) add(3 4) add(\"x\" 1) add(1 2) at(1) at(1) at(-1) at(5) if (<(1 2) { 1; } { 2; }) -(5 2) *(2 3) /(1 4) id(>(1 2)) id(<=(2 2))];";
+		boolean specialize = Specialization.specializeMode; // put back however the checks go, like Jit.threshold in testJit
+		Specialization.specializeMode = false;
+		
+		try {
+			IValue expected = Parser.parse(code).eval(Namespace.stdlib());
+			Specialization.specializeMode = true;
+			IExpression program = Parser.parse(code);
+			
+			t.checkExpect(program.eval(Namespace.stdlib()), expected);
+			t.checkExpect(program.eval(Namespace.stdlib()), expected); // with each site specialized by the first run
+			
+			Sequence add = (Sequence) Parser.parse("f (a b) > { +(a b); }; f(1 2); f(3 4);");
+			FunctionCall sum = (FunctionCall) ((Function) ((Definition) add.body.get(0)).value).body.body.get(0);
+			Namespace ns = Namespace.stdlib();
+			t.checkExpect(sum.special, Specialization.EMPTY);
+			t.checkExpect(add.eval(ns), new NumberLiteral(7));
+			t.checkExpect(sum.special.kind, Specialization.ADD);
+			t.checkExpect(Parser.parse("f(\"a\" 1);").eval(ns), new StringLiteral("a1.0")); // deoptimized, and specialized again
+			t.checkExpect(sum.special.kind, Specialization.CONCAT);
+			t.checkExpect(add.eval(Namespace.stdlib()), new NumberLiteral(7)); // another program's '+' is the same
+			t.checkExpect(sum.special.kind, Specialization.ADD);
+			t.checkExpect(Parser.parse("[f(0.1 0.3) +(0.1 0.3 0)];").eval(ns).toString(), "[0.39999999999999997, 0.39999999999999997]"); // rounded like the core '+'
+			
+			for (int i = 0; i < Specialization.CHANGES; i++) { // a site that keeps changing gives up
+				Parser.parse("f(1 2); f(\"a\" 1);").eval(ns);
+			}
+			
+			t.checkExpect(sum.special, Specialization.MEGAMORPHIC);
+			t.checkExpect(Parser.parse("[f(1 2) f(\"a\" 1)];").eval(ns).toString(), "[3.0, a1.0]");
+			
+			Sequence redefined = (Sequence) Parser.parse("g (a b) > { +(a b); }; g(1 2); + (a b) > { \"no\"; }; g(1 2);"); // '+' isn't always '+'
+			t.checkExpect(redefined.eval(Namespace.stdlib()), new StringLiteral("no"));
+			t.checkExpect(((FunctionCall) ((Function) ((Definition) redefined.body.get(0)).value).body.body.get(0)).special.kind, Specialization.GENERIC);
+			
+			PrintStream out = System.out; // branches that aren't blocks are both evaluated, however warm the site is
+			ByteArrayOutputStream printed = new ByteArrayOutputStream();
+			System.setOut(new PrintStream(printed));
+			
+			try {
+				Parser.parse("f (c) > { if (c print(\"then\") print(\"else\")); }; f(true); f(true); f(true);").eval(Namespace.stdlib());
+			} finally {
+				System.setOut(out);
+			}
+			
+			t.checkExpect(printed.toString().replace("\r", ""), "then\nelse\nthen\nelse\nthen\nelse\n");
+			
+			StringLiteral key = new StringLiteral("a"); // literals are only equal to themselves, as keys
+			MapValue map = new MapValue(Utils.list(key), Utils.list(new NumberLiteral(1)));
+			Operation index = new Operation(":", Utils.list(map, key));
+			t.checkExpect(index.eval(ns), new NumberLiteral(1));
+			t.checkExpect(index.special.kind, Specialization.MAP);
+			t.checkExpect(index.eval(ns), new NumberLiteral(1));
+			t.checkExpect(new Operation(":", Utils.list(map, new StringLiteral("b"))).eval(ns), new Nil());
+		} finally {
+			Specialization.specializeMode = specialize;
+		}
+	}
+	
+	void testTyped (Tester t) {
+		String code = "p (x) > { +(*(x x) -(*(x 3) /(x 2))); }; c (a b) > { if (<(*(a 2) +(b 1)) { \"lt\"; } { \"ge\"; }); }; id (x) > { x; };\n"
+				+ "[p(1) p(4) c(1 5) c(5 1) p(2) c(2 2) +(*(2 3) \"x\") +(\"x\" *(2 3)) -(+(1 id(2)) 1) if ({ true; } { 1; } { 2; })];";
+		boolean specialize = Specialization.specializeMode; // put back however the checks go, like Jit.threshold in testJit
+		Specialization.specializeMode = false;
+		
+		try {
+			IValue expected = Parser.parse(code).eval(Namespace.stdlib());
+			Specialization.specializeMode = true;
+			IExpression program = Parser.parse(code);
+			
+			t.checkExpect(program.eval(Namespace.stdlib()), expected);
+			t.checkExpect(program.eval(Namespace.stdlib()), expected); // with the sites asking their arguments for doubles
+			
+			Sequence nested = (Sequence) Parser.parse("q (a b) > { +(a *(b 2)); }; q(2 3); q(2 3);");
+			Namespace ns = Namespace.stdlib();
+			t.checkExpect(nested.eval(ns), new NumberLiteral(8));
+			t.checkExpect(Parser.parse("q(\"x\" 3);").eval(ns), new StringLiteral("x6.0")); // '+' goes the generic way with the string, '*' still gives a double
+			t.checkExpect(Parser.parse("q(2 3);").eval(ns), new NumberLiteral(8));
+			t.checkException(new IllegalArgumentException("If statement condition doesn't evaluate to a boolean"), Parser.parse("if (1 { 1; } { 2; });"), "eval", ns);
+			
+			t.checkExpect(new NumberLiteral(2).evalDouble(ns), 2.0);
+			t.checkExpect(new BooleanLiteral(true).evalBoolean(ns), true);
+			t.checkException(new UnexpectedValue(null), ((Sequence) Parser.parse("q(\"x\" 3);")).body.get(0), "evalDouble", ns); // with what it got instead
+		} finally {
+			Specialization.specializeMode = specialize;
+		}
+	}
+	
+	void testVm (Tester t) throws IOException { // and testEngines, for what it runs
+		VmCode program = Vm.compile(Parser.parse(ENGINES[1]));
+		String expected = Parser.parse(ENGINES[1]).eval(Namespace.stdlib()).toString();
+		
+		t.checkExpect(Vm.compile(Parser.parse("x 1; +(x 2);")).toString(), "0: CONST r0 1.0\n3: SET r0 x\n6: GLOBAL r1 +\n9: GLOBAL r2 x\n12: CONST r3 2.0\n15: BINARY r0 + r1 r2 r3\n21: RETURN r0\n");
+		t.checkExpect(Arrays.equals(VmReader.program(ByteBuffer.wrap(VmWriter.write(program))).code, program.code), true);
+		
+		Path directory = Files.createTempDirectory("ferret");
+		Path file = directory.resolve("program.fbc");
+		Path plain = Files.createFile(directory.resolve("plain")); // what any new file gets
+		
+		try {
+			Vm.save(program, file);
+			t.checkExpect(Vm.load(file).eval(Namespace.stdlib()).toString(), expected);
+			
+			if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+				t.checkExpect(Files.getPosixFilePermissions(file), Files.getPosixFilePermissions(plain)); // readable by whoever it's handed to, not only its owner
+			}
+		} finally {
+			Files.deleteIfExists(file);
+			Files.delete(plain);
+			Files.delete(directory);
+		}
+		
+		IllegalStateException bad = new IllegalStateException("Not a compiled program, or from another version");
+		t.checkException(bad, new VmReader(null, null), "program", ByteBuffer.wrap(AstWriter.write(Parser.parse("1;"))));
+		
+		byte[] saved = VmWriter.write(program);
+		int rejected = 0;
+		
+		for (int length = 0; length < saved.length; length++) { // cut short anywhere, anything but that exception fails the test
+			try {
+				VmReader.program(ByteBuffer.wrap(Arrays.copyOf(saved, length)));
+			} catch (IllegalStateException e) {
+				rejected++;
+			}
+		}
+		
+		t.checkExpect(rejected, saved.length);
+		t.checkException(bad, new VmReader(null, null), "program", ByteBuffer.wrap(Arrays.copyOf(saved, 20)));
+	}
+	
+	void testIntern (Tester t) {
+		String code = "a for ([1 2 3] { *(@1 @1); }); b for ([1 2 3] { *(@1 @1); }); c [1 2 4]; [a b c];";
+		Interner interner = new Interner();
+		Sequence program = (Sequence) interner.canonical(Parser.parse(code));
+		FunctionCall a = (FunctionCall) ((Definition) program.body.get(0)).value;
+		FunctionCall b = (FunctionCall) ((Definition) program.body.get(1)).value;
+		ListValue c = (ListValue) ((Definition) program.body.get(2)).value;
+		
+		t.checkExpect(a == b, true); // the same call, lambda and list
+		t.checkExpect(a.args.get(1) == b.args.get(1), true);
+		t.checkExpect(a.args.get(0) == c, false);
+		t.checkExpect(((ListValue) a.args.get(0)).value.get(1) == c.value.get(1), true); // 2 is shared even where its list isn't
+		t.checkExpect(program.eval(Namespace.stdlib()), Parser.parse(code).eval(Namespace.stdlib()));
+		t.checkExpect(interner.report(), "interned 36 nodes, 15 were copies (41%), about 696 bytes saved, 21 in the table");
+		
+		t.checkExpect(interner.canonical(Parser.parse(code)) == program, true); // a second copy of the program is the first one
+		t.checkExpect(new FlatAst(program).size(), 21); // and the shared parts are only written once
+		
+		IExpression resolved = interner.canonical(Resolver.resolve(Parser.parse("f (n) > { *(n n); }; g (n) > { *(n n); }; [f(2) g(3)];")));
+		t.checkExpect(resolved.eval(Namespace.stdlib()).toString(), "[4.0, 9.0]");
+		t.checkExpect(((Definition) ((Sequence) resolved).body.get(0)).value == ((Definition) ((Sequence) resolved).body.get(1)).value, true);
+		
+		Sequence mixed = (Sequence) interner.canonical(Parser.parse("f (a b) > { +(a b); }; g (a b) > { +(a b); }; h { [f(1 2) g(\"a\" 1)]; };"));
+		FunctionCall shared = (FunctionCall) ((Function) ((Definition) mixed.body.get(1)).value).body.body.get(0); // f's '+' is g's
+		Namespace ns = Namespace.stdlib();
+		boolean specialize = Specialization.specializeMode;
+		Specialization.specializeMode = true;
+		
+		try {
+			mixed.eval(ns);
+			
+			for (int i = 0; i < Specialization.CHANGES; i++) { // right every time, but the site can't stay specialized for either
+				t.checkExpect(Parser.parse("h();").eval(ns).toString(), "[3.0, a1.0]");
+			}
+		} finally {
+			Specialization.specializeMode = specialize;
+		}
 		
+		t.checkExpect(shared == ((Function) ((Definition) mixed.body.get(0)).value).body.body.get(0), true);
+		t.checkExpect(shared.special, Specialization.MEGAMORPHIC);
 	}
 	
 	void testDefs(Tester t) {
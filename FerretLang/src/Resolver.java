@@ -0,0 +1,150 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+// A pass between the parser and eval, that finds the References that can skip Namespace.get's search through every scope
+// Scoping is dynamic (a function body sees its caller's variables) so most names can only be found at runtime, but two kinds can be found from the program alone
+
+class Resolver {
+	static boolean resolveMode = false; // resolve programs run from a file before evaluating them
+	
+	/**
+	 * The whole program has to be given, since it's what makes these safe:
+	 *
+	 * - a function's own parameters (and @1 up to the number of parameters) are always in the innermost scope of its body,
+	 *   if nothing in the program ever assigns to that name inside a function (top level code never runs inside a call)
+	 *   these become a SlotReference, read from the arguments the call was given
+	 * - a name that's never assigned inside a function, and is never a parameter, can only ever be in the outermost scope
+	 *   e.g. '+' and the other NamedFunctions, or functions defined at the top level. These become a GlobalReference
+	 *
+	 * Everything else stays a Reference. Lazy function bodies are parsed here, since they can assign to anything.
+	 * */
+	
+	Set<String> assigned = new HashSet<>(); // names defined anywhere inside a function
+	Set<String> params = new HashSet<>(); // names used as a parameter by any function
+	int resolved = 0; // References replaced
+	
+	static IExpression resolve (IExpression program) {
+		Resolver resolver = new Resolver();
+		resolver.collect(program, false);
+		return resolver.resolve(program, null);
+	}
+	
+	void collect (IExpression node, boolean inFunction) {
+		if (node instanceof Sequence) {
+			for (IExpression expr : ((Sequence) node).body) {
+				collect(expr, inFunction);
+			}
+		} else if (node instanceof FunctionCall) {
+			collect(((FunctionCall) node).maybeFunc, inFunction);
+			collectAll(((FunctionCall) node).args, inFunction);
+		} else if (node instanceof Operation) {
+			collectAll(((Operation) node).operands, inFunction);
+		} else if (node instanceof Definition) {
+			if (inFunction) {
+				assigned.add(((Definition) node).key);
+			}
+			
+			collect(((Definition) node).value, inFunction);
+		} else if (node instanceof ListValue) {
+			collectAll(((ListValue) node).value, inFunction);
+		} else if (node instanceof Function && !(node instanceof NamedFunction)) {
+			params.addAll(((Function) node).params);
+			collect(((Function) node).body(), true);
+		}
+	}
+	
+	void collectAll (ArrayList<? extends IExpression> nodes, boolean inFunction) {
+		for (IExpression node : nodes) {
+			collect(node, inFunction);
+		}
+	}
+	
+	IExpression resolve (IExpression node, Function scope) { // returns the node to use in its place, scope is the function whose body this is directly in
+		// nodes can't be changed, so any node with something resolved inside it is made again
+		if (node instanceof Reference && !(node instanceof GlobalReference || node instanceof SlotReference)) {
+			String key = ((Reference) node).key;
+			int slot = slot(key, scope);
+			
+			if (slot >= 0) {
+				resolved++;
+				return new SlotReference(key, slot);
+			} else if (!assigned.contains(key) && !params.contains(key) && !key.startsWith("@")) {
+				resolved++;
+				return new GlobalReference(key);
+			}
+		} else if (node instanceof Sequence) {
+			return new Sequence(resolveAll(((Sequence) node).body, scope));
+		} else if (node instanceof FunctionCall) {
+			FunctionCall call = (FunctionCall) node;
+			return new FunctionCall((IValue) resolve(call.maybeFunc, scope), resolveAll(call.args, scope));
+		} else if (node instanceof Operation) {
+			return new Operation(((Operation) node).type, resolveAll(((Operation) node).operands, scope));
+		} else if (node instanceof Definition) {
+			Definition def = (Definition) node;
+			return new Definition(def.key, (IValue) resolve(def.value, scope));
+		} else if (node instanceof ListValue) {
+			return new ListValue(resolveAll(((ListValue) node).value, scope));
+		} else if (node instanceof Function && !(node instanceof NamedFunction)) {
+			Function func = (Function) node;
+			return new Function(func.params, (Sequence) resolve(func.body(), func));
+		}
+		
+		return node;
+	}
+	
+	@SuppressWarnings("unchecked")
+	<T extends IExpression> ArrayList<T> resolveAll (ArrayList<T> nodes, Function scope) {
+		ArrayList<T> end = new ArrayList<>(nodes.size());
+		
+		for (T node : nodes) {
+			end.add((T) resolve(node, scope));
+		}
+		
+		return end;
+	}
+	
+	int slot (String key, Function scope) { // which argument key always is in this function's body, or -1
+		if (scope == null || assigned.contains(key)) {
+			return -1;
+		}
+		
+		int slot = scope.params.lastIndexOf(key); // with a repeated parameter, the last one wins (see Function.call)
+		
+		if (slot < 0 && key.matches("@[1-9][0-9]{0,8}")) {
+			slot = Integer.parseInt(key.substring(1)) - 1;
+		}
+		
+		return slot < scope.params.size() ? slot : -1; // past the parameters, @n might not have been given
+	}
+}
+
+class SlotReference extends Reference { // a parameter, read straight from the call's arguments
+	final int slot;
+	
+	SlotReference (String key, int slot) {
+		super(key);
+		this.slot = slot;
+	}
+	
+	public IValue eval (Namespace ns) {
+		if (ns.base < 0) { // not evaluated by Function.call, look it up normally
+			return super.eval(ns);
+		}
+		
+		return ns.slot(slot);
+	}
+}
+
+class GlobalReference extends Reference { // a name only ever defined in the outermost scope
+	
+	GlobalReference (String key) {
+		super(key);
+	}
+	
+	public IValue eval (Namespace ns) {
+		IValue result = ns.global(this.symbol);
+		
+		return result == null ? new Nil() : result;
+	}
+}
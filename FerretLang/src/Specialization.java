@@ -0,0 +1,302 @@
+import java.util.ArrayList;
+
+final class Specialization { // what a FunctionCall (or a ':' Operation) has been given so far, so it can do that directly next time
+	
+	/**
+	 * The core functions check their arguments every time: '+' looks for strings before adding, the comparisons cast through ALiteral and Number,
+	 * ':' asks the collection, and 'if' is found by name. A site remembers the function and the kind of values it was last given,
+	 * and while it keeps being given the same, it does the work itself (e.g. adding two doubles) instead of going through the function.
+	 * The function is matched by name, since each program has its own core functions (see Namespace.stdlib), and only they are NamedFunctions.
+	 *
+	 * Anything else goes the generic way, which is also how a site starts, and the site is specialized again for what it was given.
+	 * A site that keeps changing (e.g. a '+' given numbers and strings in turn) gives up after CHANGES and stays GENERIC.
+	 * Like CallCache, a Specialization is never changed, the site swaps in a new one, so threads running the same tree only ever see a whole one.
+	 *
+	 * A site specialized for numbers asks its arguments for evalDouble (or evalBoolean, for an 'if' condition), so in '*(n -(n 1))' the '-'
+	 * gives the '*' a double and no NumberLiteral is made for it, only for the '*' (unless that's an argument to arithmetic too).
+	 * An argument that isn't a number throws UnexpectedValue with what it was, and the call goes the generic way with that.
+	 * */
+	
+	static boolean specializeMode = true; // Entry --no-specialize turns it off
+	static final int CHANGES = 16; // times a site can change what it's specialized for, before giving up
+	static final int UNINITIALIZED = 0, GENERIC = 1, ADD = 2, SUBTRACT = 3, MULTIPLY = 4, DIVIDE = 5, LESS = 6, GREATER = 7, LESS_EQUAL = 8, GREATER_EQUAL = 9,
+			CONCAT = 10, IF = 11, LIST = 12, MAP = 13;
+	static final String[] NAMES = { "uninitialized", "generic", "add", "subtract", "multiply", "divide", "less", "greater", "less or equal", "greater or equal",
+			"concat", "if", "list", "map" };
+	static final String[] TYPES = { null, null, "+", "-", "*", "/", "<", ">", "<=", ">=", "+", "if", null, null }; // the core function each kind is for
+	static final Specialization EMPTY = new Specialization(UNINITIALIZED, 0);
+	static final Specialization MEGAMORPHIC = new Specialization(GENERIC, CHANGES);
+	
+	final int kind;
+	final int changes;
+	
+	Specialization (int kind, int changes) {
+		this.kind = kind;
+		this.changes = changes;
+	}
+	
+	Specialization with (int kind) { // for what the site was just given
+		if (this == MEGAMORPHIC || kind == this.kind) {
+			return this;
+		}
+		
+		int changes = this.changes + (this.kind != UNINITIALIZED ? 1 : 0);
+		return changes >= CHANGES ? MEGAMORPHIC : new Specialization(kind, changes);
+	}
+	
+	boolean typed () { // for numbers, so the site asks its arguments for doubles (see eval2)
+		return kind >= ADD && kind <= GREATER_EQUAL;
+	}
+	
+	static IValue eval2 (FunctionCall site, Function func, Namespace ns) { // FunctionCall.eval, with two arguments, at a site that's typed
+		int kind = site.special.kind;
+		
+		if (core(func, kind)) { // the arguments are evaluated here, not in another method, since there's a frame for each on the stack while a recursive call in them runs
+			IValue first = site.args.get(0);
+			IValue second = site.args.get(1);
+			double a;
+			double b;
+			
+			try {
+				a = first.evalDouble(ns);
+			} catch (UnexpectedValue e) { // the generic way, with what it was
+				return call2(site, func, e.value, second.eval(ns), ns);
+			}
+			
+			try {
+				b = second.evalDouble(ns);
+			} catch (UnexpectedValue e) {
+				return call2(site, func, new NumberLiteral(a), e.value, ns);
+			}
+			
+			return kind <= DIVIDE ? new NumberLiteral(arithmetic(kind, a, b)) : new BooleanLiteral(comparison(kind, a, b));
+		}
+		
+		return call2(site, func, site.args.get(0).eval(ns), site.args.get(1).eval(ns), ns);
+	}
+	
+	static double evalDouble (FunctionCall site, Namespace ns) { // FunctionCall.evalDouble, at a site that's typed
+		Function func = site.callee(ns);
+		int kind = site.special.kind;
+		
+		if (kind >= ADD && kind <= DIVIDE && core(func, kind)) {
+			IValue first = site.args.get(0);
+			IValue second = site.args.get(1);
+			double a;
+			double b;
+			
+			try {
+				a = first.evalDouble(ns);
+			} catch (UnexpectedValue e) {
+				return UnexpectedValue.number(call2(site, func, e.value, second.eval(ns), ns));
+			}
+			
+			try {
+				b = second.evalDouble(ns);
+			} catch (UnexpectedValue e) {
+				return UnexpectedValue.number(call2(site, func, new NumberLiteral(a), e.value, ns));
+			}
+			
+			return arithmetic(kind, a, b);
+		}
+		
+		return UnexpectedValue.number(eval2(site, func, ns));
+	}
+	
+	static boolean evalBoolean (FunctionCall site, Namespace ns) { // FunctionCall.evalBoolean, at a site that's typed
+		Function func = site.callee(ns);
+		int kind = site.special.kind;
+		
+		if (kind >= LESS && kind <= GREATER_EQUAL && core(func, kind)) {
+			IValue first = site.args.get(0);
+			IValue second = site.args.get(1);
+			double a;
+			double b;
+			
+			try {
+				a = first.evalDouble(ns);
+			} catch (UnexpectedValue e) {
+				return UnexpectedValue.bool(call2(site, func, e.value, second.eval(ns), ns));
+			}
+			
+			try {
+				b = second.evalDouble(ns);
+			} catch (UnexpectedValue e) {
+				return UnexpectedValue.bool(call2(site, func, new NumberLiteral(a), e.value, ns));
+			}
+			
+			return comparison(kind, a, b);
+		}
+		
+		return UnexpectedValue.bool(eval2(site, func, ns));
+	}
+	
+	static double arithmetic (int kind, double a, double b) {
+		switch (kind) {
+		case ADD: return Utils.sum(a, b);
+		case SUBTRACT: return a - b;
+		case MULTIPLY: return a * b;
+		default: return a / b;
+		}
+	}
+	
+	static boolean comparison (int kind, double a, double b) {
+		switch (kind) {
+		case LESS: return a < b;
+		case GREATER: return a > b;
+		case LESS_EQUAL: return a <= b;
+		default: return a >= b;
+		}
+	}
+	
+	static IValue call2 (FunctionCall site, Function func, IValue a, IValue b, Namespace ns) { // with the arguments evaluated
+		Specialization special = site.special;
+		
+		if (special.kind >= ADD && core(func, special.kind)) {
+			switch (special.kind) {
+			case ADD:
+				if (a instanceof NumberLiteral && b instanceof NumberLiteral) {
+					return new NumberLiteral(Utils.sum(number(a), number(b)));
+				}
+				break;
+			case SUBTRACT:
+				if (a instanceof NumberLiteral && b instanceof NumberLiteral) {
+					return new NumberLiteral(number(a) - number(b));
+				}
+				break;
+			case MULTIPLY:
+				if (a instanceof NumberLiteral && b instanceof NumberLiteral) {
+					return new NumberLiteral(number(a) * number(b));
+				}
+				break;
+			case DIVIDE:
+				if (a instanceof NumberLiteral && b instanceof NumberLiteral) {
+					return new NumberLiteral(number(a) / number(b));
+				}
+				break;
+			case LESS:
+				if (a instanceof NumberLiteral && b instanceof NumberLiteral) {
+					return new BooleanLiteral(number(a) < number(b));
+				}
+				break;
+			case GREATER:
+				if (a instanceof NumberLiteral && b instanceof NumberLiteral) {
+					return new BooleanLiteral(number(a) > number(b));
+				}
+				break;
+			case LESS_EQUAL:
+				if (a instanceof NumberLiteral && b instanceof NumberLiteral) {
+					return new BooleanLiteral(number(a) <= number(b));
+				}
+				break;
+			case GREATER_EQUAL:
+				if (a instanceof NumberLiteral && b instanceof NumberLiteral) {
+					return new BooleanLiteral(number(a) >= number(b));
+				}
+				break;
+			case CONCAT:
+				if (a instanceof StringLiteral || b instanceof StringLiteral) { // like the core '+'
+					return new StringLiteral(a.toString() + b.toString());
+				}
+				break;
+			}
+		}
+		
+		if (special != MEGAMORPHIC) {
+			site.special = special.with(binary(func, a, b));
+		}
+		
+		return func.call2(a, b, ns);
+	}
+	
+	static IValue eval3 (FunctionCall site, Function func, Namespace ns) { // FunctionCall.eval, with three arguments
+		Specialization special = site.special;
+		
+		boolean isIf = Utils.isIf(func);
+		
+		if (isIf && special.kind == IF) { // like Utils.conditional, without NamedFunction.call3 looking for 'if' by name again, or a BooleanLiteral for the condition
+			boolean condition;
+			
+			try {
+				condition = site.args.get(0).evalBoolean(ns);
+			} catch (UnexpectedValue e) { // e.g. a function, which Utils.conditional calls for the condition
+				return Utils.conditional(e.value, site.args.get(1).eval(ns), site.args.get(2).eval(ns), ns);
+			}
+			
+			IValue then = site.args.get(1);
+			IValue els = site.args.get(2);
+			
+			if (!constant(then) || !constant(els)) { // both are evaluated, in order, as the core 'if' would have them
+				then = then.eval(ns);
+				els = els.eval(ns);
+			}
+			
+			return Utils.branch(condition ? then : els, ns);
+		}
+		
+		if (special != MEGAMORPHIC) {
+			site.special = special.with(isIf ? IF : GENERIC);
+		}
+		
+		return func.call3(site.args.get(0).eval(ns), site.args.get(1).eval(ns), site.args.get(2).eval(ns), ns);
+	}
+	
+	static IValue index (Operation site, IValue collection, IValue key, Namespace ns) { // ':', with its operands evaluated
+		Specialization special = site.special;
+		
+		if (special.kind == LIST && collection instanceof ListValue && key instanceof NumberLiteral) {
+			ArrayList<IValue> list = ((ListValue) collection).value;
+			double index = number(key);
+			
+			if (index >= 0 && index < list.size() && index == (int) index) { // otherwise ListValue.get, for negative indexes and its errors
+				return list.get((int) index);
+			}
+		} else if (special.kind == MAP && collection instanceof MapValue && key instanceof ALiteral) { // a literal key evaluates to itself, see MapValue.get
+			IValue value = ((MapValue) collection).value.get(key);
+			return value == null ? new Nil() : value;
+		}
+		
+		if (special != MEGAMORPHIC) {
+			site.special = special.with(collection instanceof ListValue && key instanceof NumberLiteral ? LIST : collection instanceof MapValue && key instanceof ALiteral ? MAP : GENERIC);
+		}
+		
+		return ((ICollection) collection).get(key, ns);
+	}
+	
+	static int binary (Function func, IValue a, IValue b) { // what to specialize a call for, given these
+		if (!(func instanceof NamedFunction)) {
+			return GENERIC;
+		}
+		
+		boolean numbers = a instanceof NumberLiteral && b instanceof NumberLiteral;
+		
+		switch (((NamedFunction) func).type) {
+		case "+": return a instanceof StringLiteral || b instanceof StringLiteral ? CONCAT : numbers ? ADD : GENERIC;
+		case "-": return numbers ? SUBTRACT : GENERIC;
+		case "*": return numbers ? MULTIPLY : GENERIC;
+		case "/": return numbers ? DIVIDE : GENERIC;
+		case "<": return numbers ? LESS : GENERIC;
+		case ">": return numbers ? GREATER : GENERIC;
+		case "<=": return numbers ? LESS_EQUAL : GENERIC;
+		case ">=": return numbers ? GREATER_EQUAL : GENERIC;
+		}
+		
+		return GENERIC;
+	}
+	
+	static boolean constant (IExpression node) { // evaluates to itself, so skipping it changes nothing, like the blocks ClosureCompiler.block looks for
+		return node instanceof Function || node instanceof ALiteral;
+	}
+	
+	static boolean core (Function func, int kind) { // func is the core function this kind is for
+		return func instanceof NamedFunction && TYPES[kind].equals(((NamedFunction) func).type);
+	}
+	
+	static double number (IValue value) {
+		return (Double) ((NumberLiteral) value).value;
+	}
+	
+	public String toString () {
+		return NAMES[kind];
+	}
+}
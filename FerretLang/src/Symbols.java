@@ -0,0 +1,275 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// Every name in every program is given an int the first time it's seen (a symbol), and keeps it for as long as the process runs
+// The lexer and parser turn identifiers into symbols once, so scopes are keyed by ints and a lookup never hashes or compares a String
+
+class Symbols {
+	
+	/**
+	 * The table is open addressing, hashed the same way as String.hashCode, so an identifier can be found straight from the source
+	 * without making a String for it first. Symbols start at 1, 0 means no symbol (e.g. SymbolMap's empty slots).
+	 *
+	 * Names are never removed, a process that runs a lot of generated code with different names in it will keep all of them.
+	 * */
+	
+	static String[] table = new String[1 << 10];
+	static int[] tableIds = new int[1 << 10];
+	static String[] names = new String[1 << 9]; // by symbol
+	static int count = 0; // symbols given out so far
+	
+	static final int ARGS = 32;
+	
+	static { // the first symbols given out, so @1 up to @32 are symbols 1 to 32, and a call's scope can tell which argument one is without a lookup
+		for (int n = 1; n <= ARGS; n++) {
+			id("@" + n);
+		}
+	}
+	
+	static synchronized int id (CharSequence text, int start, int end) { // the symbol for text[start, end), given one if it's new
+		int mask = table.length - 1;
+		int i = hash(text, start, end) & mask;
+		
+		for (; table[i] != null; i = (i + 1) & mask) {
+			if (Lexer.matches(text, start, end, table[i])) {
+				return tableIds[i];
+			}
+		}
+		
+		if (++count == names.length) {
+			names = Arrays.copyOf(names, count * 2);
+		}
+		
+		table[i] = text.subSequence(start, end).toString();
+		tableIds[i] = count;
+		names[count] = table[i];
+		
+		if (count * 2 > table.length) {
+			resize();
+		}
+		
+		return count;
+	}
+	
+	static int id (String name) {
+		return id(name, 0, name.length());
+	}
+	
+	static synchronized int find (String name) { // the symbol name already has, or 0, for looking things up without adding to the table
+		int mask = table.length - 1;
+		
+		for (int i = hash(name, 0, name.length()) & mask; table[i] != null; i = (i + 1) & mask) {
+			if (table[i].equals(name)) {
+				return tableIds[i];
+			}
+		}
+		
+		return 0;
+	}
+	
+	static synchronized String name (int symbol) { // the same String object every time, so a program only holds one copy of each name
+		return names[symbol];
+	}
+	
+	static int arg (int n) { // the symbol for '@n'
+		return n <= ARGS ? n : id("@" + n);
+	}
+	
+	static synchronized int argNumber (int symbol) { // n if symbol is '@n', or 0
+		String name = names[symbol];
+		return name.startsWith("@") && name.matches("@[1-9][0-9]{0,8}") ? Integer.parseInt(name.substring(1)) : 0;
+	}
+	
+	static int[] ids (List<String> names) {
+		int[] end = new int[names.size()];
+		
+		for (int i = 0; i < end.length; i++) {
+			end[i] = id(names.get(i));
+		}
+		
+		return end;
+	}
+	
+	static int hash (CharSequence text, int start, int end) {
+		int hash = 0;
+		
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + text.charAt(i);
+		}
+		
+		return hash ^ (hash >>> 16);
+	}
+	
+	static void resize () {
+		String[] oldTable = table;
+		int[] oldIds = tableIds;
+		table = new String[oldTable.length * 2];
+		tableIds = new int[oldTable.length * 2];
+		int mask = table.length - 1;
+		
+		for (int j = 0; j < oldTable.length; j++) {
+			if (oldTable[j] == null) {
+				continue;
+			}
+			
+			int i = hash(oldTable[j], 0, oldTable[j].length()) & mask;
+			
+			while (table[i] != null) {
+				i = (i + 1) & mask;
+			}
+			
+			table[i] = oldTable[j];
+			tableIds[i] = oldIds[j];
+		}
+	}
+}
+
+class SymbolMap extends AbstractMap<String, IValue> { // one scope's variables, an open addressing table keyed by symbol
+	int[] keys; // 0 where a slot is empty
+	IValue[] values;
+	int size = 0;
+	
+	SymbolMap (int expected) {
+		int capacity = 4;
+		
+		while (capacity < expected * 2) {
+			capacity *= 2;
+		}
+		
+		this.keys = new int[capacity];
+		this.values = new IValue[capacity];
+	}
+	
+	SymbolMap () {
+		this(2);
+	}
+	
+	SymbolMap (Map<String, IValue> vars) {
+		this(vars.size());
+		this.putAll(vars);
+	}
+	
+	static SymbolMap of (Map<String, IValue> vars) { // Namespaces can be made from any map, which is copied unless it's already a SymbolMap
+		return vars instanceof SymbolMap ? (SymbolMap) vars : new SymbolMap(vars);
+	}
+	
+	public void clear () {
+		if (size > 0) {
+			Arrays.fill(keys, 0);
+			Arrays.fill(values, null);
+			size = 0;
+		}
+	}
+	
+	int index (int symbol) { // where symbol is, or the empty slot it would go in
+		int mask = keys.length - 1;
+		int i = symbol * 0x9E3779B9; // symbols are handed out in order, so they're spread over the table first
+		
+		i = (i ^ (i >>> 16)) & mask;
+		
+		while (keys[i] != symbol && keys[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		
+		return i;
+	}
+	
+	IValue lookup (int symbol) { // Namespace.MISSING if symbol isn't here, so a value of null can be told apart
+		int i = index(symbol);
+		return keys[i] == 0 ? Namespace.MISSING : values[i];
+	}
+	
+	IValue put (int symbol, IValue value) {
+		int i = index(symbol);
+		IValue old = values[i];
+		values[i] = value;
+		
+		if (keys[i] == 0) {
+			keys[i] = symbol;
+			
+			if (++size * 2 > keys.length) {
+				resize();
+			}
+		}
+		
+		return old;
+	}
+	
+	void resize () {
+		int[] oldKeys = keys;
+		IValue[] oldValues = values;
+		keys = new int[oldKeys.length * 2];
+		values = new IValue[oldKeys.length * 2];
+		
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] != 0) {
+				int i = index(oldKeys[j]);
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+	
+	// the Map methods, by name, for code that isn't on the hot path (tests, printing, Namespace's constructors)
+	
+	public IValue get (Object key) {
+		int symbol = key instanceof String ? Symbols.find((String) key) : 0;
+		IValue value = symbol == 0 ? Namespace.MISSING : lookup(symbol);
+		return value == Namespace.MISSING ? null : value;
+	}
+	
+	public boolean containsKey (Object key) {
+		int symbol = key instanceof String ? Symbols.find((String) key) : 0;
+		return symbol != 0 && lookup(symbol) != Namespace.MISSING;
+	}
+	
+	public IValue put (String key, IValue value) {
+		return this.put(Symbols.id(key), value);
+	}
+	
+	public int size () {
+		return size;
+	}
+	
+	public Set<Map.Entry<String, IValue>> entrySet () { // variables are never removed, so neither are entries
+		return new AbstractSet<Map.Entry<String, IValue>>() {
+			public int size () {
+				return size;
+			}
+			
+			public Iterator<Map.Entry<String, IValue>> iterator () {
+				return new Iterator<Map.Entry<String, IValue>>() {
+					int i = advance(0);
+					
+					int advance (int from) {
+						while (from < keys.length && keys[from] == 0) {
+							from++;
+						}
+						
+						return from;
+					}
+					
+					public boolean hasNext () {
+						return i < keys.length;
+					}
+					
+					public Map.Entry<String, IValue> next () {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						
+						Map.Entry<String, IValue> entry = new AbstractMap.SimpleImmutableEntry<>(Symbols.name(keys[i]), values[i]);
+						i = advance(i + 1);
+						return entry;
+					}
+				};
+			}
+		};
+	}
+}
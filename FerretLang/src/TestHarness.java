@@ -9,7 +9,7 @@ class TestHarness {
 	Namespace ns;
 
 	TestHarness (String source, IValue expected) {
-		this.program = new Parser(Lexer.lex(source)).parse();
+		this.program = new Parser(Lexer.tokenize(source)).parse();
 		this.expected = expected;
 	}
 	
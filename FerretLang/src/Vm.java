@@ -0,0 +1,623 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+// A register machine: each function (and the program) is compiled once into an int[] of instructions, which one loop runs
+// Values live in registers, a window on the call stack (see Frames), so running it is reading ints and indexing arrays rather than following node pointers
+// Compiled programs can be saved as .fbc files (the format is with VmWriter), which run without the lexer or parser
+
+class Vm {
+	static boolean vmMode = false; // run programs on the register machine (Entry --vm)
+	static boolean saveMode = false; // and write the compiled program next to the source, as a .fbc (Entry --fbc)
+	
+	/**
+	 * Each instruction is its opcode followed by its operands, all ints. r[n] is register n, k[n] is constant n,
+	 * s[n] is symbol n of the code's own table, and a target is the index of another instruction:
+	 *
+	 * NIL     dst                      r[dst] = nil
+	 * CONST   dst k                    r[dst] = k[k]
+	 * GET     dst s                    r[dst] = the name s[s], found through the scopes
+	 * GLOBAL  dst s                    r[dst] = the top level name s[s] (see GlobalReference)
+	 * SLOT    dst slot s               r[dst] = the argument in slot, or the name s[s] outside a call (see SlotReference)
+	 * SET     src s                    defines s[s] as r[src]
+	 * LIST    dst first count          r[dst] = a new list of r[first] ... r[first + count - 1]
+	 * CALLEE  dst k                    r[dst] = the function the call k[k] is to, through its cache
+	 * CALL    dst func first count     r[dst] = r[func] called with r[first] ... r[first + count - 1]
+	 * BINARY  dst op func a b          r[dst] = r[func](r[a] r[b]), done directly if it's the core one of Jit.OPERATORS[op]
+	 * INDEX   dst coll key             r[dst] = r[coll]:r[key]
+	 * EVAL    dst k                    r[dst] = k[k] evaluated by the interpreter, for operations other than ':'
+	 * JUMP    target
+	 * JUMPF   cond target              jump unless r[cond] is true (a function is called first, like Utils.conditional)
+	 * JUMPCF  op func a b target       jump unless r[func](r[a] r[b]) is true, compared directly like BINARY
+	 * IFNOT   func target              jump unless r[func] is the core 'if'
+	 * RETURN  src
+	 *
+	 * An 'if' given two blocks (see ClosureCompiler.block) is compiled to jumps, with the ordinary call after them for when 'if' has been defined again.
+	 * A call's arguments are compiled into consecutive registers, so CALL only needs the first one.
+	 * */
+	
+	static final int NIL = 0, CONST = 1, GET = 2, GLOBAL = 3, SLOT = 4, SET = 5, LIST = 6, CALLEE = 7, CALL = 8, BINARY = 9,
+			INDEX = 10, EVAL = 11, JUMP = 12, JUMPF = 13, JUMPCF = 14, IFNOT = 15, RETURN = 16;
+	static final String[] NAMES = { "NIL", "CONST", "GET", "GLOBAL", "SLOT", "SET", "LIST", "CALLEE", "CALL", "BINARY",
+			"INDEX", "EVAL", "JUMP", "JUMPF", "JUMPCF", "IFNOT", "RETURN" };
+	static final int[] SIZES = { 2, 3, 3, 3, 4, 3, 4, 3, 5, 6, 4, 3, 2, 3, 6, 3, 2 }; // with the opcode
+	
+	static VmCode compile (IExpression program) {
+		return VmCompiler.compile(new ArrayList<>(), Resolver.resolve(program));
+	}
+	
+	static IExpression prepare (IExpression program) { // something Entry can evaluate like any other program
+		return new VmNode(compile(program));
+	}
+	
+	static void save (VmCode program, Path file) throws IOException {
+		Path temp = file.toAbsolutePath().resolveSibling(file.getFileName() + "." + Long.toHexString(System.nanoTime()) + ".tmp"); // moved when it's whole, like AstCache.save
+		Files.write(temp, VmWriter.write(program), StandardOpenOption.CREATE_NEW); // not createTempFile, which only its owner can read, a .fbc is meant to be handed around
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	static IExpression load (Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new VmNode(VmReader.program(buffer));
+		}
+	}
+	
+	static IValue run (VmCode chunk, Namespace ns) {
+		Frames frames = ns.frames();
+		int base = frames.reserve(chunk.registers); // the registers are on the stack, so running a function doesn't need anything new on the heap
+		
+		try {
+			return run(chunk, frames, base, ns);
+		} finally {
+			frames.release(base);
+		}
+	}
+	
+	static IValue run (VmCode chunk, Frames frames, int base, Namespace ns) { // r[n] is stack[base + n]
+		int[] code = chunk.code;
+		IExpression[] k = chunk.constants;
+		int[] s = chunk.symbols;
+		IValue[] r = frames.stack; // read again after anything that can make a call, which might have made the stack bigger
+		IValue value;
+		int pc = 0;
+		
+		for (;;) {
+			switch (code[pc]) {
+			case NIL:
+				r[base + code[pc + 1]] = new Nil();
+				pc += 2;
+				break;
+			case CONST:
+				r[base + code[pc + 1]] = (IValue) k[code[pc + 2]];
+				pc += 3;
+				break;
+			case GET:
+				r[base + code[pc + 1]] = Jit.get(ns, s[code[pc + 2]]);
+				pc += 3;
+				break;
+			case GLOBAL:
+				r[base + code[pc + 1]] = Jit.global(ns, s[code[pc + 2]]);
+				pc += 3;
+				break;
+			case SLOT:
+				r[base + code[pc + 1]] = Jit.slot(ns, code[pc + 2], s[code[pc + 3]]);
+				pc += 4;
+				break;
+			case SET:
+				ns.set(s[code[pc + 2]], r[base + code[pc + 1]]);
+				pc += 3;
+				break;
+			case LIST: {
+				int first = base + code[pc + 2];
+				r[base + code[pc + 1]] = Jit.list(Arrays.copyOfRange(r, first, first + code[pc + 3]));
+				pc += 4;
+				break;
+			}
+			case CALLEE:
+				r[base + code[pc + 1]] = ((FunctionCall) k[code[pc + 2]]).callee(ns);
+				pc += 3;
+				break;
+			case CALL: {
+				Function func = Utils.function(r[base + code[pc + 2]]);
+				int a = base + code[pc + 3];
+				
+				switch (code[pc + 4]) {
+				case 0: value = func.call0(ns); break;
+				case 1: value = func.call1(r[a], ns); break;
+				case 2: value = func.call2(r[a], r[a + 1], ns); break;
+				case 3: value = func.call3(r[a], r[a + 1], r[a + 2], ns); break;
+				case 4: value = func.call4(r[a], r[a + 1], r[a + 2], r[a + 3], ns); break;
+				default: value = Jit.call(func, Arrays.copyOfRange(r, a, a + code[pc + 4]), ns);
+				}
+				
+				r = frames.stack;
+				r[base + code[pc + 1]] = value;
+				pc += 5;
+				break;
+			}
+			case BINARY:
+				value = Jit.binary(code[pc + 2], r[base + code[pc + 3]], r[base + code[pc + 4]], r[base + code[pc + 5]], ns);
+				r = frames.stack;
+				r[base + code[pc + 1]] = value;
+				pc += 6;
+				break;
+			case INDEX:
+				value = Jit.index(r[base + code[pc + 2]], r[base + code[pc + 3]], ns);
+				r = frames.stack;
+				r[base + code[pc + 1]] = value;
+				pc += 4;
+				break;
+			case EVAL:
+				value = k[code[pc + 2]].eval(ns);
+				r = frames.stack;
+				r[base + code[pc + 1]] = value;
+				pc += 3;
+				break;
+			case JUMP:
+				pc = code[pc + 1];
+				break;
+			case JUMPF:
+				pc = Utils.truth(r[base + code[pc + 1]], ns) ? pc + 3 : code[pc + 2];
+				r = frames.stack;
+				break;
+			case JUMPCF:
+				pc = Jit.condition(code[pc + 1], r[base + code[pc + 2]], r[base + code[pc + 3]], r[base + code[pc + 4]], ns) ? pc + 6 : code[pc + 5];
+				r = frames.stack;
+				break;
+			case IFNOT:
+				pc = Utils.isIf(r[base + code[pc + 1]]) ? pc + 3 : code[pc + 2];
+				break;
+			case RETURN:
+				return r[base + code[pc + 1]];
+			default:
+				throw new IllegalStateException("Unknown instruction " + code[pc] + " at " + pc);
+			}
+		}
+	}
+}
+
+class VmCode { // one function's instructions, or the program's, and what they refer to
+	final ArrayList<String> params;
+	final int[] code;
+	final IExpression[] constants;
+	final int[] symbols;
+	final int registers;
+	
+	VmCode (ArrayList<String> params, int[] code, IExpression[] constants, int[] symbols, int registers) {
+		this.params = params;
+		this.code = code;
+		this.constants = constants;
+		this.symbols = symbols;
+		this.registers = registers;
+	}
+	
+	public String toString () { // one instruction a line, e.g. '4: CALL r0 r1 r2 1'
+		StringBuilder end = new StringBuilder();
+		
+		for (int pc = 0; pc < code.length; pc += Vm.SIZES[code[pc]]) {
+			end.append(pc).append(": ").append(Vm.NAMES[code[pc]]);
+			
+			for (int i = 1; i < Vm.SIZES[code[pc]]; i++) {
+				end.append(' ').append(operand(code[pc], i, code[pc + i]));
+			}
+			
+			end.append('\n');
+		}
+		
+		return end.toString();
+	}
+	
+	String operand (int op, int i, int value) {
+		switch (op) {
+		case Vm.CONST: case Vm.CALLEE: case Vm.EVAL:
+			return i == 1 ? "r" + value : constants[value] instanceof VmFunction ? "Func " + ((Function) constants[value]).params : constants[value].toString(); // not the function's own code
+		case Vm.GET: case Vm.GLOBAL: case Vm.SET:
+			return i == 1 ? "r" + value : Symbols.name(symbols[value]);
+		case Vm.SLOT:
+			return i == 1 ? "r" + value : i == 2 ? "@" + (value + 1) : Symbols.name(symbols[value]);
+		case Vm.LIST: case Vm.CALL:
+			return i == Vm.SIZES[op] - 1 ? String.valueOf(value) : "r" + value;
+		case Vm.BINARY: case Vm.JUMPCF:
+			return (op == Vm.BINARY ? i == 2 : i == 1) ? Jit.OPERATORS[value] : op == Vm.JUMPCF && i == 5 ? String.valueOf(value) : "r" + value;
+		case Vm.JUMP:
+			return String.valueOf(value);
+		case Vm.JUMPF: case Vm.IFNOT:
+			return i == 1 ? "r" + value : String.valueOf(value);
+		}
+		
+		return "r" + value;
+	}
+}
+
+class VmCompiler { // the resolved tree to a VmCode, see Vm
+	int[] code = new int[32];
+	int length = 0;
+	ArrayList<IExpression> constants = new ArrayList<>();
+	Map<IExpression, Integer> constantIndex = new IdentityHashMap<>();
+	ArrayList<Integer> symbols = new ArrayList<>();
+	Map<Integer, Integer> symbolIndex = new HashMap<>();
+	int next = 0; // the first free register
+	int registers = 0;
+	
+	static VmCode compile (ArrayList<String> params, IExpression body) {
+		VmCompiler compiler = new VmCompiler();
+		int result = compiler.alloc(1);
+		compiler.node(body, result);
+		compiler.emit(Vm.RETURN, result);
+		
+		IExpression[] constants = compiler.constants.toArray(new IExpression[0]);
+		int[] symbols = compiler.symbols.stream().mapToInt(Integer::intValue).toArray();
+		return new VmCode(params, Arrays.copyOf(compiler.code, compiler.length), constants, symbols, compiler.registers);
+	}
+	
+	void node (IExpression node, int dst) { // node's value into r[dst]
+		if (node instanceof FlatNode || node instanceof CompiledNode || node instanceof VmNode) {
+			throw new IllegalArgumentException("Can't compile a " + node.getClass().getName());
+		} else if (node.getClass() == Function.class || node instanceof LazyFunction) {
+			Function func = (Function) node;
+			emit(Vm.CONST, dst, constant(new VmFunction(func.params, func.body(), compile(func.params, func.body()))));
+		} else if (node instanceof ALiteral || node instanceof Function || node instanceof MapValue) { // these evaluate to themselves
+			emit(Vm.CONST, dst, constant(node));
+		} else if (node instanceof SlotReference) {
+			emit(Vm.SLOT, dst, ((SlotReference) node).slot, symbol(((Reference) node).symbol));
+		} else if (node instanceof GlobalReference) {
+			emit(Vm.GLOBAL, dst, symbol(((Reference) node).symbol));
+		} else if (node.getClass() == Reference.class) {
+			emit(Vm.GET, dst, symbol(((Reference) node).symbol));
+		} else if (node instanceof ListValue) {
+			ArrayList<IValue> values = ((ListValue) node).value;
+			int mark = next;
+			int first = alloc(values.size());
+			
+			for (int i = 0; i < values.size(); i++) {
+				node(values.get(i), first + i);
+			}
+			
+			emit(Vm.LIST, dst, first, values.size());
+			next = mark;
+		} else if (node instanceof Sequence) {
+			sequence(((Sequence) node).body, dst);
+		} else if (node instanceof FunctionCall) {
+			call((FunctionCall) node, dst);
+		} else if (node instanceof Operation && ((Operation) node).type.equals(":") && ((Operation) node).operands.size() == 2) {
+			int mark = next;
+			int collection = alloc(2);
+			node(((Operation) node).operands.get(0), collection);
+			node(((Operation) node).operands.get(1), collection + 1);
+			emit(Vm.INDEX, dst, collection, collection + 1);
+			next = mark;
+		} else if (node instanceof Definition) {
+			node(((Definition) node).value, dst);
+			emit(Vm.SET, dst, symbol(((Definition) node).symbol));
+		} else { // other operations evaluate their own operands, and anything else (e.g. a Conditional made by hand) is evaluated as it is
+			emit(Vm.EVAL, dst, constant(node));
+		}
+	}
+	
+	void sequence (ArrayList<IExpression> body, int dst) {
+		if (body.isEmpty()) {
+			emit(Vm.NIL, dst);
+		}
+		
+		for (IExpression step : body) { // each one into dst, the last one is what's left
+			node(step, dst);
+		}
+	}
+	
+	void call (FunctionCall call, int dst) {
+		int count = call.args.size();
+		int mark = next;
+		
+		if (count == 3 && ClosureCompiler.block(call.args.get(1)) && ClosureCompiler.block(call.args.get(2))) {
+			conditional(call, dst);
+			return;
+		}
+		
+		int func = alloc(1);
+		callee(call, func);
+		int op = Jit.operator(call);
+		int first = alloc(count);
+		
+		for (int i = 0; i < count; i++) { // left to right after the function, like FunctionCall
+			node(call.args.get(i), first + i);
+		}
+		
+		if (op >= 0) {
+			emit(Vm.BINARY, dst, op, func, first, first + 1);
+		} else {
+			emit(Vm.CALL, dst, func, first, count);
+		}
+		
+		next = mark;
+	}
+	
+	void callee (FunctionCall call, int dst) {
+		if (call.symbol != 0) { // a plain name, found through FunctionCall's cache
+			emit(Vm.CALLEE, dst, constant(call));
+		} else {
+			node(call.maybeFunc, dst);
+		}
+	}
+	
+	void conditional (FunctionCall call, int dst) { // 'if (cond { ... } { ... })', the blocks' bodies run in the caller's scope as in ClosureCompiler
+		int mark = next;
+		int func = alloc(1);
+		callee(call, func);
+		int generic = jump(Vm.IFNOT, func);
+		int otherwise = condition(call.args.get(0));
+		sequence(((Function) call.args.get(1)).body.body, dst);
+		int end = jump(Vm.JUMP);
+		land(otherwise);
+		sequence(((Function) call.args.get(2)).body.body, dst);
+		int end2 = jump(Vm.JUMP);
+		
+		land(generic); // 'if' was defined again, it's an ordinary call, given the blocks as the interpreter's functions rather than compiling them twice
+		int first = alloc(3);
+		node(call.args.get(0), first);
+		emit(Vm.CONST, first + 1, constant(call.args.get(1)));
+		emit(Vm.CONST, first + 2, constant(call.args.get(2)));
+		
+		emit(Vm.CALL, dst, func, first, 3);
+		land(end);
+		land(end2);
+		next = mark;
+	}
+	
+	int condition (IExpression node) { // jumps when node isn't true, returns where to put the target
+		int mark = next;
+		int at;
+		
+		if (node instanceof FunctionCall && Jit.operator((FunctionCall) node) >= Jit.COMPARISONS) {
+			FunctionCall call = (FunctionCall) node;
+			int func = alloc(3);
+			callee(call, func);
+			node(call.args.get(0), func + 1);
+			node(call.args.get(1), func + 2);
+			at = jump(Vm.JUMPCF, Jit.operator(call), func, func + 1, func + 2);
+		} else {
+			int value = alloc(1);
+			node(node, value);
+			at = jump(Vm.JUMPF, value);
+		}
+		
+		next = mark;
+		return at;
+	}
+	
+	int jump (int... instruction) { // emits it with a target still to come, and returns where the target goes
+		int[] end = Arrays.copyOf(instruction, instruction.length + 1);
+		emit(end);
+		return length - 1;
+	}
+	
+	void land (int at) { // the jump at 'at' goes to the next instruction
+		code[at] = length;
+	}
+	
+	void emit (int... instruction) {
+		if (length + instruction.length > code.length) {
+			code = Arrays.copyOf(code, Math.max(code.length * 2, length + instruction.length));
+		}
+		
+		System.arraycopy(instruction, 0, code, length, instruction.length);
+		length += instruction.length;
+	}
+	
+	int alloc (int count) { // count consecutive registers
+		int first = next;
+		next += count;
+		registers = Math.max(registers, next);
+		return first;
+	}
+	
+	int constant (IExpression value) {
+		return constantIndex.computeIfAbsent(value, v -> {
+			constants.add(v);
+			return constants.size() - 1;
+		});
+	}
+	
+	int symbol (int symbol) {
+		return symbolIndex.computeIfAbsent(symbol, s -> {
+			symbols.add(s);
+			return symbols.size() - 1;
+		});
+	}
+}
+
+class VmNode implements IValue { // a VmCode, where something needs an IExpression: the program, or a function's body
+	final VmCode chunk;
+	
+	VmNode (VmCode chunk) {
+		this.chunk = chunk;
+	}
+	
+	public IValue eval (Namespace ns) {
+		return Vm.run(chunk, ns);
+	}
+	
+	public Datatype getType () {
+		return Datatype.AST_NODE;
+	}
+	
+	public String printOutput () {
+		return "AST node";
+	}
+	
+	public String toString () {
+		return "VM code\n" + chunk;
+	}
+}
+
+class VmFunction extends Function { // a function compiled for the Vm, its body is null if it was loaded from a .fbc
+	final VmNode code;
+	
+	VmFunction (ArrayList<String> params, Sequence body, VmCode code) {
+		super(params, body);
+		this.code = new VmNode(code);
+	}
+	
+	IExpression code () {
+		return this.code;
+	}
+	
+	public String toString () {
+		return body == null ? "Func " + params.toString() + " -> " + code.toString() : super.toString();
+	}
+}
+
+/**
+ * The .fbc format, with AstWriter's header, 'var' ints and string table, and its nodes for constants the Vm evaluates:
+ *
+ * header:    int MAGIC, int VERSION, var string count, then the strings
+ * code:      var count, var string params, var registers, var count, var string symbols, var count, constants, var length, var instructions
+ * constant:  byte tag, then
+ *            NIL, TRUE, FALSE           nothing
+ *            NUMBER                     double
+ *            STRING                     var string
+ *            FUNCTION                   code
+ *            CALL                       var string, the name the call is to (CALLEE only needs its cache)
+ *            NODE                       an AstWriter node
+ *
+ * The program's code follows the header. VERSION goes up whenever the instructions or this format change.
+ * */
+
+class VmWriter extends AstWriter {
+	static final int MAGIC = 0x46424321, VERSION = 1; // "FBC!"
+	static final byte FUNCTION = 20, CALL = 21, NODE = 22; // after AstWriter's tags
+	
+	static byte[] write (VmCode program) {
+		VmWriter writer = new VmWriter();
+		writer.code(program);
+		return writer.finish(MAGIC, VERSION);
+	}
+	
+	void code (VmCode chunk) {
+		strings(chunk.params);
+		var(chunk.registers);
+		var(chunk.symbols.length);
+		
+		for (int symbol : chunk.symbols) {
+			var(string(Symbols.name(symbol)));
+		}
+		
+		var(chunk.constants.length);
+		
+		for (IExpression constant : chunk.constants) {
+			constant(constant);
+		}
+		
+		var(chunk.code.length);
+		
+		for (int word : chunk.code) {
+			var(word);
+		}
+	}
+	
+	void constant (IExpression constant) {
+		room(1);
+		
+		if (constant instanceof ALiteral) {
+			node(constant);
+		} else if (constant instanceof VmFunction) {
+			out.put(FUNCTION);
+			code(((VmFunction) constant).code.chunk);
+		} else if (constant instanceof FunctionCall) {
+			out.put(CALL);
+			var(string(Symbols.name(((FunctionCall) constant).symbol)));
+		} else if (constant instanceof NamedFunction || constant instanceof MapValue) {
+			throw new IllegalArgumentException("Can't save a " + constant.getClass().getName());
+		} else {
+			out.put(NODE);
+			node(constant);
+		}
+	}
+	
+	void strings (ArrayList<String> strings) {
+		var(strings.size());
+		
+		for (String s : strings) {
+			var(string(s));
+		}
+	}
+}
+
+class VmReader extends AstReader {
+	VmReader (ByteBuffer in, String[] strings) {
+		super(in, strings);
+	}
+	
+	static VmCode program (ByteBuffer in) {
+		try {
+			return new VmReader(in, header(in, VmWriter.MAGIC, VmWriter.VERSION, "compiled program")).code();
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) { // cut short, or not ours after all
+			throw new IllegalStateException("Not a compiled program, or from another version");
+		}
+	}
+	
+	VmCode code () {
+		ArrayList<String> params = strings();
+		int registers = var();
+		int[] symbols = new int[var()];
+		
+		for (int i = 0; i < symbols.length; i++) {
+			symbols[i] = Symbols.id(strings[var()]);
+		}
+		
+		IExpression[] constants = new IExpression[var()];
+		
+		for (int i = 0; i < constants.length; i++) {
+			constants[i] = constant();
+		}
+		
+		int[] code = new int[var()];
+		
+		for (int i = 0; i < code.length; i++) {
+			code[i] = var();
+		}
+		
+		return new VmCode(params, code, constants, symbols, registers);
+	}
+	
+	IExpression constant () {
+		byte tag = in.get(in.position());
+		
+		switch (tag) {
+		case VmWriter.FUNCTION: {
+			in.get();
+			VmCode code = code();
+			return new VmFunction(code.params, null, code);
+		}
+		case VmWriter.CALL:
+			in.get();
+			return new FunctionCall(new Reference(strings[var()]), new ArrayList<>());
+		case VmWriter.NODE:
+			in.get();
+			return node();
+		}
+		
+		return node(); // a literal
+	}
+	
+	ArrayList<String> strings () {
+		ArrayList<String> end = new ArrayList<>();
+		
+		for (int i = var(); i > 0; i--) {
+			end.add(strings[var()]);
+		}
+		
+		return end;
+	}
+}